@@ -0,0 +1,124 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link HqlLexer} with the regular expression comment stripping and character array split it replaced, on
+ * generated INSERT scripts of 1, 10 and 100 MB.
+ * <pre>
+ * mvn install                 (in the project directory)
+ * cd benchmarks
+ * mvn package
+ * java -jar target/benchmarks.jar HqlSplitBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class HqlSplitBenchmark {
+
+    /**
+     * Size of the script, in MB.
+     */
+    @Param({"1", "10", "100"})
+    public int megabytes;
+
+    private String script;
+
+    @Setup
+    public void setup() {
+        script = generate(megabytes * 1024 * 1024);
+    }
+
+    @Benchmark
+    public List<String> legacySplit() {
+        return legacyHQLSplit(script);
+    }
+
+    @Benchmark
+    public List<String> lexerSplit() {
+        return HqlLexer.split(script);
+    }
+
+    /**
+     * Statement offsets only, no statement strings.
+     */
+    @Benchmark
+    public void lexerOffsets(Blackhole bh) {
+        HqlLexer lexer = new HqlLexer(script);
+        while (lexer.next()) {
+            bh.consume(lexer.start());
+            bh.consume(lexer.end());
+        }
+    }
+
+    /**
+     * A script like those generated for bulk loads: a header, then INSERT statements with string literals (some
+     * containing <code>;</code> and <code>--</code>) and the odd comment.
+     */
+    static String generate(int size) {
+        String separator = System.getProperty("line.separator");
+        StringBuilder s = new StringBuilder(size + 256);
+        s.append("-- generated load script").append(separator)
+                .append("set hive.exec.dynamic.partition.mode=nonstrict;").append(separator)
+                .append("use staging;").append(separator);
+        for (int i = 0; s.length() < size; i++) {
+            if (i % 100 == 0)
+                s.append("-- batch ").append(i / 100).append(separator);
+            s.append("insert into table customer partition (region='emea') values (").append(i)
+                    .append(", 'name ").append(i).append("', 'notes; see -- ticket ").append(i % 997)
+                    .append("', ").append(i % 31).append(".5);").append(separator);
+        }
+        return s.toString();
+    }
+
+    /**
+     * The split used before {@link HqlLexer}.
+     */
+    static List<String> legacyHQLSplit(String hql) {
+        String str = legacyStripComments(hql);
+        List<String> stmts = new ArrayList<>();
+        boolean in_sQuote = false, in_dQuote = false;
+        StringBuilder stmt = new StringBuilder();
+
+        for (final char c : str.toCharArray()) {
+            if (c == '\'')
+                in_sQuote = !in_sQuote;
+            if (c == '\"')
+                in_dQuote = !in_dQuote;
+            if (c == ';') {
+                if (!in_dQuote && !in_sQuote) {
+                    stmts.add(stmt.toString());
+                    stmt = new StringBuilder();
+                    continue;
+                }
+            }
+            stmt.append(c);
+        }
+        return stmts;
+    }
+
+    private static String legacyStripComments(String str) {
+        StringBuilder result = new StringBuilder();
+        Pattern p = Pattern.compile("--");
+        for (String s : str.split(System.getProperty("line.separator"))) {
+            Matcher m = p.matcher(s);
+            if (m.find()) {
+                s = s.substring(0, m.start());
+            }
+            if (s.isEmpty()) continue;
+            result.append(s).append(" ");
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Signals that a run has been abandoned, and cancels the HQL statements the run still has in flight.
+ * <p>
+ * Statements register themselves while they execute (see {@link Hive}). Once abort() is called every registered
+ * statement is cancelled (<code>Statement.cancel()</code>, which kills the query on HiveServer2), and any statement
+ * that tries to register afterwards is refused.
+ */
+class AbortSignal {
+
+    /**
+     * Abandon the run and cancel every statement in flight.
+     *
+     * @param reason - reason for the abort, logged.
+     */
+    void abort(String reason) {
+        Statement[] inFlight;
+        synchronized (this) {
+            if (aborted) return;
+            aborted = true;
+            inFlight = running.toArray(new Statement[running.size()]);
+        }
+        log.error("Aborting run - " + reason + " - cancelling " + inFlight.length + " running statement(s)");
+        for (Statement stmt : inFlight) {
+            try {
+                stmt.cancel();
+            } catch (SQLException e) {
+                log.error("Error cancelling statement", e);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> once abort() has been called.
+     */
+    synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Register a statement that is about to execute.
+     *
+     * @param stmt - Statement.
+     * @return <code>false</code> if the run has been aborted, and the statement must not be executed.
+     */
+    synchronized boolean register(Statement stmt) {
+        if (aborted) return false;
+        running.add(stmt);
+        return true;
+    }
+
+    /**
+     * Unregister a statement that has finished executing.
+     *
+     * @param stmt - Statement.
+     */
+    synchronized void unregister(Statement stmt) {
+        running.remove(stmt);
+    }
+
+    private boolean aborted = false;
+    private final Set<Statement> running = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final static Logger log = LoggerFactory.getLogger(AbortSignal.class);
+}
@@ -0,0 +1,211 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.commons.dbcp2.DelegatingStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A statement executing asynchronously on HiveServer2 (<code>executor.async</code>), so no thread is blocked while
+ * it runs.
+ * <p>
+ * The statement is submitted with <code>HiveStatement.executeAsync()</code> (Hive JDBC 2.2 and later), which returns
+ * once HiveServer2 has accepted it, and its status is then polled every <code>hql.pollIntervalMillis</code> by the
+ * poller thread (see {@link ExecutorPool#getPoller()}), with the GetOperationStatus call that the driver itself uses
+ * while it waits for a statement. HiveStatement has no public way to make that call without waiting for the statement
+ * to complete, so it is made with the driver's Thrift client, found by reflection. Once the statement is no longer
+ * running, <code>getUpdateCount()</code> returns straight away, or throws the error the statement failed with.
+ * <p>
+ * The driver is inspected once per statement class. Drivers without <code>executeAsync()</code> (Hive JDBC before
+ * 2.2, including the 1.1.0 driver this project is built with), or whose internals differ, are not supported, and
+ * their statements are executed with <code>Statement.execute()</code>. The driver on the classpath is probed when
+ * the worker pool is created (see {@link #isSupported()}), so the pool can be sized for blocking statements.
+ */
+final class AsyncStatement {
+
+    /**
+     * Probe the Hive JDBC driver on the classpath (<code>HiveStatement</code>) for asynchronous execution.
+     *
+     * @return <code>true</code> if its statements can be executed asynchronously.
+     */
+    static boolean isSupported() {
+        try {
+            return drivers.computeIfAbsent(Class.forName(HIVE_STATEMENT), AsyncStatement::inspect).supported;
+        } catch (ClassNotFoundException e) {
+            log.debug(HIVE_STATEMENT + " not found");
+            return false;
+        }
+    }
+
+    /**
+     * Submit a statement for asynchronous execution.
+     *
+     * @param stmt - statement borrowed from the pool.
+     * @param sql  - HQL statement to execute.
+     * @return the running statement, or <code>null</code> if the driver does not support asynchronous execution,
+     * in which case nothing has been executed.
+     * @throws SQLException if the statement could not be submitted.
+     */
+    static AsyncStatement start(Statement stmt, String sql) throws SQLException {
+        Statement driverStmt = stmt instanceof DelegatingStatement ? ((DelegatingStatement) stmt).getInnermostDelegate() : stmt;
+        return driverStmt == null ? null : start(stmt, driverStmt, sql);
+    }
+
+    /**
+     * @param stmt       - statement borrowed from the pool.
+     * @param driverStmt - the driver's own statement, that <code>stmt</code> wraps.
+     * @param sql        - HQL statement to execute.
+     */
+    static AsyncStatement start(Statement stmt, Object driverStmt, String sql) throws SQLException {
+        Driver driver = drivers.computeIfAbsent(driverStmt.getClass(), AsyncStatement::inspect);
+        if (!driver.supported) return null;
+        try {
+            driver.executeAsync.invoke(driverStmt, sql);
+        } catch (InvocationTargetException e) {
+            throw sqlException(e);
+        } catch (IllegalAccessException e) {
+            throw new SQLException("Unable to execute statement asynchronously", e);
+        }
+        return new AsyncStatement(stmt, driverStmt, driver);
+    }
+
+    private AsyncStatement(Statement stmt, Object driverStmt, Driver driver) {
+        this.stmt = stmt;
+        this.driverStmt = driverStmt;
+        this.driver = driver;
+    }
+
+    /**
+     * Poll the statement until it is no longer running.
+     *
+     * @param poller   - thread that polls the statement.
+     * @param interval - interval (milliseconds) between polls.
+     * @return future completed once the statement has completed, exceptionally if it failed or was cancelled.
+     */
+    CompletableFuture<Void> whenDone(ScheduledExecutorService poller, long interval) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicReference<ScheduledFuture<?>> polling = new AtomicReference<>();
+        polling.set(poller.scheduleWithFixedDelay(() -> {
+            if (done.isDone()) return;
+            try {
+                if (isRunning()) return;
+                stmt.getUpdateCount();
+                done.complete(null);
+            } catch (SQLException | RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+            ScheduledFuture<?> f = polling.get();
+            if (f != null) f.cancel(false);
+        }, 0, interval, TimeUnit.MILLISECONDS));
+        // The first poll may complete the future before the ScheduledFuture is set.
+        if (done.isDone()) polling.get().cancel(false);
+        return done;
+    }
+
+    /**
+     * @return <code>true</code> while HiveServer2 reports the statement as running, one GetOperationStatus call.
+     */
+    boolean isRunning() throws SQLException {
+        try {
+            Object client = driver.client.get(driverStmt);
+            Object handle = driver.handle.get(driverStmt);
+            if (client == null || handle == null) return false;
+            Object status = driver.getOperationStatus.invoke(client, driver.request.newInstance(handle));
+            Object state = driver.getOperationState.invoke(status);
+            return state != null && RUNNING.contains(((Enum<?>) state).name());
+        } catch (InvocationTargetException e) {
+            throw sqlException(e);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new SQLException("Unable to get status of asynchronous statement", e);
+        }
+    }
+
+    private static SQLException sqlException(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof SQLException ? (SQLException) cause : new SQLException(String.valueOf(cause), cause);
+    }
+
+    /**
+     * Look up the asynchronous API of a driver's statement class.
+     */
+    private static Driver inspect(Class<?> cls) {
+        try {
+            Method executeAsync = cls.getMethod("executeAsync", String.class);
+            Field client = field(cls, "client");
+            Field handle = field(cls, "stmtHandle");
+            Method getOperationStatus = null;
+            for (Method m : client.getType().getMethods())
+                if (m.getName().equals("GetOperationStatus") && m.getParameterTypes().length == 1)
+                    getOperationStatus = m;
+            if (getOperationStatus == null) throw new NoSuchMethodException(client.getType().getName() + ".GetOperationStatus");
+            Constructor<?> request = getOperationStatus.getParameterTypes()[0].getConstructor(handle.getType());
+            Method getOperationState = getOperationStatus.getReturnType().getMethod("getOperationState");
+            log.debug("Statements of " + cls.getName() + " will be executed asynchronously");
+            return new Driver(executeAsync, client, handle, getOperationStatus, request, getOperationState);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Statements of " + cls.getName() + " can not be executed asynchronously (" + e
+                    + ") - using Statement.execute()");
+            return new Driver(null, null, null, null, null, null);
+        }
+    }
+
+    private static Field field(Class<?> cls, String name) throws NoSuchFieldException {
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        throw new NoSuchFieldException(cls.getName() + "." + name);
+    }
+
+    private static final class Driver {
+        Driver(Method executeAsync, Field client, Field handle, Method getOperationStatus, Constructor<?> request,
+               Method getOperationState) {
+            this.supported = executeAsync != null;
+            this.executeAsync = executeAsync;
+            this.client = client;
+            this.handle = handle;
+            this.getOperationStatus = getOperationStatus;
+            this.request = request;
+            this.getOperationState = getOperationState;
+        }
+
+        final boolean supported;
+        final Method executeAsync;
+        final Field client;
+        final Field handle;
+        final Method getOperationStatus;
+        final Constructor<?> request;
+        final Method getOperationState;
+    }
+
+    private static final String HIVE_STATEMENT = "org.apache.hive.jdbc.HiveStatement";
+    // TOperationState values of a statement that has not finished.
+    private static final Set<String> RUNNING = new HashSet<>(Arrays.asList("INITIALIZED_STATE", "PENDING_STATE", "RUNNING_STATE"));
+    private static final Map<Class<?>, Driver> drivers = new ConcurrentHashMap<>();
+
+    private final Statement stmt;
+    private final Object driverStmt;
+    private final Driver driver;
+    private final static Logger log = LoggerFactory.getLogger(AsyncStatement.class);
+}
@@ -0,0 +1,194 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run one job configuration once for every combination of a set of parameter values, for example to backfill a
+ * range of dates for a list of regions.
+ * <p>
+ * The parameter matrix is given as one specification per parameter: -
+ * <pre>
+ * run_date=20170101..20170331
+ * region=emea,apac,amer
+ * </pre>
+ * Values are separated by commas, and a value of the form <code>from..to</code> is an inclusive range of dates
+ * (<code>yyyyMMdd</code>) or integers. A <code>run_date</code> parameter sets the <code>run_date</code> of each run,
+ * so <code>${hiveconf:run_date}</code> is substituted with it, and is also used for the run's journal and incremental
+ * cache entries.
+ * <p>
+ * The HQL files are read, parsed and analysed once, and each run executes a copy of the resulting TaskQueue (see
+ * {@link TaskQueue#copy(Map)}). Up to <code>backfill.maxConcurrentRuns</code> runs execute at the same time, their
+ * files sharing the worker and connection pools (see {@link ExecutorPool}, {@link DBSource}). Each run has its own
+ * result (and journal, so it can be resumed on its own), and a summary is logged once every run has finished.
+ */
+class Backfill {
+
+    static final String RUN_DATE = "run_date";
+
+    /**
+     * Parse a parameter matrix.
+     *
+     * @param specs - one <code>name=values</code> specification per parameter.
+     * @return every combination of parameter values, the values of the first parameter varying slowest.
+     * @throws HqlWrapperException if a specification is invalid.
+     */
+    static List<Map<String, String>> matrix(String[] specs) throws HqlWrapperException {
+        List<Map<String, String>> result = new ArrayList<>();
+        result.add(new LinkedHashMap<>());
+        Set<String> names = new HashSet<>();
+        for (String spec : specs) {
+            int i = spec.indexOf('=');
+            if (i <= 0)
+                throw new HqlWrapperException("Invalid backfill parameter: " + spec + " - expected name=values");
+            String name = spec.substring(0, i).trim();
+            if (!names.add(name))
+                throw new HqlWrapperException("Backfill parameter: " + name + " given more than once");
+            List<Map<String, String>> next = new ArrayList<>();
+            for (Map<String, String> combination : result) {
+                for (String value : values(spec.substring(i + 1))) {
+                    Map<String, String> m = new LinkedHashMap<>(combination);
+                    m.put(name, value);
+                    next.add(m);
+                }
+            }
+            result = next;
+        }
+        return result;
+    }
+
+    /**
+     * @return the values of a comma separated list of values and ranges.
+     */
+    static List<String> values(String spec) throws HqlWrapperException {
+        List<String> values = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            int r = part.indexOf("..");
+            if (r < 0) {
+                if (!part.isEmpty()) values.add(part);
+                continue;
+            }
+            String from = part.substring(0, r).trim();
+            String to = part.substring(r + 2).trim();
+            if (from.matches("\\d{8}") && to.matches("\\d{8}")) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+                format.setLenient(false);
+                Calendar date = Calendar.getInstance();
+                Date end;
+                try {
+                    date.setTime(format.parse(from));
+                    end = format.parse(to);
+                } catch (ParseException e) {
+                    throw new HqlWrapperException("Invalid date range: " + part);
+                }
+                if (date.getTime().after(end))
+                    throw new HqlWrapperException("Invalid date range: " + part);
+                for (; !date.getTime().after(end); date.add(Calendar.DAY_OF_MONTH, 1))
+                    values.add(format.format(date.getTime()));
+            } else {
+                long start, end;
+                try {
+                    start = Long.parseLong(from);
+                    end = Long.parseLong(to);
+                } catch (NumberFormatException e) {
+                    throw new HqlWrapperException("Invalid range: " + part);
+                }
+                if (start > end)
+                    throw new HqlWrapperException("Invalid range: " + part);
+                for (long n = start; n <= end; n++)
+                    values.add(Long.toString(n));
+            }
+        }
+        if (values.isEmpty())
+            throw new HqlWrapperException("No values in: " + spec);
+        return values;
+    }
+
+    /**
+     * Execute every run of the backfill.
+     *
+     * @param maxConcurrentRuns - maximum number of runs executing at the same time.
+     * @return the result of each run (<code>null</code> if its execution was interrupted), keyed by its parameters, in
+     * matrix order.
+     * @throws HqlWrapperException if the job configuration is invalid.
+     */
+    Map<Map<String, String>, TaskResult> run(int maxConcurrentRuns) throws HqlWrapperException {
+        TaskQueue template = JobPlan.taskQueue(root, Collections.emptyMap(), config);
+        log.info("Backfill of: " + root + " - " + matrix.size() + " run(s), " + Math.max(1, maxConcurrentRuns) + " at a time");
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService runs = Executors.newFixedThreadPool(Math.max(1, maxConcurrentRuns),
+                r -> new Thread(r, "HQL_Backfill-" + threads.incrementAndGet()));
+        Map<Map<String, String>, Future<TaskResult>> futures = new LinkedHashMap<>();
+        try {
+            for (Map<String, String> combination : matrix) {
+                Map<String, String> params = new HashMap<>(combination);
+                String runDate = combination.containsKey(RUN_DATE) ? combination.get(RUN_DATE) : Util.currentDate;
+                if (combination.containsKey(RUN_DATE) && !params.containsKey(Daemon.RUN_DATE_PARAM))
+                    params.put(Daemon.RUN_DATE_PARAM, runDate);
+                TaskQueue taskQueue = template.copy(params);
+                futures.put(combination, runs.submit(() -> {
+                    log.info("Backfill run: " + combination + " started");
+                    TaskResult result = controller.runJob(root, taskQueue, runDate, null, config);
+                    log.info("Backfill run: " + combination + " finished - result = " + result);
+                    return result;
+                }));
+            }
+            Map<Map<String, String>, TaskResult> results = new LinkedHashMap<>();
+            for (Map.Entry<Map<String, String>, Future<TaskResult>> e : futures.entrySet()) {
+                TaskResult result;
+                try {
+                    result = e.getValue().get();
+                } catch (ExecutionException ex) {
+                    log.error("Backfill run: " + e.getKey() + " failed", ex.getCause());
+                    result = TaskResult.FAILURE;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    result = null;
+                }
+                results.put(e.getKey(), result);
+            }
+            log.info(summary(results));
+            return results;
+        } finally {
+            runs.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of runs with each result, followed by the result of each run.
+     */
+    static String summary(Map<Map<String, String>, TaskResult> results) {
+        Map<TaskResult, Integer> counts = new TreeMap<>(Comparator.nullsLast(Comparator.naturalOrder()));
+        for (TaskResult result : results.values())
+            counts.merge(result, 1, Integer::sum);
+        StringBuilder s = new StringBuilder("Backfill summary: " + results.size() + " run(s) -");
+        for (Map.Entry<TaskResult, Integer> e : counts.entrySet())
+            s.append(" ").append(e.getKey()).append(": ").append(e.getValue());
+        for (Map.Entry<Map<String, String>, TaskResult> e : results.entrySet())
+            s.append("\n ").append(e.getKey()).append(" ").append(e.getValue());
+        return s.toString();
+    }
+
+    Backfill(Controller controller, RunConfig config, String root, List<Map<String, String>> matrix) {
+        this.controller = controller;
+        this.config = config;
+        this.root = root;
+        this.matrix = matrix;
+    }
+
+    private final Controller controller;
+    private final RunConfig config;
+    private final String root;
+    private final List<Map<String, String>> matrix;
+    private final static Logger log = LoggerFactory.getLogger(Backfill.class);
+}
@@ -7,11 +7,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
 
@@ -46,12 +46,23 @@ import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
 public class Controller extends Configured {
 
     private static Controller controller = null;
+    private static boolean runDateAppended = false;
     private final static Logger log = LoggerFactory.getLogger(Controller.class);
     private TaskQueue taskQueue = null;
+    private String[] backfill = null;
+    private volatile RunConfig runConfig = null;
 
     private void processCmdLine(String[] args) {
         Options options = new Options().addOption("j", "JobConfig", true, "Filename of the root of the job configuration directory (overrides JobConfig.root if set)");
         options.addOption("d", "DryRun", false, "Dryrun - parse and run the jobs but do not submit anything to Hive");
+        options.addOption("i", "InferParallelism", false, "Run files in the same directory concurrently when they do not read/write the same tables");
+        options.addOption("r", "resume", true, "Resume the run with the given run id, skipping the files that succeeded (requires journal.dir)");
+        options.addOption("f", "FailurePolicy", true, "What to do when a file fails: continue (default) runs everything that does not depend on it, fail-fast cancels the rest of the run");
+        options.addOption("n", "incremental", false, "Skip files whose HQL, parameters, run date and upstream files are unchanged since they last succeeded");
+        options.addOption("b", "backfill", true, "Run once for each combination of parameter values, e.g. -b run_date=20170101..20170331 -b region=emea,apac");
+        options.addOption("m", "maxConcurrentRuns", true, "Maximum number of backfill runs executing at the same time (overrides backfill.maxConcurrentRuns if set)");
+        options.addOption("D", "daemon", false, "Run as a daemon, executing the jobs submitted by DaemonClient until it is shut down");
+        options.addOption("c", "compile", false, "Compile the job configuration into the plan file (hql.planFile) used by later runs, and exit");
         options.addOption("h", "help", false, "Display help");
         CommandLineParser parser = new DefaultParser();
 
@@ -71,8 +82,24 @@ public class Controller extends Configured {
             System.exit(0);
         }
         getConf().setBoolean(DRY_RUN, cmd.hasOption("d"));
+        if (cmd.hasOption("i"))
+            getConf().setBoolean(INFER_PARALLELISM, true);
         if (cmd.hasOption("j"))
             getConf().set(HQL_FILE_ROOT_DIR, cmd.getOptionValue("j"));
+        if (cmd.hasOption("f"))
+            getConf().set(FAILURE_POLICY, cmd.getOptionValue("f"));
+        if (cmd.hasOption("n"))
+            getConf().setBoolean(INCREMENTAL, true);
+        if (cmd.hasOption("r"))
+            getConf().set(RESUME, cmd.getOptionValue("r"));
+        if (cmd.hasOption("D"))
+            getConf().setBoolean(DAEMON, true);
+        if (cmd.hasOption("c"))
+            getConf().setBoolean(COMPILE, true);
+        if (cmd.hasOption("b"))
+            backfill = cmd.getOptionValues("b");
+        if (cmd.hasOption("m"))
+            getConf().set(BACKFILL_MAX_CONCURRENT_RUNS, cmd.getOptionValue("m"));
     }
 
     /**
@@ -82,8 +109,13 @@ public class Controller extends Configured {
      * @throws HqlWrapperException If any error occurs in the execution.
      */
     public String getRoot() throws HqlWrapperException {
-        String hqlFileDirectory = getConf().get(HQL_FILE_ROOT_DIR);
+        return checkRoot(getConf().get(HQL_FILE_ROOT_DIR));
+    }
+
+    private static String checkRoot(String hqlFileDirectory) throws HqlWrapperException {
         log.debug("Checking job configuration root directory: " + hqlFileDirectory);
+        if (hqlFileDirectory == null)
+            throw new HqlWrapperException("Job Configuration root not set");
         if (!FileUtil.exists(hqlFileDirectory))
             throw new HqlWrapperException("Job Configuration root: " + hqlFileDirectory + " file does not exist");
 
@@ -104,39 +136,29 @@ public class Controller extends Configured {
      * Executes a TaskQueue
      *
      * @param taskQueue The TaskQueue to execute
+     * @param journal   RunJournal to record the run in, or <code>null</code>
+     * @param config    RunConfig of the run
+     * @return TaskResult of the TaskQueue, <code>null</code> if its execution was interrupted.
+     * @throws HqlWrapperException if the TaskQueue's dependency graph is invalid.
      */
-    private void executeTaskQueue(TaskQueue taskQueue) {
+    private TaskResult executeTaskQueue(TaskQueue taskQueue, RunJournal journal, RunConfig config) throws HqlWrapperException {
         log.debug("EXECUTE TASK QUEUE: " + taskQueue.getLabel());
-        ExecutorService executor = ExecutorPool.getExecutor(taskQueue.getLabel());
-        TaskExecutor taskExecutor = new TaskExecutor(taskQueue);
-        Future<TaskResult> task = executor.submit(taskExecutor);
-        int sleepInterval = getConf().getInt(MONITOR_INTERVAL, 10) * 1000;
+        TaskExecutor taskExecutor = new TaskExecutor(taskQueue, journal, config);
         TaskResult result = null;
-        while (true) {
-            ExecutorPool.monitor();
-            try {
-                Thread.sleep(sleepInterval);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
-            }
-            if (task.isDone()) {
-                try {
-                    result = task.get();
-                } catch (CancellationException e) {
-                    log.error("Top level task - Cancelled");
-                } catch (ExecutionException e) {
-                    log.error("Top level task - ExecutionException");
-                    e.printStackTrace();
-                } catch (InterruptedException e) {
-                    log.error("Top level task - InterruptedException");
-                } finally {
-                    log.info("Top level task Finished - result = " + result);
-                }
-                break;
-            }
+        try {
+            result = taskExecutor.execute().get();
+        } catch (CancellationException e) {
+            log.error("Top level task - Cancelled");
+        } catch (ExecutionException e) {
+            log.error("Top level task - ExecutionException");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            log.error("Top level task - InterruptedException");
+        } finally {
+            log.info("Top level task Finished - result = " + result);
         }
-        ExecutorPool.cleanUp();
         log.info("******************* EXECUTE TASK QUEUE END *******************");
+        return result;
     }
 
     public void run() throws HqlWrapperException {
@@ -146,26 +168,202 @@ public class Controller extends Configured {
     public void run(Map<String, String> params) throws HqlWrapperException {
         log.info("******************* HQL WRAPPER CONTROLLER START *******************");
         String start_ts = Util.getCurrentTimeStamp();
-        if (getConf().getBoolean(DRY_RUN, false))
+        RunConfig config = snapshot();
+        if (config.isDryRun())
             log.info("** Dry Run is set **");
+        String runDate = Util.currentDate;
+        // A resumed run picks up the root directory, parameters and run date of the run it resumes.
+        RunJournal resumed = null;
+        if (getConf().get(RESUME) != null) {
+            if (config.getJournalDir() == null)
+                throw new HqlWrapperException("Resume requires " + JOURNAL_DIR + " to be set");
+            resumed = RunJournal.load(config.getJournalDir(), getConf().get(RESUME));
+            log.info("Resuming run: " + resumed.getRunId());
+            getConf().set(HQL_FILE_ROOT_DIR, resumed.getRoot());
+            if (params.isEmpty())
+                params = resumed.getParams();
+            if (resumed.getRunDate() != null)
+                runDate = resumed.getRunDate();
+        }
         // Append current date (YYYYMMDD) to connection URL so HQL can use ${hiveconf:run_date} in scripts.
+        addRunDateAppender(runDate);
+        // Open connections while the TaskQueue is being built, so the first tasks do not pay for the HS2 handshake.
+        if (!config.isDryRun())
+            DBSource.preWarm(config);
+        ExecutorPool.startMonitor(config.getMonitorInterval());
+        try {
+            String root = getRoot();
+            checkRoot(root);
+            taskQueue = JobPlan.taskQueue(root, params, config);
+            runJob(root, taskQueue, runDate, resumed, config);
+        } finally {
+            ExecutorPool.stopMonitor();
+            ExecutorPool.cleanUp();
+            DBSource.close();
+            runConfig = null;
+        }
+        log.info("******************* HQL WRAPPER CONTROLLER END *******************");
+        if (config.isMailOnSuccess()) {
+            log.debug("Sending controller end email");
+            Util.SendMail(config, config.getMailFrom(), config.getMailTo(), "Framework end", "Start: " + start_ts + " End: " + Util.getCurrentTimeStamp());
+        }
+    }
+
+    /**
+     * Compile the job configuration into its plan file (see {@link JobPlan}), so that later runs load it from there.
+     *
+     * @throws HqlWrapperException if <code>hql.planFile</code> is not set, or the job configuration is invalid.
+     */
+    public void compile() throws HqlWrapperException {
+        RunConfig config = snapshot();
+        try {
+            if (config.getPlanFile() == null)
+                throw new HqlWrapperException("Compile requires " + HQL_PLAN_FILE + " to be set");
+            JobPlan.compile(getRoot(), config.getPlanFile(), config);
+        } finally {
+            runConfig = null;
+        }
+    }
+
+    /**
+     * Run the job configuration once for each combination of parameter values (see {@link Backfill}).
+     *
+     * @param matrix every combination of parameter values to run with.
+     * @return the result of each run, keyed by its parameters.
+     * @throws HqlWrapperException if the job configuration is invalid.
+     */
+    public Map<Map<String, String>, TaskResult> runBackfill(List<Map<String, String>> matrix) throws HqlWrapperException {
+        log.info("******************* HQL WRAPPER CONTROLLER START *******************");
+        String start_ts = Util.getCurrentTimeStamp();
+        RunConfig config = snapshot();
+        if (config.isDryRun())
+            log.info("** Dry Run is set **");
+        if (getConf().get(RESUME) != null)
+            throw new HqlWrapperException("Resume can not be combined with backfill, resume the failed run(s) individually");
+        addRunDateAppender(Util.currentDate);
+        if (!config.isDryRun())
+            DBSource.preWarm(config);
+        ExecutorPool.startMonitor(config.getMonitorInterval());
+        Map<Map<String, String>, TaskResult> results;
+        try {
+            results = new Backfill(this, config, getRoot(), matrix).run(getConf().getInt(BACKFILL_MAX_CONCURRENT_RUNS, DEFAULT_BACKFILL_MAX_CONCURRENT_RUNS));
+        } finally {
+            ExecutorPool.stopMonitor();
+            ExecutorPool.cleanUp();
+            DBSource.close();
+            runConfig = null;
+        }
+        log.info("******************* HQL WRAPPER CONTROLLER END *******************");
+        if (config.isMailOnSuccess()) {
+            log.debug("Sending controller end email");
+            Util.SendMail(config, config.getMailFrom(), config.getMailTo(), "Framework end",
+                    "Start: " + start_ts + " End: " + Util.getCurrentTimeStamp() + "\n" + Backfill.summary(results));
+        }
+        return results;
+    }
+
+    /**
+     * Run the HQL files under one root directory.
+     * <p>
+     * The shared worker pool (see {@link ExecutorPool}) and connection pool (see {@link DBSource}) are used but left
+     * open, so several jobs can run at the same time and one after another (see {@link Daemon}).
+     *
+     * @param root    root directory containing the HQL files.
+     * @param params  parameters substituted into the HQL.
+     * @param runDate <code>run_date</code> of the run.
+     * @param resumed journal of the run being resumed, or <code>null</code>.
+     * @param config  RunConfig of the run.
+     * @return TaskResult of the job, <code>null</code> if its execution was interrupted.
+     * @throws HqlWrapperException if the root directory or the dependency graph of its files is invalid.
+     */
+    TaskResult runJob(String root, Map<String, String> params, String runDate, RunJournal resumed, RunConfig config)
+            throws HqlWrapperException {
+        checkRoot(root);
+        return runJob(root, JobPlan.taskQueue(root, params, config), runDate, resumed, config);
+    }
+
+    /**
+     * Run a TaskQueue built from a root directory, see {@link #runJob(String, Map, String, RunJournal, RunConfig)}.
+     *
+     * @param root      root directory the TaskQueue was built from.
+     * @param taskQueue TaskQueue to run, with the parameters to substitute into its HQL.
+     * @param runDate   <code>run_date</code> of the run.
+     * @param resumed   journal of the run being resumed, or <code>null</code>.
+     * @param config    RunConfig of the run.
+     * @return TaskResult of the job, <code>null</code> if its execution was interrupted.
+     * @throws HqlWrapperException if the dependency graph of the TaskQueue is invalid, or its HQL uses a variable
+     *                             that has no value (see {@link #checkParams(TaskGraph)}).
+     */
+    TaskResult runJob(String root, TaskQueue taskQueue, String runDate, RunJournal resumed, RunConfig config)
+            throws HqlWrapperException {
+        boolean dryRun = config.isDryRun();
+        Map<String, String> params = taskQueue.getParams();
+        if (dryRun)
+            log.info("Task graph: " + taskQueue.getGraph());
+        checkParams(taskQueue.getGraph());
+        RunJournal journal = null;
+        if (!dryRun && config.getJournalDir() != null)
+            journal = RunJournal.create(config.getJournalDir(), root, params, runDate,
+                    resumed == null ? null : resumed.getRunId());
+        if (resumed != null)
+            log.info("Skipping " + resumed.markSucceeded(taskQueue.getGraph(), journal) + " file(s) that succeeded in run: " + resumed.getRunId());
+        IncrementalCache cache = null;
+        if (config.isIncremental()) {
+            cache = IncrementalCache.load(config.getIncrementalCacheFile(), root, taskQueue.getGraph(), runDate);
+            log.info("Incremental - skipping " + cache.markUnchanged(journal) + " unchanged file(s)");
+        }
+        TaskResult result = executeTaskQueue(taskQueue, journal, config);
+        if (cache != null && !dryRun)
+            cache.save();
+        if (journal != null)
+            journal.close();
+        return result;
+    }
+
+    /**
+     * Check, before anything is executed, that every variable in the HQL files of a graph has a value, from the
+     * parameters of its TaskQueue, a default (<code>${name:-default}</code>), an earlier <code>SET</code> in the file,
+     * or Hive (<code>${hiveconf:name}</code>), see {@link HqlTemplate#unresolved(List, Map)}. Streamed files are not
+     * read twice, so are not checked.
+     *
+     * @throws HqlWrapperException naming each file and its unresolved variables.
+     */
+    private static void checkParams(TaskGraph graph) throws HqlWrapperException {
+        StringBuilder errors = new StringBuilder();
+        for (TaskNode node : graph.getNodes()) {
+            if (node.getTasks().size() != 0 || node.isStreamed()) continue;
+            Set<String> unresolved = HqlTemplate.unresolved(node.getTemplates(), graph.getQueue(node).getParams());
+            if (!unresolved.isEmpty())
+                errors.append(errors.length() == 0 ? "" : ", ").append(node.getId()).append(": ").append(unresolved);
+        }
+        if (errors.length() != 0)
+            throw new HqlWrapperException("Unresolved HQL variable(s) - " + errors);
+    }
+
+    /**
+     * Register the URLAppender that adds <code>run_date</code> to the connection URL, once. A Daemon does not use
+     * it, as connections outlive a single day, it substitutes <code>${hiveconf:run_date}</code> per job instead.
+     */
+    private static synchronized void addRunDateAppender(String runDate) {
+        if (runDateAppended) return;
+        runDateAppended = true;
         DBConnection.addURLAppender(url -> {
-                    url = url + "hiveconf:run_date=" + Util.currentDate;
+                    url = url + "hiveconf:run_date=" + runDate;
                     return url;
                 }
         );
-        taskQueue = new TaskQueue(getRoot(), params);
-        executeTaskQueue(taskQueue);
-        log.info("******************* HQL WRAPPER CONTROLLER END *******************");
-        if (getConf().getBoolean(SEND_MAIL_ON_SUCCESS, false)) {
-            log.debug("Sending controller end email");
-            Util.SendMail(getConf().get(SEND_MAIL_FROM), getConf().getStrings(SEND_MAIL_TO), "Framework end", "Start: " + start_ts + " End: " + Util.getCurrentTimeStamp());
-        }
     }
 
     private void run(String[] args) throws HqlWrapperException {
         processCmdLine(args);
-        run();
+        if (getConf().getBoolean(COMPILE, false))
+            compile();
+        else if (getConf().getBoolean(DAEMON, false))
+            new Daemon(this).run();
+        else if (backfill != null)
+            runBackfill(Backfill.matrix(backfill));
+        else
+            run();
     }
 
     public static Controller getInstance() {
@@ -189,6 +387,35 @@ public class Controller extends Configured {
         this(null);
     }
 
+    /**
+     * Take a snapshot of the configuration (see {@link RunConfig}) at the start of a run, to be used until the next
+     * snapshot is taken.
+     *
+     * @return RunConfig.
+     * @throws HqlWrapperException if the configuration is not valid.
+     */
+    RunConfig snapshot() throws HqlWrapperException {
+        RunConfig config = RunConfig.from(getConf());
+        FileUtil.setFileSystem(config);
+        runConfig = config;
+        return config;
+    }
+
+    /**
+     * @return the RunConfig of the current run (see {@link #snapshot()}).
+     * @throws IllegalStateException if there is no current run.
+     */
+    RunConfig getRunConfig() {
+        RunConfig config = runConfig;
+        if (config == null)
+            throw new IllegalStateException("No run in progress");
+        return config;
+    }
+
+    /**
+     * @return the TaskQueue of the last run started by this Controller's run(), <code>null</code> before then. The
+     * jobs of a {@link Daemon} or {@link Backfill} run concurrently, each with its own TaskQueue, so do not set it.
+     */
     public TaskQueue getTaskQueue() {
         return taskQueue;
     }
@@ -15,6 +15,14 @@ public class ControllerConfiguration extends Configuration {
 
     // Configuration keys specific to ControllerConfiguration.
     static final String DRY_RUN = "Controller.DryRun";
+    static final String INFER_PARALLELISM = "Controller.InferParallelism";
+    static final String RESUME = "Controller.Resume";
+    static final String INCREMENTAL = "Controller.Incremental";
+    static final String FAILURE_POLICY = "Controller.FailurePolicy";
+    static final String DAEMON = "Controller.Daemon";
+    static final String COMPILE = "Controller.Compile";
+    static final String JOURNAL_DIR = "journal.dir";
+    static final String INCREMENTAL_CACHE_FILE = "incremental.cacheFile";
     static final String HQL_FILESYSTEM = "Hql.FileSystem";
     static final String HQL_FILE_ROOT_DIR = "JobConfig.root";
     static final String MONITOR_INTERVAL = "monitor.interval";
@@ -26,9 +34,60 @@ public class ControllerConfiguration extends Configuration {
     static final String JDBC_USERNAME = "jdbc.username";
     static final String JDBC_PASSWORD = "jdbc.password";
     static final String JDBC_URL = "jdbc.url";
+    static final String JDBC_ENDPOINTS = "jdbc.endpoints";
+    static final String JDBC_HEALTH_CHECK_INTERVAL_MILLIS = "jdbc.healthCheckIntervalMillis";
     static final String KERBOROS_PRINCIPAL = "kerboros.principal";
+    static final String KERBOROS_KEYTAB = "kerboros.keytab";
     static final String MAIL_HOSTNAME = "mail.hostname";
+    static final String EXECUTOR_MAX_CONCURRENT_TASKS = "executor.maxConcurrentTasks";
+    static final String EXECUTOR_ASYNC = "executor.async";
+    static final String EXECUTOR_ASYNC_THREADS = "executor.asyncThreads";
+    static final String EXECUTOR_VIRTUAL_THREADS = "executor.virtualThreads";
+    static final String POOL_MAX_TOTAL = "pool.maxTotal";
+    static final String POOL_MIN_IDLE = "pool.minIdle";
+    static final String POOL_MAX_WAIT_MILLIS = "pool.maxWaitMillis";
+    static final String POOL_VALIDATION_QUERY = "pool.validationQuery";
+    static final String POOL_EVICTION_INTERVAL_MILLIS = "pool.timeBetweenEvictionRunsMillis";
+    static final String POOL_MIN_EVICTABLE_IDLE_MILLIS = "pool.minEvictableIdleTimeMillis";
+    static final String POOL_PRE_WARM = "pool.preWarm";
+    static final String SESSION_STICKY = "session.sticky";
+    static final String SESSION_STICKY_FILES = "session.stickyFiles";
+    static final String SESSION_MAX_PINNED = "session.maxPinned";
+    static final String HQL_STATEMENT_TIMEOUT = "hql.statementTimeout";
+    static final String HQL_TASK_TIMEOUT = "hql.taskTimeout";
+    static final String HQL_STREAMING_THRESHOLD = "hql.streamingThreshold";
+    static final String HQL_LOAD_THREADS = "hql.loadThreads";
+    static final String HQL_POLL_INTERVAL_MILLIS = "hql.pollIntervalMillis";
+    static final String HQL_PLAN_FILE = "hql.planFile";
+    static final String RETRY_MAX_ATTEMPTS = "retry.maxAttempts";
+    static final String RETRY_INITIAL_BACKOFF_MILLIS = "retry.initialBackoffMillis";
+    static final String RETRY_MAX_BACKOFF_MILLIS = "retry.maxBackoffMillis";
+    static final String RETRY_ERROR_CODES = "retry.errorCodes";
+    static final String RETRY_TRANSIENT_PATTERN = "retry.transientPattern";
+    static final String DAEMON_PORT = "daemon.port";
+    static final String BACKFILL_MAX_CONCURRENT_RUNS = "backfill.maxConcurrentRuns";
+    static final String DAEMON_TOKEN = "daemon.token";
 
     // Default values if config missing
     static final String DEFAULT_HQL_FILESYSTEM = "file:///";
+    static final String FAILURE_POLICY_CONTINUE = "continue";
+    static final String FAILURE_POLICY_FAIL_FAST = "fail-fast";
+    static final String DEFAULT_INCREMENTAL_CACHE_FILE = System.getProperty("user.home") + "/.hqlwrapper/incremental.cache";
+    static final int DEFAULT_EXECUTOR_MAX_CONCURRENT_TASKS = 10;
+    static final int DEFAULT_POOL_MAX_TOTAL = DEFAULT_EXECUTOR_MAX_CONCURRENT_TASKS;
+    static final long DEFAULT_JDBC_HEALTH_CHECK_INTERVAL_MILLIS = 30 * 1000L;
+    static final long DEFAULT_POOL_MIN_EVICTABLE_IDLE_MILLIS = 30 * 60 * 1000L;
+    static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+    static final long DEFAULT_RETRY_INITIAL_BACKOFF_MILLIS = 1000L;
+    static final long DEFAULT_RETRY_MAX_BACKOFF_MILLIS = 60 * 1000L;
+    static final int DEFAULT_DAEMON_PORT = 10100;
+    static final int DEFAULT_BACKFILL_MAX_CONCURRENT_RUNS = 4;
+    static final long DEFAULT_HQL_STREAMING_THRESHOLD = 64 * 1024 * 1024L;
+    static final int DEFAULT_HQL_LOAD_THREADS = 8;
+    static final int DEFAULT_EXECUTOR_ASYNC_THREADS = 4;
+    static final long DEFAULT_HQL_POLL_INTERVAL_MILLIS = 1000L;
+    static final String DEFAULT_RETRY_ERROR_CODES = "10041";
+    static final String DEFAULT_RETRY_TRANSIENT_PATTERN =
+            "TTransportException|SocketException|SocketTimeoutException|Connection reset|Broken pipe|Connection refused"
+                    + "|LockException|ZooKeeper|KeeperException|lock.*(timed out|can ?not be acquired)";
 }
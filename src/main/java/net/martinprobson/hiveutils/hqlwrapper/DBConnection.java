@@ -1,7 +1,6 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
 import org.apache.commons.dbcp2.ConnectionFactory;
-import org.apache.hadoop.conf.Configured;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,7 +10,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.JDBC_DRIVERS;
 
 /**
  * DBConnection implements ConnectionFactory (see
@@ -20,19 +19,57 @@ import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
  *
  * @author martinr
  */
-public class DBConnection extends Configured implements ConnectionFactory {
+public class DBConnection implements ConnectionFactory {
 
     /**
      * Gives a new DB Connection.
      * <p>
      * Append current date (YYYYMMDD) to connection URL so HQL can use ${hiveconf:run_date} in scripts.
+     *
+     * @param config - RunConfig to take the JDBC driver, URL and credentials from.
      */
-    DBConnection() {
-        super(new ControllerConfiguration());
+    DBConnection(RunConfig config) {
         log = LoggerFactory.getLogger(DBConnection.class);
-        url = buildURL();
-        username = getConf().get(JDBC_USERNAME);
-        password = getConf().get(JDBC_PASSWORD);
+        this.config = config;
+        url = buildURL(config);
+    }
+
+    /**
+     * Gives a new DB Connection to one of the <code>jdbc.endpoints</code>.
+     *
+     * @param config   - RunConfig to take the JDBC driver, URL and credentials from.
+     * @param endpoint - <code>host:port</code> of the HiveServer2 instance, replacing the host(s) of the URL.
+     */
+    DBConnection(RunConfig config, String endpoint) {
+        this(config);
+        url = withEndpoint(url, endpoint);
+    }
+
+    /**
+     * Replace the host(s) and port(s) of a connection URL, e.g. <code>jdbc:hive2://hs2a:10000/db;principal=...</code>
+     * with endpoint <code>hs2b:10000</code> gives <code>jdbc:hive2://hs2b:10000/db;principal=...</code>.
+     */
+    static String withEndpoint(String url, String endpoint) {
+        int start = url.indexOf("//") + 2;
+        int end = start;
+        while (end < url.length() && "/;?#".indexOf(url.charAt(end)) < 0)
+            end++;
+        return url.substring(0, start) + endpoint + url.substring(end);
+    }
+
+    /**
+     * @return the database a connection to the URL starts in, e.g. <code>db</code> for
+     * <code>jdbc:hive2://hs2a:10000/db;principal=...</code>, <code>default</code> if the URL names none.
+     */
+    static String database(String url) {
+        int start = url.indexOf("//") + 2;
+        while (start < url.length() && "/;?#".indexOf(url.charAt(start)) < 0)
+            start++;
+        if (start >= url.length() || url.charAt(start) != '/') return DEFAULT_DATABASE;
+        int end = ++start;
+        while (end < url.length() && ";?#".indexOf(url.charAt(end)) < 0)
+            end++;
+        return end == start ? DEFAULT_DATABASE : url.substring(start, end);
     }
 
 
@@ -42,8 +79,13 @@ public class DBConnection extends Configured implements ConnectionFactory {
     @Override
     public Connection createConnection() throws SQLException {
         log.trace("Get connection: URL: " + url + " User: " + username);
-        Kerboros.auth();
-        return DriverManager.getConnection(url, username, password);
+        try {
+            return Kerboros.doAs(config, () -> DriverManager.getConnection(url, username, password));
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Unable to connect as Kerboros user", e);
+        }
     }
 
     /**
@@ -67,8 +109,8 @@ public class DBConnection extends Configured implements ConnectionFactory {
      * <li><pre>hive_var_list</pre>is a semicolon separated list of key=value pairs of Hive variables for this session.
      * </ul>
      */
-    private String buildURL() {
-        String drivers = getConf().get(JDBC_DRIVERS);
+    private String buildURL(RunConfig config) {
+        String drivers = config.getJdbcDrivers();
         if (drivers != null) {
             log.debug("Got JDBC Driver: " + drivers);
             System.setProperty(JDBC_DRIVERS, drivers);
@@ -81,7 +123,7 @@ public class DBConnection extends Configured implements ConnectionFactory {
             log.debug("JDBC Driver " + drivers + " loaded successfully");
 
         }
-        url = getConf().get(JDBC_URL);
+        url = config.getJdbcUrl();
         // Allow all the registered callback classes to modify the URL as required
         if (drivers != null) {
 
@@ -90,8 +132,8 @@ public class DBConnection extends Configured implements ConnectionFactory {
                 url = appender.appendURL(url) + ";";
             }
         }
-        username = getConf().get(JDBC_USERNAME);
-        password = getConf().get(JDBC_PASSWORD);
+        username = config.getJdbcUsername();
+        password = config.getJdbcPassword();
 
         return url;
     }
@@ -100,13 +142,15 @@ public class DBConnection extends Configured implements ConnectionFactory {
     /**
      * Stub for testing only.
      */
-    public static void main(String[] args) throws SQLException {
-        DBConnection dbc = new DBConnection();
+    public static void main(String[] args) throws SQLException, HqlWrapperException {
+        DBConnection dbc = new DBConnection(RunConfig.from(new ControllerConfiguration()));
         dbc.createConnection();
     }
 
+    static final String DEFAULT_DATABASE = "default";
     private static List<URLAppender> appenders = new ArrayList<>();
     private static Logger log = LoggerFactory.getLogger(DBConnection.class);
+    private final RunConfig config;
     private String url;
     private String username;
     private String password;
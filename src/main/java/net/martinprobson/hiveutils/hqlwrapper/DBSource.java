@@ -1,32 +1,88 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
 import org.apache.commons.dbcp2.ConnectionFactory;
+import org.apache.commons.dbcp2.DelegatingConnection;
 import org.apache.commons.dbcp2.PoolableConnection;
 import org.apache.commons.dbcp2.PoolableConnectionFactory;
 import org.apache.commons.dbcp2.PoolingDataSource;
-import org.apache.commons.pool2.ObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
- * Handles the setup of a data source used in connection pool.
+ * Handles the setup of the data source used in connection pool.
  * <p>
+ * A single pool is shared by every task in a run, it is built on first use and released by {@link #close()}.
+ * The pool is sized via the following configuration parameters: -
+ * <ul>
+ * <li><code>pool.maxTotal</code> - maximum number of connections (active plus idle).
+ * <li><code>pool.minIdle</code> - minimum number of idle connections the evictor will maintain.
+ * <li><code>pool.maxWaitMillis</code> - how long a borrower waits for a free connection (-1 waits indefinitely).
+ * <li><code>pool.validationQuery</code> - query used to validate connections on borrow and while idle.
+ * <li><code>pool.timeBetweenEvictionRunsMillis</code> / <code>pool.minEvictableIdleTimeMillis</code> - idle connection eviction.
+ * </ul>
+ * <p>
+ * When <code>jdbc.endpoints</code> is set, there is a pool, sized as above, for each HiveServer2 endpoint, and
+ * connections are balanced across them by a {@link RoutingDataSource}.
+ * <p>
+ * The pool keeps the {@link SessionState} of each idle connection, so the settings a task applied to a connection are
+ * known to the next task that borrows it.
  */
 public class DBSource {
 
-    public static DataSource setupDataSource() {
+    // One pool for jdbc.url, or one per jdbc.endpoints endpoint.
+    private static final List<GenericObjectPool<PoolableConnection>> connectionPools = new ArrayList<>();
+    private static DataSource dataSource = null;
+    private static RoutingDataSource router = null;
+    private static Semaphore pinPermits = null;
+    // Keyed by the pooled connection, so an entry goes when the pool destroys its connection.
+    private static final Map<Connection, SessionState> sessionStates = new WeakHashMap<>();
+
+    /**
+     * Return the shared DataSource, building the connection pool from a RunConfig on first use.
+     *
+     * @param runConfig - RunConfig to size the pool and open connections from.
+     * @return DataSource backed by the shared connection pool.
+     */
+    static synchronized DataSource getDataSource(RunConfig runConfig) {
+        if (dataSource == null)
+            setupDataSource(runConfig);
+        return dataSource;
+    }
+
+    private static void setupDataSource(RunConfig runConfig) {
+        String[] endpoints = runConfig.getJdbcEndpoints();
+        if (endpoints.length == 0) {
+            dataSource = dataSource(setupPool(runConfig, new DBConnection(runConfig)));
+            return;
+        }
+        List<RoutingDataSource.Endpoint> routes = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            DBConnection connectionFactory = new DBConnection(runConfig, endpoint);
+            GenericObjectPool<PoolableConnection> pool = setupPool(runConfig, connectionFactory);
+            routes.add(new RoutingDataSource.Endpoint(endpoint, dataSource(pool), connectionFactory, pool::getNumActive));
+        }
+        String validationQuery = runConfig.getPoolValidationQuery();
+        router = new RoutingDataSource(routes, validationQuery == null ? "select 1" : validationQuery,
+                runConfig.getHealthCheckIntervalMillis());
+        dataSource = router;
+    }
+
+    private static GenericObjectPool<PoolableConnection> setupPool(RunConfig runConfig, ConnectionFactory connectionFactory) {
         //
-        // First, we'll create a ConnectionFactory that the
+        // The ConnectionFactory (a DBConnection) is what the
         // pool will use to create Connections.
-        // We'll use the DriverManagerConnectionFactory,
-        // using the connect string passed in the command line
-        // arguments.
         //
 
-        ConnectionFactory connectionFactory =
-                new DBConnection();
-
         //
         // Next we'll create the PoolableConnectionFactory, which wraps
         // the "real" Connections created by the ConnectionFactory with
@@ -34,28 +90,189 @@ public class DBSource {
         //
         PoolableConnectionFactory poolableConnectionFactory =
                 new PoolableConnectionFactory(connectionFactory, null);
+        String validationQuery = runConfig.getPoolValidationQuery();
+        if (validationQuery != null)
+            poolableConnectionFactory.setValidationQuery(validationQuery);
 
         //
         // Now we'll need a ObjectPool that serves as the
         // actual pool of connections.
         //
-        // We'll use a GenericObjectPool instance, although
-        // any ObjectPool implementation will suffice.
+        // We'll use a GenericObjectPool instance, sized from the configuration.
         //
-        ObjectPool<PoolableConnection> connectionPool =
-                new GenericObjectPool<>(poolableConnectionFactory);
+        GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+        config.setMaxTotal(runConfig.getPoolMaxTotal());
+        config.setMaxIdle(runConfig.getPoolMaxTotal());
+        config.setMinIdle(runConfig.getPoolMinIdle());
+        config.setMaxWaitMillis(runConfig.getPoolMaxWaitMillis());
+        config.setTimeBetweenEvictionRunsMillis(runConfig.getPoolEvictionIntervalMillis());
+        config.setMinEvictableIdleTimeMillis(runConfig.getPoolMinEvictableIdleMillis());
+        config.setTestOnBorrow(validationQuery != null);
+        config.setTestWhileIdle(validationQuery != null);
+        config.setJmxEnabled(false);
+        GenericObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(poolableConnectionFactory, config);
 
         // Set the factory's pool property to the owning pool
         poolableConnectionFactory.setPool(connectionPool);
+        connectionPools.add(connectionPool);
+        log.debug("Connection pool created - maxTotal: " + connectionPool.getMaxTotal());
+        return connectionPool;
+    }
 
+    private static DataSource dataSource(GenericObjectPool<PoolableConnection> connectionPool) {
         //
         // Finally, we create the PoolingDriver itself,
         // passing in the object pool we created.
         //
+        PoolingDataSource<PoolableConnection> poolingDataSource = new PoolingDataSource<>(connectionPool);
+        // Needed by invalidate() to reach the pooled connection behind the connection handed out.
+        poolingDataSource.setAccessToUnderlyingConnectionAllowed(true);
+        return poolingDataSource;
+    }
+
+    /**
+     * @return the connection pools behind the shared DataSource, one per <code>jdbc.endpoints</code> endpoint (or
+     * one for <code>jdbc.url</code>), empty before the first getDataSource(RunConfig).
+     */
+    static synchronized List<GenericObjectPool<PoolableConnection>> getConnectionPools() {
+        return new ArrayList<>(connectionPools);
+    }
 
-        return new PoolingDataSource<>(connectionPool);
+    /**
+     * Open <code>pool.preWarm</code> connections (to each endpoint) in a background thread, so they are ready by the
+     * time the first task runs.
+     *
+     * @param runConfig - RunConfig of the run, the number of connections is capped at <code>pool.maxTotal</code>.
+     */
+    static void preWarm(RunConfig runConfig) {
+        final int connections = runConfig.getPoolPreWarm();
+        if (connections <= 0) return;
+        final List<GenericObjectPool<PoolableConnection>> pools;
+        synchronized (DBSource.class) {
+            getDataSource(runConfig);
+            pools = getConnectionPools();
+        }
+        Thread t = new Thread(() -> {
+            for (GenericObjectPool<PoolableConnection> pool : pools) {
+                int n = Math.min(connections, pool.getMaxTotal() < 0 ? connections : pool.getMaxTotal());
+                log.debug("Pre-warming " + n + " connection(s)");
+                for (int i = 0; i < n; i++) {
+                    try {
+                        pool.addObject();
+                    } catch (Exception e) {
+                        log.warn("Unable to pre-warm connection: " + e.getMessage());
+                        break;
+                    }
+                }
+                log.debug("Pre-warm complete - idle connections: " + pool.getNumIdle());
+            }
+        }, "HQL_PreWarm");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Return the permits for sessions pinned to a TaskQueue (see {@link StickySessions}), shared by every run, sized
+     * by <code>session.maxPinned</code> when first used. Pinned connections are borrowed from the pool like any
+     * other, so they count against <code>pool.maxTotal</code>, and as fewer connections than that can be pinned, the
+     * TaskNodes that do not have a pinned session can not be starved of connections.
+     *
+     * @param runConfig - RunConfig of the run.
+     * @return Semaphore holding one permit per session that may be pinned.
+     */
+    static synchronized Semaphore getPinPermits(RunConfig runConfig) {
+        if (pinPermits == null)
+            pinPermits = new Semaphore(runConfig.getMaxPinned());
+        return pinPermits;
+    }
+
+    /**
+     * Return the session state left on a connection by the tasks that used it before.
+     *
+     * @param conn - connection just borrowed from getDataSource(RunConfig).
+     * @return SessionState of the connection, empty if it is new or did not come from the pool.
+     */
+    static SessionState takeSessionState(Connection conn) {
+        Connection pooled = pooled(conn);
+        SessionState state = null;
+        if (pooled != null) {
+            synchronized (sessionStates) {
+                state = sessionStates.remove(pooled);
+            }
+        }
+        return state == null ? new SessionState() : state;
+    }
+
+    /**
+     * Keep the session state of a connection about to be returned to the pool, for the next task to borrow it.
+     *
+     * @param conn  - connection borrowed from getDataSource(RunConfig).
+     * @param state - its SessionState.
+     */
+    static void putSessionState(Connection conn, SessionState state) {
+        Connection pooled = pooled(conn);
+        if (pooled == null) return;
+        state.handOver();
+        synchronized (sessionStates) {
+            sessionStates.put(pooled, state);
+        }
+    }
+
+    private static Connection pooled(Connection conn) {
+        Connection delegate = conn instanceof DelegatingConnection ? ((DelegatingConnection<?>) conn).getDelegate() : null;
+        return delegate instanceof PoolableConnection ? delegate : null;
+    }
 
+    /**
+     * Remove a broken connection from the pool, rather than returning it to be handed out again.
+     * <p>
+     * A connection that did not come from the pool is simply closed.
+     *
+     * @param conn - connection borrowed from getDataSource(RunConfig).
+     */
+    public static void invalidate(Connection conn) {
+        List<GenericObjectPool<PoolableConnection>> pools = getConnectionPools();
+        try {
+            Connection delegate = pooled(conn);
+            if (delegate == null || pools.isEmpty()) {
+                conn.close();
+                return;
+            }
+            log.debug("Evicting connection from pool");
+            for (GenericObjectPool<PoolableConnection> pool : pools) {
+                try {
+                    pool.invalidateObject((PoolableConnection) delegate);
+                    return;
+                } catch (IllegalStateException e) {
+                    // Not a connection of this endpoint's pool.
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Error evicting connection: " + e.getMessage());
+        }
     }
 
+    /**
+     * Close the shared connection pool (and all idle connections), a subsequent getDataSource(RunConfig) will build a
+     * new one.
+     */
+    public static synchronized void close() {
+        if (router != null) router.close();
+        for (GenericObjectPool<PoolableConnection> connectionPool : connectionPools) {
+            log.debug("Closing connection pool - active: " + connectionPool.getNumActive() + " idle: " + connectionPool.getNumIdle());
+            connectionPool.close();
+        }
+        connectionPools.clear();
+        router = null;
+        dataSource = null;
+        pinPermits = null;
+        synchronized (sessionStates) {
+            sessionStates.clear();
+        }
+    }
+
+    private DBSource() {
+    }
 
+    private final static Logger log = LoggerFactory.getLogger(DBSource.class);
 }
@@ -0,0 +1,243 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+
+/**
+ * Long running HQL Wrapper process that executes jobs submitted by {@link DaemonClient}.
+ * <p>
+ * Starting a JVM, opening JDBC connections to HiveServer2 and logging on to Kerberos take longer than many of the jobs
+ * being run. A Daemon does that once, and keeps the worker pool (see {@link ExecutorPool}) and connection pool (see
+ * {@link DBSource}) open between jobs.
+ * <p>
+ * Each job is a root directory of HQL files plus its parameters, and is run in the same way as by the Controller, with
+ * its own TaskQueue, journal and <code>run_date</code>. Jobs submitted at the same time run at the same time, sharing
+ * the worker and connection pools.
+ * <h3>Protocol</h3>
+ * The Daemon listens on <code>daemon.port</code> of the loopback interface only. A client sends tab separated lines: -
+ * <ul>
+ * <li><code>token &lt;token&gt;</code> - required if <code>daemon.token</code> is set,
+ * <li><code>root &lt;directory&gt;</code> and <code>param &lt;name&gt; &lt;value&gt;</code> (any number), then
+ * <li>one of <code>run</code>, <code>status</code> or <code>shutdown</code>.
+ * </ul>
+ * A run is answered with <code>accepted &lt;job id&gt;</code> and, when the job completes,
+ * <code>result &lt;TaskResult&gt;</code>. Status is answered with a <code>job &lt;job id&gt; &lt;root&gt;</code> line for
+ * each running job and <code>end</code>. Any error is answered with <code>error &lt;message&gt;</code>.
+ */
+public class Daemon {
+
+    /**
+     * Listen for jobs, open the pools and start the progress monitor.
+     *
+     * @throws HqlWrapperException if the configuration is not valid or the Daemon can not listen on its port.
+     */
+    void start() throws HqlWrapperException {
+        Configuration conf = controller.getConf();
+        config = controller.snapshot();
+        int port = conf.getInt(DAEMON_PORT, DEFAULT_DAEMON_PORT);
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            throw new HqlWrapperException("Unable to listen on port: " + port + " - " + e.getMessage());
+        }
+        if (!config.isDryRun())
+            DBSource.preWarm(config);
+        ExecutorPool.startMonitor(config.getMonitorInterval());
+        acceptor = new Thread(this::accept, "HQL_Daemon");
+        acceptor.start();
+        log.info("Daemon listening on port: " + getPort());
+    }
+
+    /**
+     * @return port the Daemon is listening on.
+     */
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stop accepting jobs. Running jobs complete before the pools are closed (see awaitShutdown()).
+     */
+    void shutdown() {
+        log.info("Daemon shutdown requested");
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.warn("Error closing server socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait for shutdown() to be called and the running jobs to complete, then close the pools.
+     */
+    void awaitShutdown() {
+        try {
+            acceptor.join();
+            synchronized (jobs) {
+                while (!jobs.isEmpty()) {
+                    log.info("Waiting for " + jobs.size() + " job(s) to complete");
+                    jobs.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ExecutorPool.stopMonitor();
+            ExecutorPool.cleanUp();
+            DBSource.close();
+            log.info("Daemon stopped");
+        }
+    }
+
+    /**
+     * Start the Daemon and serve jobs until it is shut down.
+     *
+     * @throws HqlWrapperException if the Daemon can not listen on its port.
+     */
+    void run() throws HqlWrapperException {
+        start();
+        awaitShutdown();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> serve(socket), "HQL_Daemon-" + connections.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            } catch (SocketException e) {
+                log.debug("Server socket closed");
+            } catch (IOException e) {
+                log.error("Error accepting connection", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String token = null;
+            String root = null;
+            Map<String, String> params = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                switch (f[0]) {
+                    case "token":
+                        token = f.length > 1 ? f[1] : "";
+                        break;
+                    case "root":
+                        root = f.length > 1 ? f[1] : null;
+                        break;
+                    case "param":
+                        if (f.length > 2) params.put(f[1], f[2]);
+                        break;
+                    case "run":
+                    case "status":
+                    case "shutdown":
+                        if (!authorised(token)) {
+                            log.warn("Rejected " + f[0] + " request - invalid token");
+                            out.println("error\tinvalid token");
+                        } else if (f[0].equals("run")) {
+                            runJob(root, params, out);
+                        } else if (f[0].equals("status")) {
+                            synchronized (jobs) {
+                                for (Map.Entry<String, String> job : jobs.entrySet())
+                                    out.println("job\t" + job.getKey() + "\t" + job.getValue());
+                            }
+                            out.println("end");
+                        } else {
+                            // Acknowledged once the server socket is closed, so no job is accepted after it.
+                            shutdown();
+                            out.println("end");
+                        }
+                        return;
+                    default:
+                        out.println("error\tunknown request: " + f[0]);
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error serving connection", e);
+        }
+    }
+
+    private boolean authorised(String token) {
+        String expected = controller.getConf().get(DAEMON_TOKEN);
+        return expected == null || expected.isEmpty() || expected.equals(token);
+    }
+
+    private void runJob(String root, Map<String, String> params, PrintWriter out) {
+        if (root == null) {
+            out.println("error\troot not set");
+            return;
+        }
+        String id = "job-" + jobSequence.incrementAndGet();
+        synchronized (jobs) {
+            if (server.isClosed()) {
+                out.println("error\tdaemon is shutting down");
+                return;
+            }
+            jobs.put(id, root);
+        }
+        try {
+            out.println("accepted\t" + id);
+            // Connections outlive the day they were opened on, so run_date is substituted per job, not added to the URL.
+            // A job submitted with its own run_date journals and checks the incremental cache against that date.
+            String runDate = params.get(RUN_DATE_PARAM);
+            if (runDate == null) {
+                runDate = new SimpleDateFormat("yyyyMMdd").format(new Date());
+                params.put(RUN_DATE_PARAM, runDate);
+            }
+            log.info("Job: " + id + " root: " + root + " started");
+            TaskResult result = controller.runJob(root, params, runDate, null, config);
+            log.info("Job: " + id + " root: " + root + " finished - result = " + result);
+            out.println("result\t" + result);
+        } catch (HqlWrapperException | RuntimeException e) {
+            log.error("Job: " + id + " root: " + root + " failed", e);
+            out.println("error\t" + String.valueOf(e.getMessage()).replace('\n', ' '));
+        } finally {
+            synchronized (jobs) {
+                jobs.remove(id);
+                jobs.notifyAll();
+            }
+        }
+    }
+
+    Daemon(Controller controller) {
+        this.controller = controller;
+    }
+
+    static final String RUN_DATE_PARAM = "hiveconf:run_date";
+
+    private final Controller controller;
+    private final Map<String, String> jobs = new LinkedHashMap<>();
+    private final AtomicInteger jobSequence = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private RunConfig config;
+    private ServerSocket server;
+    private Thread acceptor;
+    private final static Logger log = LoggerFactory.getLogger(Daemon.class);
+}
@@ -0,0 +1,153 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.commons.cli.*;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+
+/**
+ * Thin client that submits a job to a running {@link Daemon} and waits for it to complete.
+ * <p>
+ * The exit status is 0 if every file in the job succeeded, 1 if the job completed with any other result and 2 if it
+ * could not be run at all (bad arguments, no Daemon listening, invalid root directory ...).
+ */
+public class DaemonClient {
+
+    /**
+     * Submit a job and wait for it to complete.
+     *
+     * @param port   - port the Daemon is listening on.
+     * @param token  - token expected by the Daemon, may be <code>null</code>.
+     * @param root   - root directory containing the HQL files.
+     * @param params - parameters substituted into the HQL.
+     * @return the TaskResult of the job, <code>null</code> if its execution was interrupted.
+     * @throws HqlWrapperException if the job could not be run.
+     */
+    static TaskResult submit(int port, String token, String root, Map<String, String> params) throws HqlWrapperException {
+        List<String> request = new ArrayList<>();
+        request.add(field("root", root));
+        for (Map.Entry<String, String> e : params.entrySet())
+            request.add(field("param", e.getKey()) + "\t" + field(null, e.getValue()));
+        request.add("run");
+        List<String> response = send(port, token, request);
+        for (String line : response) {
+            String[] f = line.split("\t", 2);
+            if (f[0].equals("result"))
+                return f[1].equals("null") ? null : TaskResult.valueOf(f[1]);
+        }
+        throw new HqlWrapperException("No result from daemon");
+    }
+
+    /**
+     * @return a <code>job &lt;job id&gt; &lt;root&gt;</code> line for each job the Daemon is running.
+     */
+    static List<String> status(int port, String token) throws HqlWrapperException {
+        List<String> request = new ArrayList<>();
+        request.add("status");
+        List<String> response = send(port, token, request);
+        response.remove("end");
+        return response;
+    }
+
+    /**
+     * Ask the Daemon to stop once its running jobs complete.
+     */
+    static void shutdown(int port, String token) throws HqlWrapperException {
+        List<String> request = new ArrayList<>();
+        request.add("shutdown");
+        send(port, token, request);
+    }
+
+    private static List<String> send(int port, String token, List<String> request) throws HqlWrapperException {
+        List<String> response = new ArrayList<>();
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            if (token != null)
+                out.println(field("token", token));
+            for (String line : request)
+                out.println(line);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("error\t"))
+                    throw new HqlWrapperException(line.substring("error\t".length()));
+                response.add(line);
+            }
+        } catch (IOException e) {
+            throw new HqlWrapperException("Unable to contact daemon on port: " + port + " - " + e.getMessage());
+        }
+        return response;
+    }
+
+    private static String field(String name, String value) throws HqlWrapperException {
+        if (value == null || value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            throw new HqlWrapperException("Invalid value: " + value);
+        return name == null ? value : name + "\t" + value;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options().addOption("j", "JobConfig", true, "Root directory of the job configuration to run");
+        options.addOption("p", "param", true, "Parameter (name=value) substituted into the HQL, may be repeated");
+        options.addOption("P", "port", true, "Port the daemon is listening on (overrides daemon.port if set)");
+        options.addOption("s", "status", false, "List the jobs the daemon is running");
+        options.addOption("x", "shutdown", false, "Stop the daemon once its running jobs complete");
+        options.addOption("h", "help", false, "Display help");
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        if (cmd.hasOption("h")) {
+            new HelpFormatter().printHelp("DaemonClient", options);
+            System.exit(0);
+        }
+        Configuration conf = new ControllerConfiguration();
+        String token = conf.get(DAEMON_TOKEN);
+        try {
+            int port = cmd.hasOption("P") ? Integer.parseInt(cmd.getOptionValue("P")) : conf.getInt(DAEMON_PORT, DEFAULT_DAEMON_PORT);
+            if (cmd.hasOption("s")) {
+                for (String job : status(port, token))
+                    System.out.println(job);
+                System.exit(0);
+            }
+            if (cmd.hasOption("x")) {
+                shutdown(port, token);
+                System.exit(0);
+            }
+            Map<String, String> params = new HashMap<>();
+            if (cmd.hasOption("p")) {
+                for (String p : cmd.getOptionValues("p")) {
+                    int i = p.indexOf('=');
+                    if (i <= 0)
+                        throw new HqlWrapperException("Invalid parameter: " + p + " - expected name=value");
+                    params.put(p.substring(0, i), p.substring(i + 1));
+                }
+            }
+            String root = cmd.hasOption("j") ? cmd.getOptionValue("j") : conf.get(HQL_FILE_ROOT_DIR);
+            TaskResult result = submit(port, token, root, params);
+            System.out.println("Result: " + result);
+            System.exit(result == TaskResult.SUCCESS ? 0 : 1);
+        } catch (HqlWrapperException | NumberFormatException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private DaemonClient() {
+    }
+}
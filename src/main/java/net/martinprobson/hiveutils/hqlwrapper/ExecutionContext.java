@@ -0,0 +1,320 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything one running TaskNode (or HQL file, or single statement) needs to execute its statements: its parameters,
+ * the RunConfig, its HiveServer2 session (see {@link HiveSession}), its time limits and retry policy, and counters of
+ * what it did.
+ * <p>
+ * A new ExecutionContext is created for each TaskNode as it starts and is passed down through {@link Hive}, so tasks
+ * with different parameters can execute at the same time without sharing mutable state. It is used by the thread
+ * executing the TaskNode only, apart from the time out flag, which the watchdog thread may set. When statements
+ * execute asynchronously (<code>executor.async</code>) the TaskNode continues on whichever thread of its executor is
+ * free once each statement completes, but still on one thread at a time.
+ */
+class ExecutionContext {
+
+    /**
+     * Context for a TaskNode of a run, using the shared connection pool and the run's retry policy.
+     *
+     * @param taskNode - TaskNode to be executed.
+     * @param params   - parameters substituted into its statements, may be <code>null</code>.
+     * @param config   - RunConfig of the run.
+     * @param abort    - AbortSignal of the run.
+     */
+    ExecutionContext(TaskNode taskNode, Map<String, String> params, RunConfig config, AbortSignal abort) {
+        this(taskNode, params, config, DBSource.getDataSource(config), config.getRetryPolicy().forTask(taskNode), abort);
+    }
+
+    /**
+     * Context for a TaskNode of a run that executes on a session pinned to its TaskQueue (see {@link StickySessions}).
+     * The session is left open when the context is closed.
+     *
+     * @param session - pinned session, or <code>null</code> for a session of the TaskNode's own.
+     */
+    ExecutionContext(TaskNode taskNode, Map<String, String> params, RunConfig config, AbortSignal abort,
+                     HiveSession session) {
+        this(taskNode.getLabel(), params, config, session == null ? new HiveSession(DBSource.getDataSource(config)) : session,
+                session != null, config.getRetryPolicy().forTask(taskNode),
+                getTimeout(taskNode, Hive.STATEMENT_TIMEOUT, config.getStatementTimeoutMillis()),
+                deadline(getTimeout(taskNode, Hive.TIMEOUT, config.getTaskTimeoutMillis())), abort, new AtomicBoolean(false));
+    }
+
+    /**
+     * Context for a TaskNode. The time limits are those of its header annotations (<code>-- @statementTimeout</code>,
+     * <code>-- @timeout</code>), or the configured defaults, and the task's time limit starts now.
+     */
+    ExecutionContext(TaskNode taskNode, Map<String, String> params, RunConfig config, DataSource dataSource,
+                     RetryPolicy retry, AbortSignal abort) {
+        this(taskNode.getLabel(), params, config, dataSource, retry,
+                getTimeout(taskNode, Hive.STATEMENT_TIMEOUT, config.getStatementTimeoutMillis()),
+                deadline(getTimeout(taskNode, Hive.TIMEOUT, config.getTaskTimeoutMillis())), abort, new AtomicBoolean(false));
+    }
+
+    /**
+     * @param label            - label used when logging.
+     * @param params           - parameters substituted into the statements, may be <code>null</code>.
+     * @param config           - RunConfig of the run.
+     * @param dataSource       - DataSource to borrow the connection from.
+     * @param retry            - RetryPolicy for failed statements.
+     * @param statementTimeout - time limit (milliseconds) for each statement, 0 for no limit.
+     * @param deadline         - time (epoch milliseconds) by which all the statements must complete, 0 for no limit.
+     * @param abort            - AbortSignal of the run.
+     * @param timedOut         - set to <code>true</code> if a statement is cancelled because it ran out of time.
+     */
+    ExecutionContext(String label, Map<String, String> params, RunConfig config, DataSource dataSource, RetryPolicy retry,
+                     long statementTimeout, long deadline, AbortSignal abort, AtomicBoolean timedOut) {
+        this(label, params, config, new HiveSession(dataSource), false, retry, statementTimeout, deadline, abort, timedOut);
+    }
+
+    private ExecutionContext(String label, Map<String, String> params, RunConfig config, HiveSession session,
+                             boolean pinned, RetryPolicy retry, long statementTimeout, long deadline, AbortSignal abort,
+                             AtomicBoolean timedOut) {
+        this.label = label;
+        this.params = params;
+        this.config = config;
+        this.session = session;
+        this.pinned = pinned;
+        this.retry = retry;
+        this.statementTimeout = statementTimeout;
+        this.deadline = deadline;
+        this.abort = abort;
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @return the statement with the parameters of the context substituted.
+     */
+    String render(HqlTemplate stmt) {
+        return stmt.render(params);
+    }
+
+    Connection getConnection() throws SQLException {
+        return session.getConnection();
+    }
+
+    /**
+     * Record a statement that succeeded.
+     *
+     * @param stmt   - the statement.
+     * @param millis - time taken by its final attempt.
+     */
+    void executed(String stmt, long millis) {
+        statements++;
+        executeMillis += millis;
+        session.executed(stmt);
+    }
+
+    boolean hasTemporaryTables() {
+        return session.hasTemporaryTables();
+    }
+
+    /**
+     * Evict the current connection from the pool and replay the session state on a new one.
+     */
+    void reconnect(long timeout) throws SQLException {
+        retries++;
+        replace(timeout);
+    }
+
+    /**
+     * Bring the connection to the state a statement expects, before it is executed.
+     * <p>
+     * A <code>SET</code> or <code>USE</code> already in effect on the connection is not executed again. Before any
+     * other statement, settings and database left on the connection by an earlier task, that this task has not asked
+     * for itself, are reset on the same connection, and this task's own settings applied again. State that can not be
+     * reset (see {@link SessionState#undo(String, boolean)}) causes the connection to be discarded and the session
+     * state replayed on another connection, at most once for each connection the pool can hold.
+     *
+     * @return <code>false</code> if the statement is already in effect, and need not be executed.
+     */
+    boolean prepare(String stmt, long timeout) throws SQLException {
+        if (session.isApplied(stmt)) {
+            log.debug(label + ": already in effect - " + stmt);
+            skipped++;
+            return false;
+        }
+        int discarded = 0;
+        while (session.isTainted() && !RetryPolicy.isSessionStatement(stmt)) {
+            if (reset(timeout)) break;
+            if (discarded++ > maxIdle())
+                throw new SQLException(label + ": unable to get a connection without session state of an earlier task");
+            log.debug(label + ": connection holds session state of an earlier task that can not be reset - discarding it");
+            replace(timeout);
+        }
+        return true;
+    }
+
+    /**
+     * @return the most connections the pool(s) can hold idle, each can be discarded once by prepare().
+     */
+    private int maxIdle() {
+        int idle = config.getPoolMaxTotal() > 0 ? config.getPoolMaxTotal() : config.getMaxConcurrentTasks() + config.getMaxPinned();
+        return idle * Math.max(1, config.getJdbcEndpoints().length);
+    }
+
+    /**
+     * Reset the session state left by an earlier task on the current connection.
+     *
+     * @return <code>false</code> if it can not be reset.
+     */
+    private boolean reset(long timeout) throws SQLException {
+        String url = config.getJdbcUrl();
+        List<String> undo = session.undoInherited(url == null ? DBConnection.DEFAULT_DATABASE : DBConnection.database(url),
+                url == null || url.indexOf('?') < 0);
+        if (undo == null) return false;
+        log.debug(label + ": resetting session state of an earlier task - " + undo);
+        for (String stmt : undo) {
+            Hive.execute(this, stmt, timeout);
+            session.undone(stmt);
+        }
+        for (String stmt : session.getState()) {
+            if (!SessionState.isReset(stmt) || session.isApplied(stmt)) continue;
+            Hive.execute(this, stmt, timeout);
+            session.replayed(stmt);
+        }
+        return true;
+    }
+
+    private void replace(long timeout) throws SQLException {
+        session.invalidate();
+        List<String> state = new ArrayList<>(session.getState());
+        log.info(label + ": new connection - replaying " + state.size() + " session statement(s)");
+        for (String stmt : state) {
+            if (!session.isApplied(stmt))
+                Hive.execute(this, stmt, timeout);
+            session.replayed(stmt);
+        }
+    }
+
+    /**
+     * Return the connection to the pool, unless the session is pinned to the TaskQueue.
+     */
+    void close() throws SQLException {
+        if (!pinned)
+            session.close();
+    }
+
+    boolean isAborted() {
+        return abort.isAborted();
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    RunConfig getConfig() {
+        return config;
+    }
+
+    RetryPolicy getRetry() {
+        return retry;
+    }
+
+    AbortSignal getAbort() {
+        return abort;
+    }
+
+    /**
+     * Execute the statements asynchronously, continuing on the executor once each statement completes.
+     *
+     * @param executor - executor of the run, or <code>null</code> to execute the statements on the calling thread.
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    boolean isAsync() {
+        return executor != null;
+    }
+
+    long getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    AtomicBoolean getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return number of statements that succeeded.
+     */
+    int getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return number of times a statement was retried on a new connection.
+     */
+    int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return time (milliseconds) spent executing the statements that succeeded.
+     */
+    long getExecuteMillis() {
+        return executeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return label + " - statements: " + statements + " (" + skipped + " already in effect) retries: " + retries
+                + " execute time: " + executeMillis + "ms";
+    }
+
+    /**
+     * @return the timeout (milliseconds) for a TaskNode, from its header annotation or the configured default.
+     */
+    private static long getTimeout(TaskNode taskNode, String annotation, long defaultTimeout) {
+        String value = taskNode.getAnnotation(annotation);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim()) * 1000;
+            } catch (NumberFormatException e) {
+                log.warn(taskNode.getLabel() + ": invalid @" + annotation + " value '" + value + "' ignored");
+            }
+        }
+        return defaultTimeout;
+    }
+
+    private static long deadline(long timeout) {
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    private final String label;
+    private final Map<String, String> params;
+    private final RunConfig config;
+    private final HiveSession session;
+    private final boolean pinned;
+    private final RetryPolicy retry;
+    private final long statementTimeout;
+    private final long deadline;
+    private final AbortSignal abort;
+    private final AtomicBoolean timedOut;
+    private Executor executor = null;
+    private int statements = 0;
+    private int retries = 0;
+    private int skipped = 0;
+    private long executeMillis = 0;
+    private final static Logger log = LoggerFactory.getLogger(ExecutionContext.class);
+}
@@ -3,25 +3,61 @@ package net.martinprobson.hiveutils.hqlwrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static java.lang.Thread.sleep;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
 
 
 /**
- * Maintains a pool of Executors, that can all be shutdown via the cleanUp() method.
+ * Maintains a single, bounded pool of worker threads shared by every TaskQueue, that can be shutdown via the cleanUp() method.
+ * <p>
+ * The number of HQL tasks that can run at the same time (and so the number of concurrent HiveServer2 sessions) is
+ * limited by the <code>executor.maxConcurrentTasks</code> configuration parameter. Tasks submitted when all workers
+ * are busy wait in the pool's queue, they do not hold a thread while waiting.
+ * <p>
+ * Also owns the progress reporter, a daemon thread that calls monitor() periodically. The reporter only logs, it
+ * never holds up the scheduling of tasks.
+ * <p>
+ * Also owns the watchdog, a daemon thread used to cancel HQL statements that run for longer than their timeout.
+ * <p>
+ * With <code>executor.async</code> set, statements are executed asynchronously (see {@link AsyncStatement}) and a
+ * task only holds a worker while it submits a statement or handles its completion, so the pool has
+ * <code>executor.asyncThreads</code> workers, the poller thread polls the running statements, and the number of tasks
+ * running at the same time is limited to <code>executor.maxConcurrentTasks</code> by {@link #acquireTask(RunConfig)}
+ * instead. If the driver can not execute statements asynchronously (see {@link AsyncStatement#isSupported()}) they
+ * block a worker, so the pool then has <code>executor.maxConcurrentTasks</code> workers.
+ * <p>
+ * With <code>executor.virtualThreads</code> set, each task runs on a virtual thread of its own, blocking as normal
+ * while its statements execute, and the number of tasks running at the same time is again limited by
+ * {@link #acquireTask(RunConfig)} rather than by the number of threads.
  * <p>
  *
  * @author robsom12
  */
 public class ExecutorPool {
 
-    private static List<ExecutorService> executors = new ArrayList<>();
+    private static ExecutorService pool = null;
+    // The worker pool, null when tasks run on virtual threads.
+    private static ThreadPoolExecutor workers = null;
+    private static RunConfig poolConfig = null;
+    private static ScheduledExecutorService reporter = null;
+    private static ScheduledExecutorService watchdog = null;
+    private static ScheduledExecutorService poller = null;
+    // Tasks running, and waiting to run, when executor.async or executor.virtualThreads is set.
+    private static int runningTasks = 0;
+    private static final Deque<CompletableFuture<Void>> waitingTasks = new ArrayDeque<>();
 
     static class ExecThreadFactory implements ThreadFactory {
         private static final String THREAD_GROUP_NAME = "HQL_Executor";
@@ -58,20 +94,137 @@ public class ExecutorPool {
         }
     }
 
-    public static ExecutorService getExecutor(String label) {
-        log.trace("New Executor - newSingleThreadExecutor");
-        ExecutorService e = Executors.newSingleThreadExecutor(new ExecThreadFactory(label));
-        executors.add(e);
-        return e;
+    /**
+     * Return an Executor for the TaskQueue with the given label.
+     * <p>All Executors share the one bounded worker pool, the label is only used to name the worker thread
+     * while it runs a task for that TaskQueue.
+     *
+     * @param label  - label of the TaskQueue the Executor will run tasks for.
+     * @param config - RunConfig of the run, the worker pool is sized from the first one given.
+     * @return Executor backed by the shared worker pool.
+     */
+    static Executor getExecutor(String label, RunConfig config) {
+        ExecutorService p = getPool(config);
+        return command -> p.execute(() -> {
+            Thread t = Thread.currentThread();
+            String name = t.getName();
+            t.setName(name + "-[" + label + "]");
+            try {
+                command.run();
+            } finally {
+                t.setName(name);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getPool(RunConfig config) {
+        if (pool == null) {
+            poolConfig = config;
+            if (config.isVirtualThreads()) {
+                log.debug("New virtual thread executor - tasks: " + config.getMaxConcurrentTasks());
+                pool = Executors.newVirtualThreadPerTaskExecutor();
+                return pool;
+            }
+            boolean async = config.isAsync() && AsyncStatement.isSupported();
+            if (config.isAsync() && !async)
+                log.warn(EXECUTOR_ASYNC + " is set, but the Hive JDBC driver can not execute "
+                        + "statements asynchronously (Hive JDBC 2.2 or later is needed) - statements will block a worker, "
+                        + "so the pool has " + EXECUTOR_MAX_CONCURRENT_TASKS + " workers, not "
+                        + EXECUTOR_ASYNC_THREADS);
+            int threads = async ? config.getAsyncThreads() : config.getMaxConcurrentTasks();
+            log.debug("New shared worker pool - workers: " + threads + (async ? " (async)" : ""));
+            workers = new ThreadPoolExecutor(threads, threads,
+                    60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new ExecThreadFactory("worker"));
+            workers.allowCoreThreadTimeOut(true);
+            pool = workers;
+        }
+        return pool;
+    }
+
+    /**
+     * Run an action on the watchdog thread once a delay has elapsed.
+     *
+     * @param action - action to run, it should not block.
+     * @param delay  - delay in milliseconds.
+     * @return ScheduledFuture that can be used to cancel the action before it runs.
+     */
+    public static synchronized ScheduledFuture<?> schedule(Runnable action, long delay) {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HQL_Watchdog");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return watchdog.schedule(action, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the thread that polls the statements executing asynchronously.
+     */
+    static synchronized ScheduledExecutorService getPoller() {
+        if (poller == null) {
+            poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HQL_Poller");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return poller;
+    }
+
+    /**
+     * Wait for one of the <code>executor.maxConcurrentTasks</code> task permits (<code>executor.async</code> or
+     * <code>executor.virtualThreads</code> only), without holding a thread. Each permit must be given back with releaseTask().
+     *
+     * @param config - RunConfig of the run.
+     * @return future completed once the task may run.
+     */
+    static CompletableFuture<Void> acquireTask(RunConfig config) {
+        int maxConcurrentTasks = config.getMaxConcurrentTasks();
+        synchronized (ExecutorPool.class) {
+            if (runningTasks < maxConcurrentTasks) {
+                runningTasks++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> permit = new CompletableFuture<>();
+            waitingTasks.add(permit);
+            return permit;
+        }
+    }
+
+    /**
+     * Give back a task permit, passing it to the task that has waited longest.
+     */
+    static void releaseTask() {
+        CompletableFuture<Void> next;
+        synchronized (ExecutorPool.class) {
+            next = waitingTasks.poll();
+            if (next == null) runningTasks--;
+        }
+        if (next != null) next.complete(null);
     }
 
     public static void cleanUp() {
         log.trace("Executor cleanup - started");
-
-        for (ExecutorService exec : executors) {
-            exec.shutdown();
-            while (!exec.isTerminated()) try {
-                sleep(1000);
+        ExecutorService p;
+        synchronized (ExecutorPool.class) {
+            p = pool;
+            pool = null;
+            workers = null;
+            poolConfig = null;
+            if (watchdog != null) watchdog.shutdownNow();
+            watchdog = null;
+            if (poller != null) poller.shutdownNow();
+            poller = null;
+        }
+        if (p != null) {
+            p.shutdown();
+            try {
+                while (!p.awaitTermination(1, TimeUnit.MINUTES))
+                    log.debug("Waiting for executor shutdown");
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
@@ -79,13 +232,69 @@ public class ExecutorPool {
         log.debug("All Executors now shutdown");
     }
 
+    /**
+     * Start the progress reporter, calling monitor() every <code>interval</code> seconds until stopMonitor() is called.
+     *
+     * @param interval - reporting interval in seconds.
+     */
+    public static synchronized void startMonitor(int interval) {
+        if (reporter != null || interval <= 0) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "HQL_Monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(ExecutorPool::monitor, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the progress reporter.
+     */
+    public static synchronized void stopMonitor() {
+        if (reporter == null) return;
+        reporter.shutdownNow();
+        reporter = null;
+    }
+
     public static void monitor() {
-        log.info("Monitoring -- ExecutorPool size: " + getSize() + " Active Threads: " + getActiveThreads());
+        log.info("Monitoring -- Queue depth: " + getQueueDepth() + " Running: " + getRunning() + "/" + getSize()
+                + " Saturation: " + getSaturation() + "% Active Threads: " + getActiveThreads());
         ExecThreadFactory.listThreads();
     }
 
-    public static int getSize() {
-        return executors.size();
+    /**
+     * @return maximum number of tasks that can run concurrently.
+     */
+    public static synchronized int getSize() {
+        if (usesPermits()) return poolConfig.getMaxConcurrentTasks();
+        return workers == null ? 0 : workers.getMaximumPoolSize();
+    }
+
+    /**
+     * @return number of tasks waiting for a free worker.
+     */
+    public static synchronized int getQueueDepth() {
+        if (usesPermits()) return waitingTasks.size();
+        return workers == null ? 0 : workers.getQueue().size();
+    }
+
+    /**
+     * @return number of tasks currently running.
+     */
+    public static synchronized int getRunning() {
+        if (usesPermits()) return runningTasks;
+        return workers == null ? 0 : workers.getActiveCount();
+    }
+
+    /**
+     * @return running tasks as a percentage of the concurrency limit.
+     */
+    public static synchronized int getSaturation() {
+        return getSize() == 0 ? 0 : (getRunning() * 100) / getSize();
+    }
+
+    private static boolean usesPermits() {
+        return pool != null && (poolConfig.isAsync() || poolConfig.isVirtualThreads());
     }
 
     private static int getActiveThreads() {
@@ -8,14 +8,16 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DEFAULT_HQL_FILESYSTEM;
-import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL_FILESYSTEM;
 
 
 /**
@@ -28,29 +30,48 @@ import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL
  * to be stored on the local filesystem or within HDFS itself. This is controlled via the configuration parameter: -
  * <ul>
  * <li><code>Hql.FileSystem</code>
+ * </ul>
+ * The file system is opened at the start of each run (see {@link Controller#snapshot()}), until then the local file
+ * system is used.
  */
 public class FileUtil {
 
-    private static FileSystem fs = null;
+    private static volatile FileSystem fs = null;
     private final static Logger log = LoggerFactory.getLogger(FileUtil.class);
 
     private FileUtil() {
     }
 
-    private static FileSystem getFs() throws IOException {
-        if (fs == null) {
-            Configuration conf = Controller.getInstance().getConf();
-            String hqlFileSys = conf.get(HQL_FILESYSTEM, DEFAULT_HQL_FILESYSTEM);
-            if (hqlFileSys.equals(DEFAULT_HQL_FILESYSTEM)) {
+    /**
+     * Open the file system named by the configuration of a run, used by every later call.
+     *
+     * @param config - RunConfig of the run.
+     * @throws HqlWrapperException if the file system can not be opened.
+     */
+    static void setFileSystem(RunConfig config) throws HqlWrapperException {
+        Configuration conf = config.getConf();
+        try {
+            if (config.getFileSystem().equals(DEFAULT_HQL_FILESYSTEM)) {
                 fs = FileSystem.getLocal(conf);
                 log.trace("Getting local filesystem" + fs.getUri());
             } else {
-                Kerboros.auth();
+                Kerboros.auth(config);
                 fs = FileSystem.get(conf);
                 log.trace("Getting hdfs filesystem" + fs.getUri());
             }
+        } catch (IOException e) {
+            throw new HqlWrapperException("Unable to open file system: " + config.getFileSystem() + " - "
+                    + e.getMessage());
+        }
+    }
+
+    private static FileSystem getFs() throws IOException {
+        FileSystem f = fs;
+        if (f == null) {
+            f = FileSystem.getLocal(new Configuration());
+            fs = f;
         }
-        return fs;
+        return f;
     }
 
     public static boolean exists(Path path) {
@@ -88,19 +109,35 @@ public class FileUtil {
     }
 
     public static Path[] listFiles(Path directory, PathFilter filter) {
-        ArrayList<Path> paths = new ArrayList<>();
+        FileStatus[] status = listStatus(directory, filter);
+        if (status == null) return null;
+        Path[] paths = new Path[status.length];
+        for (int i = 0; i < status.length; i++)
+            paths[i] = status[i].getPath();
+        return paths;
+    }
+
+    /**
+     * List a directory, with the FileStatus of each entry, in a single file system call.
+     *
+     * @param directory - directory to list.
+     * @return FileStatus of each entry of the directory, <code>null</code> if the directory does not exist.
+     */
+    public static FileStatus[] listStatus(Path directory) {
+        return listStatus(directory, null);
+    }
+
+    private static FileStatus[] listStatus(Path directory, PathFilter filter) {
         FileStatus[] status = null;
         try {
-            status = getFs().listStatus(directory, filter);
+            status = filter == null ? getFs().listStatus(directory) : getFs().listStatus(directory, filter);
         } catch (FileNotFoundException e) {
             return null;
         } catch (IOException e) {
             log.error("Error listing directory: " + directory, e);
             System.exit(2);
         }
-        for (FileStatus fs : status)
-            paths.add(fs.getPath());
-        return paths.toArray(new Path[paths.size()]);
+        return status;
     }
 
     public static String readFile(Path fileName) {
@@ -121,6 +158,101 @@ public class FileUtil {
 
     }
 
+    /**
+     * Open a file to be read as it is processed, rather than read into memory (see readFile()).
+     *
+     * @param fileName - file to be read.
+     * @return reader of the file, to be closed by the caller.
+     * @throws UncheckedIOException if the file can not be opened.
+     */
+    public static BufferedReader openReader(Path fileName) {
+        return new BufferedReader(new InputStreamReader(open(fileName), Charset.defaultCharset()));
+    }
+
+    /**
+     * @param fileName - file to be read.
+     * @return input stream of the file, to be closed by the caller.
+     * @throws UncheckedIOException if the file can not be opened.
+     */
+    public static FSDataInputStream open(Path fileName) {
+        try {
+            return getFs().open(fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening file: " + fileName, e);
+        }
+    }
+
+    /**
+     * @param fileName - file.
+     * @return length of the file in bytes.
+     * @throws UncheckedIOException if the length can not be read.
+     */
+    public static long getLength(Path fileName) {
+        try {
+            return getFs().getFileStatus(fileName).getLen();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error getting length of file: " + fileName, e);
+        }
+    }
+
+    /**
+     * @param path - file or directory.
+     * @return modification time of the file or directory, <code>-1</code> if it does not exist.
+     * @throws UncheckedIOException if the modification time can not be read.
+     */
+    public static long getModificationTime(Path path) {
+        try {
+            return getFs().getFileStatus(path).getModificationTime();
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error getting modification time of: " + path, e);
+        }
+    }
+
+    /**
+     * Digest a file a block at a time, rather than reading it into memory.
+     *
+     * @param fileName - file to digest.
+     * @return hex SHA-256 digest of the content of the file.
+     * @throws UncheckedIOException if the file can not be read.
+     */
+    public static String sha256(Path fileName) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = getFs().open(fileName)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) md.update(buffer, 0, n);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file: " + fileName, e);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Create (or overwrite) a file, creating any missing parent directories.
+     *
+     * @param fileName - file to be created.
+     * @return output stream for the new file.
+     * @throws UncheckedIOException if the file can not be created.
+     */
+    public static FSDataOutputStream create(Path fileName) {
+        try {
+            if (fileName.getParent() != null)
+                getFs().mkdirs(fileName.getParent());
+            return getFs().create(fileName, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error creating file: " + fileName, e);
+        }
+    }
+
     /**
      * Read a file
      *
@@ -1,16 +1,22 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
-import org.apache.commons.lang3.text.StrSubstitutor;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Field;
 import java.sql.*;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Responsible for executing Hive SQL against a database connection.
@@ -23,175 +29,591 @@ public class Hive {
      * Given a TaskNode containing  hql statements,
      * split the statements and execute each one in turn.
      * <p>
+     * Each statement is limited to <code>hql.statementTimeout</code> seconds and the TaskNode as a whole to
+     * <code>hql.taskTimeout</code> seconds (0, the default, means no limit). Either can be overridden by a header
+     * annotation in the HQL file (<code>-- @statementTimeout: 600</code>, <code>-- @timeout: 3600</code>). A
+     * statement that runs out of time is cancelled on the server and the TaskNode result is set to TIMED_OUT.
+     * <p>
+     * A statement that fails with a transient error is retried on a new connection (see {@link RetryPolicy}).
      *
      * @param taskNode TaskNode containing hql statement(s) to be run.
      * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     * @throws IllegalStateException if there is no run in progress (see {@link Controller#getRunConfig()}).
      */
     public static boolean ExecuteHqlStmts(TaskNode taskNode, Map<String, String> params) {
-        taskNode.setResult(TaskResult.RUNNING);
-        boolean rc = ExecuteHqlStmts(taskNode.getHql(), params);
-        if (rc)
-            taskNode.setResult(TaskResult.SUCCESS);
-        else
-            taskNode.setResult(TaskResult.FAILURE);
-        return rc;
+        return ExecuteHqlStmts(taskNode, params, Controller.getInstance().getRunConfig(), new AbortSignal());
     }
 
     /**
-     * Given a String containing one or more hql statements (separated by ';' character),
-     * split the statements and execute each one in turn.
-     * <p>
+     * Execute the hql statements of a TaskNode as part of a run that may be aborted. If the run is aborted while the
+     * TaskNode is executing, its running statement is cancelled and its result is set to CANCELLED.
      *
-     * @param hqlStmts String containing hql statement(s) to be run.
+     * @param taskNode TaskNode containing hql statement(s) to be run.
+     * @param config   RunConfig of the run.
+     * @param abort    AbortSignal of the run.
      * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
      */
-    private static boolean ExecuteHqlStmts(String hqlStmts, Map<String, String> params) {
-        log = LoggerFactory.getLogger(Hive.class);
-        if (params != null) {
-            substitutor = new StrSubstitutor(params);
-        }
+    static boolean ExecuteHqlStmts(TaskNode taskNode, Map<String, String> params, RunConfig config, AbortSignal abort) {
+        return ExecuteHqlStmts(taskNode, new ExecutionContext(taskNode, params, config, abort));
+    }
+
+    /**
+     * Execute the hql statements of a TaskNode on connections borrowed from a DataSource.
+     *
+     * @param taskNode   TaskNode containing hql statement(s) to be run.
+     * @param config     RunConfig of the run.
+     * @param dataSource DataSource to borrow connections from.
+     * @param retry      RetryPolicy for failed statements.
+     * @param abort      AbortSignal of the run.
+     * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     */
+    static boolean ExecuteHqlStmts(TaskNode taskNode, Map<String, String> params, RunConfig config, DataSource dataSource,
+                                   RetryPolicy retry, AbortSignal abort) {
+        return ExecuteHqlStmts(taskNode, new ExecutionContext(taskNode, params, config, dataSource, retry, abort));
+    }
+
+    /**
+     * Execute the hql statements of a TaskNode in its own ExecutionContext.
+     *
+     * @param taskNode TaskNode containing hql statement(s) to be run.
+     * @param context  ExecutionContext of the TaskNode.
+     * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     */
+    static boolean ExecuteHqlStmts(TaskNode taskNode, ExecutionContext context) {
+        return join(ExecuteHqlStmtsAsync(taskNode, context));
+    }
 
+    /**
+     * Execute the hql statements of a TaskNode in its own ExecutionContext, asynchronously if the context has an
+     * executor (see {@link ExecutionContext#setExecutor}), otherwise on the calling thread.
+     *
+     * @param taskNode TaskNode containing hql statement(s) to be run.
+     * @param context  ExecutionContext of the TaskNode.
+     * @return future completed with <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     */
+    static CompletableFuture<Boolean> ExecuteHqlStmtsAsync(TaskNode taskNode, ExecutionContext context) {
+        taskNode.setResult(TaskResult.RUNNING);
+        CompletableFuture<Boolean> executed;
+        if (taskNode.isStreamed()) {
+            HqlStatementReader stmts;
+            try {
+                stmts = taskNode.openStatements();
+            } catch (UncheckedIOException e) {
+                log.error(e.getMessage(), e.getCause());
+                taskNode.setResult(TaskResult.FAILURE);
+                return CompletableFuture.completedFuture(false);
+            }
+            executed = ExecuteHqlStmts(HqlTemplate.compile(stmts), context).whenComplete((rc, t) -> {
+                try {
+                    stmts.close();
+                } catch (IOException e) {
+                    log.warn("Error closing file of: " + taskNode.getLabel(), e);
+                }
+            });
+        } else {
+            executed = ExecuteHqlStmts(taskNode.getTemplates().iterator(), context);
+        }
+        return executed.thenApply(rc -> {
+            if (rc)
+                taskNode.setResult(TaskResult.SUCCESS);
+            else if (context.isAborted())
+                taskNode.setResult(TaskResult.CANCELLED);
+            else if (context.getTimedOut().get())
+                taskNode.setResult(TaskResult.TIMED_OUT);
+            else
+                taskNode.setResult(TaskResult.FAILURE);
+            return rc;
+        });
+    }
 
-        Connection conn = null;
-        boolean rc = true;
+    /**
+     * Execute hql statements (see {@link Util#HQLSplit(String)}, {@link HqlStatementReader}) in turn, taking each
+     * statement from the iterator as the previous one completes and rendering it with the parameters of the context
+     * (see {@link HqlTemplate}).
+     * <p>
+     *
+     * @param stmts   hql statement(s) to be run.
+     * @param context ExecutionContext to run the statements in, its connection is returned to the pool at the end.
+     * @return future completed with <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     */
+    private static CompletableFuture<Boolean> ExecuteHqlStmts(Iterator<HqlTemplate> stmts, ExecutionContext context) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        next(stmts, context, result);
+        return result;
+    }
 
+    /**
+     * Execute the remaining statements in turn until one is executing asynchronously, in which case the rest are
+     * executed on the context's executor once it completes.
+     */
+    private static void next(Iterator<HqlTemplate> stmts, ExecutionContext context, CompletableFuture<Boolean> result) {
         try {
-            conn = DBSource.setupDataSource().getConnection();
-            int i = 0;
-            List<String> stmts = Util.HQLSplit(hqlStmts);
-            log.trace("String contains a string" + stmts.size() + " statements");
-            for (String stmt : stmts) {
-                log.trace("About to execute statment no: " + ++i);
-                log.trace("Statement before substitution: " + stmt);
-                stmt = replaceParams(stmt);
+            while (stmts.hasNext()) {
+                HqlTemplate template = stmts.next();
+                int i = context.getStatements() + 1;
+                log.trace("About to execute statment no: " + i);
+                log.trace("Statement before substitution: " + template);
+                String stmt = context.render(template);
                 log.trace("Statement after substitution: " + stmt);
-                if (!ExecHQL(conn, stmt)) {
-                    log.error("Statement number: " + i);
-                    log.error("HQL statement: " + stmt + " failed");
-                    log.trace("Skipping rest of String");
-                    rc = false;
-                    break;
-                } else {
-                    log.trace("Statement number: " + i + " success");
+                CompletableFuture<Boolean> executed = ExecHQL(context, stmt);
+                if (!executed.isDone()) {
+                    executed.whenComplete((ok, t) -> resume(context, () -> {
+                        if (t != null)
+                            finish(context, result, false, t);
+                        else if (executed(i, stmt, ok))
+                            next(stmts, context, result);
+                        else
+                            finish(context, result, false, null);
+                    }));
+                    return;
+                }
+                if (!executed(i, stmt, join(executed))) {
+                    finish(context, result, false, null);
+                    return;
                 }
             }
-        } catch (SQLException e) {
-            log.error("SQLException:");
-            while (e != null) {
-                log.error("SQLException:", e);
-                log.error("SQLState: " + e.getSQLState());
-                log.error("Message: " + e.getMessage());
-                log.error("Vendor: " + e.getErrorCode());
-                e = e.getNextException();
-            }
+            finish(context, result, true, null);
+        } catch (UncheckedIOException e) {
+            log.error(context.getLabel() + ": error reading statement after statement number: " + context.getStatements(), e.getCause());
+            finish(context, result, false, null);
+        } catch (RuntimeException e) {
+            finish(context, result, false, e);
+        }
+    }
+
+    /**
+     * Log the outcome of a statement.
+     *
+     * @return <code>true</code> if the statement succeeded.
+     */
+    private static boolean executed(int i, String stmt, boolean ok) {
+        if (ok) {
+            log.trace("Statement number: " + i + " success");
+        } else {
+            log.error("Statement number: " + i);
+            log.error("HQL statement: " + stmt + " failed");
+            log.trace("Skipping rest of String");
+        }
+        return ok;
+    }
+
+    /**
+     * Close the context once its statements are done, and complete the result.
+     *
+     * @param failure - unexpected exception that stopped the statements, or <code>null</code>.
+     */
+    private static void finish(ExecutionContext context, CompletableFuture<Boolean> result, boolean rc, Throwable failure) {
+        try {
+            context.close();
+        } catch (Exception e) {
+            log.error("Error on conn close", e);
             rc = false;
-        } finally {
-            try {
-                if (conn != null) conn.close();
-            } catch (Exception e) {
-                log.error("Error on conn close", e);
-                rc = false;
-            }
         }
-        return rc;
+        log.debug(context.toString());
+        if (failure != null)
+            result.completeExceptionally(failure);
+        else
+            result.complete(rc);
     }
 
 
     /**
      * Read a file containing HQL statements, split it into separate statements and execute each statement in turn.
      * <p>
+     * The statements are read from the file one at a time as they are executed (see {@link HqlStatementReader}).
      *
      * @param file containing hql statements to be run.
      * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     * @throws IllegalStateException if there is no run in progress (see {@link Controller#getRunConfig()}).
      */
     public static boolean ExecuteHqlFile(Path file) {
-        log = LoggerFactory.getLogger(Hive.class);
         log.trace("passed filename: " + file.getName());
 
-        String hqlFile;
-        boolean rc;
-
-        hqlFile = FileUtil.readFile(file);
-        rc = ExecuteHqlStmts(hqlFile, null);
+        boolean rc = false;
+        RunConfig config = Controller.getInstance().getRunConfig();
+        try (HqlStatementReader stmts = new HqlStatementReader(FileUtil.openReader(file))) {
+            rc = join(ExecuteHqlStmts(HqlTemplate.compile(stmts), new ExecutionContext(file.getName(), null, config,
+                    DBSource.getDataSource(config), config.getRetryPolicy(), config.getStatementTimeoutMillis(), 0,
+                    new AbortSignal(), new AtomicBoolean(false))));
+        } catch (IOException e) {
+            log.warn("Error closing file: " + file, e);
+        } catch (UncheckedIOException e) {
+            log.error(e.getMessage(), e.getCause());
+        }
 
         return rc;
     }
 
 
     /**
-     * Execute single HQL statement.
+     * Execute single HQL statement, retrying it if it fails with a transient error.
      * <p>
+     * Before each retry the connection is evicted from the pool and replaced, and the statements that changed the
+     * state of the session (<code>SET</code>, <code>USE</code>, <code>ADD JAR</code> ...) are replayed on the new
+     * connection. Statements are not retried once the session holds temporary tables, as they would be lost with the
+     * connection. A failure is only reported (and mailed) once the statement has finally failed.
+     * <p>
+     * A <code>SET</code> or <code>USE</code> already in effect on the connection is not executed again, see
+     * {@link ExecutionContext#prepare(String, long)}.
+     * <p>
+     * If the context has an executor the statement is executed asynchronously (see {@link AsyncStatement}), and the
+     * returned future completes once it has succeeded or finally failed, otherwise it is already complete.
      *
-     * @param conn    - DB Connection to run against.
+     * @param context - ExecutionContext to run in, which holds the time limits and RetryPolicy.
      * @param hqlStmt - HQL statement to execute.
-     * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     * @return future completed with <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
      */
-    private static boolean ExecHQL(Connection conn, String hqlStmt) {
-
-        boolean rc = true;
-        Kerboros.auth();
-        log = LoggerFactory.getLogger(Hive.class);
+    private static CompletableFuture<Boolean> ExecHQL(ExecutionContext context, String hqlStmt) {
+        try {
+            Kerboros.auth(context.getConfig());
+        } catch (HqlWrapperException e) {
+            log.error(context.getLabel() + ": " + e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
         log.trace("passed statement: " + hqlStmt);
-        Statement stmt = null;
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        attempt(context, hqlStmt, 1, result);
+        return result;
+    }
+
+    /**
+     * Attempt to execute a statement, from attempt number <code>attempt</code>, until an attempt succeeds or the
+     * statement finally fails. An attempt executing asynchronously continues on the context's executor once it
+     * completes.
+     */
+    private static void attempt(ExecutionContext context, String hqlStmt, int attempt, CompletableFuture<Boolean> result) {
+        long deadline = context.getDeadline();
         try {
-            if (conn == null) {
-                DataSource dataSource = DBSource.setupDataSource();
-                conn = dataSource.getConnection();
+            for (; ; attempt++) {
+                long timeout = context.getStatementTimeout();
+                if (deadline > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        log.error("Task timed out before statement: " + hqlStmt);
+                        context.getTimedOut().set(true);
+                        MailFailure(context.getConfig(), hqlStmt);
+                        result.complete(false);
+                        return;
+                    }
+                    if (timeout <= 0 || remaining < timeout) timeout = remaining;
+                }
+                long start = System.currentTimeMillis();
+                CompletableFuture<Void> executed;
+                try {
+                    if (attempt > 1) context.reconnect(timeout);
+                    start = System.currentTimeMillis();
+                    if (!context.prepare(hqlStmt, timeout))
+                        executed = CompletableFuture.completedFuture(null);
+                    else if (context.isAsync())
+                        executed = executeAsync(context, hqlStmt, timeout);
+                    else {
+                        execute(context, hqlStmt, timeout);
+                        executed = CompletableFuture.completedFuture(null);
+                    }
+                } catch (SQLException e) {
+                    executed = failed(e);
+                }
+                if (!executed.isDone()) {
+                    int a = attempt;
+                    long s = start;
+                    executed.whenComplete((v, t) -> resume(context, () -> {
+                        try {
+                            if (attempted(context, hqlStmt, a, s, cause(t), result))
+                                attempt(context, hqlStmt, a + 1, result);
+                        } catch (RuntimeException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }));
+                    return;
+                }
+                Throwable failure = null;
+                try {
+                    executed.join();
+                } catch (CompletionException e) {
+                    failure = cause(e);
+                }
+                if (!attempted(context, hqlStmt, attempt, start, failure, result)) return;
             }
-            stmt = conn.createStatement();
-            log.debug("About to execute statement: " + hqlStmt);
-            stmt.execute(hqlStmt);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
 
-        } catch (SQLException e) {
-            log.error("SQLException:");
-            while (e != null) {
-                log.error("SQLException:", e);
-                log.error("SQLState: " + e.getSQLState());
-                log.error("Message: " + e.getMessage());
-                log.error("Vendor: " + e.getErrorCode());
-                e = e.getNextException();
+    /**
+     * Handle the outcome of an attempt to execute a statement: complete the result, or back off before the next
+     * attempt.
+     *
+     * @param failure - exception the attempt failed with, or <code>null</code> if it succeeded.
+     * @return <code>true</code> if the next attempt should be made straight away.
+     */
+    private static boolean attempted(ExecutionContext context, String hqlStmt, int attempt, long start, Throwable failure,
+                                     CompletableFuture<Boolean> result) {
+        if (failure == null) {
+            context.executed(hqlStmt, System.currentTimeMillis() - start);
+            result.complete(true);
+            return false;
+        }
+        if (!(failure instanceof SQLException)) {
+            result.completeExceptionally(failure);
+            return false;
+        }
+        SQLException e = (SQLException) failure;
+        if (context.isAborted()) {
+            log.info("Run aborted - statement cancelled: " + hqlStmt);
+            result.complete(false);
+            return false;
+        }
+        RetryPolicy retry = context.getRetry();
+        if (!context.getTimedOut().get() && !context.hasTemporaryTables() && retry.shouldRetry(hqlStmt, e, attempt)) {
+            long backoff = retry.getBackoff(attempt);
+            log.warn("Transient failure (attempt " + attempt + " of " + retry.getMaxAttempts() + ") - retrying in "
+                    + backoff + "ms: " + e.getMessage());
+            if (context.isAsync()) {
+                // No thread waits out the backoff.
+                ExecutorPool.schedule(() -> resume(context, () -> attempt(context, hqlStmt, attempt + 1, result)), backoff);
+                return false;
             }
-            rc = false;
-
-        } finally {
             try {
-                if (stmt != null) stmt.close();
-            } catch (Exception e) {
-                log.error("Error on stmt close");
-                rc = false;
+                Thread.sleep(backoff);
+                return true;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
+        }
+        logSQLException(e);
+        MailFailure(context.getConfig(), hqlStmt);
+        result.complete(false);
+        return false;
+    }
 
+    /**
+     * Execute single HQL statement on its own connection, borrowed from (and returned to) a DataSource.
+     *
+     * @param config     - RunConfig of the run.
+     * @param dataSource - DataSource to borrow the connection from.
+     * @param hqlStmt    - HQL statement to execute.
+     * @param timeout    - time limit in milliseconds, 0 for no limit.
+     * @param retry      - RetryPolicy for the statement.
+     * @param timedOut   - set to <code>true</code> if the statement is cancelled because it ran out of time.
+     * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     */
+    static boolean ExecHQL(RunConfig config, DataSource dataSource, String hqlStmt, long timeout, RetryPolicy retry,
+                           AtomicBoolean timedOut) {
+        ExecutionContext context = new ExecutionContext("statement", null, config, dataSource, retry, timeout, 0,
+                new AbortSignal(), timedOut);
+        boolean rc = join(ExecHQL(context, hqlStmt));
+        try {
+            context.close();
+        } catch (SQLException e) {
+            log.error("Error on stmt close");
+            rc = false;
         }
-        if (!rc) MailFailure(hqlStmt);
         return rc;
     }
 
     /**
      * Execute single HQL statement.
-     * <p>New DB connection will be opened to execute the statement.
+     * <p>A DB connection will be borrowed from the shared pool to execute the statement.
      *
      * @param stmt - HQL statement to execute.
      * @return returns <code>true</code> if hql file successfully executed, <code>false</code> otherwise.
+     * @throws IllegalStateException if there is no run in progress (see {@link Controller#getRunConfig()}).
      */
     public static boolean ExecHQL(String stmt) {
-        return ExecHQL(null, stmt);
+        RunConfig config = Controller.getInstance().getRunConfig();
+        return ExecHQL(config, DBSource.getDataSource(config), stmt, config.getStatementTimeoutMillis(),
+                config.getRetryPolicy(), new AtomicBoolean(false));
+    }
+
+    /**
+     * Execute a statement, once.
+     * <p>
+     * If the statement has not completed within the timeout it is cancelled (<code>Statement.cancel()</code>) from
+     * the watchdog thread (see {@link ExecutorPool#schedule(Runnable, long)}), which kills the query on HiveServer2
+     * and frees its cluster resources. The timeout is also passed to <code>Statement.setQueryTimeout()</code> where
+     * the driver supports it (Hive 2.1 and later).
+     * <p>
+     * The statement is registered with the AbortSignal of the run while it executes, so it is cancelled if the run is
+     * aborted.
+     */
+    static void execute(ExecutionContext context, String hqlStmt, long timeout) throws SQLException {
+        AbortSignal abort = context.getAbort();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        try (Statement stmt = context.getConnection().createStatement()) {
+            if (!abort.register(stmt))
+                throw new SQLException("Run aborted - statement not executed");
+            log.debug("About to execute statement: " + hqlStmt);
+            ScheduledFuture<?> watchdog = null;
+            if (timeout > 0) {
+                setQueryTimeout(stmt, timeout);
+                watchdog = ExecutorPool.schedule(() -> cancel(stmt, timeout, cancelled), timeout);
+            }
+            try {
+                stmt.execute(hqlStmt);
+            } finally {
+                if (watchdog != null) watchdog.cancel(false);
+                abort.unregister(stmt);
+            }
+        } catch (SQLException e) {
+            timedOut(context, hqlStmt, timeout, e, cancelled);
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a statement, once, asynchronously (see {@link AsyncStatement}): the statement is submitted, and its
+     * status is polled every <code>hql.pollIntervalMillis</code> by the poller thread, so no thread waits while it
+     * runs. Where the driver does not support asynchronous execution the statement is executed on the calling thread.
+     * <p>
+     * The watchdog and AbortSignal cancel the statement as for {@link #execute(ExecutionContext, String, long)}.
+     *
+     * @return future completed once the statement has completed, exceptionally with the SQLException it failed with.
+     */
+    private static CompletableFuture<Void> executeAsync(ExecutionContext context, String hqlStmt, long timeout) {
+        AbortSignal abort = context.getAbort();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        Statement stmt = null;
+        ScheduledFuture<?> watchdog = null;
+        CompletableFuture<Void> done;
+        try {
+            stmt = context.getConnection().createStatement();
+            if (!abort.register(stmt))
+                throw new SQLException("Run aborted - statement not executed");
+            log.debug("About to execute statement asynchronously: " + hqlStmt);
+            if (timeout > 0) {
+                Statement s = stmt;
+                setQueryTimeout(stmt, timeout);
+                watchdog = ExecutorPool.schedule(() -> cancel(s, timeout, cancelled), timeout);
+            }
+            AsyncStatement running = AsyncStatement.start(stmt, hqlStmt);
+            if (running != null) {
+                done = running.whenDone(ExecutorPool.getPoller(), context.getConfig().getPollIntervalMillis());
+            } else {
+                stmt.execute(hqlStmt);
+                done = CompletableFuture.completedFuture(null);
+            }
+        } catch (SQLException | RuntimeException e) {
+            done = failed(e);
+        }
+        Statement s = stmt;
+        ScheduledFuture<?> w = watchdog;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        done.whenComplete((v, t) -> {
+            Throwable failure = cause(t);
+            if (w != null) w.cancel(false);
+            if (s != null) {
+                abort.unregister(s);
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure == null) {
+                result.complete(null);
+            } else {
+                if (failure instanceof SQLException)
+                    timedOut(context, hqlStmt, timeout, (SQLException) failure, cancelled);
+                result.completeExceptionally(failure);
+            }
+        });
+        return result;
+    }
+
+    private static void timedOut(ExecutionContext context, String hqlStmt, long timeout, SQLException e,
+                                 AtomicBoolean cancelled) {
+        if (cancelled.get() || e instanceof SQLTimeoutException) {
+            log.error("HQL statement timed out after " + timeout + "ms: " + hqlStmt);
+            context.getTimedOut().set(true);
+        }
+    }
+
+    /**
+     * Continue a TaskNode on its context's executor, or on the calling thread once the executor has been shut down.
+     */
+    private static void resume(ExecutionContext context, Runnable next) {
+        try {
+            context.getExecutor().execute(next);
+        } catch (RejectedExecutionException e) {
+            next.run();
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+
+    private static Throwable cause(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * @return the result of a future, rethrowing the unchecked exception it failed with.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable t = cause(e);
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw e;
+        }
+    }
+
+    private static void logSQLException(SQLException e) {
+        log.error("SQLException:");
+        while (e != null) {
+            log.error("SQLException:", e);
+            log.error("SQLState: " + e.getSQLState());
+            log.error("Message: " + e.getMessage());
+            log.error("Vendor: " + e.getErrorCode());
+            e = e.getNextException();
+        }
+    }
+
+    /**
+     * Called from the watchdog thread when a statement runs out of time.
+     */
+    private static void cancel(Statement stmt, long timeout, AtomicBoolean cancelled) {
+        log.warn("HQL statement still running after " + timeout + "ms - cancelling");
+        cancelled.set(true);
+        try {
+            stmt.cancel();
+        } catch (SQLException e) {
+            log.error("Error cancelling statement", e);
+        }
+    }
+
+    /**
+     * Pass the timeout to the driver as well, rounded up to whole seconds. Older Hive drivers do not support query
+     * timeouts and throw, they rely on the watchdog alone.
+     */
+    private static void setQueryTimeout(Statement stmt, long timeout) {
+        try {
+            stmt.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (timeout + 999) / 1000));
+        } catch (SQLException e) {
+            log.debug("Statement.setQueryTimeout() not supported by driver - " + e.getMessage());
+        }
     }
 
     /**
      * Send an email (if configured to do so) on HQL statement failure.
      *
-     * @param stmt - HQL statement that failed.
+     * @param config - RunConfig of the run.
+     * @param stmt   - HQL statement that failed.
      */
-    private static void MailFailure(String stmt) {
-        if (Controller.getInstance().getConf().getBoolean(ControllerConfiguration.SEND_MAIL_ON_FAILURE, false)) {
-            Util.SendMail(Controller.getInstance().getConf().get(ControllerConfiguration.SEND_MAIL_FROM), Controller.getInstance().getConf().getStrings(ControllerConfiguration.SEND_MAIL_TO), "Hive Execution failure", stmt + "Failed - refer to log file");
+    private static void MailFailure(RunConfig config, String stmt) {
+        if (config.isMailOnFailure()) {
+            Util.SendMail(config, config.getMailFrom(), config.getMailTo(), "Hive Execution failure", stmt + "Failed - refer to log file");
         }
     }
 
     @SuppressWarnings("unused")
     private static void traceResultSetMetaData(ResultSet rs, Logger log) throws SQLException {
         if (log.isTraceEnabled()) {
-            if (jdbcTypeMappings == null) jdbcTypeMappings = getJdbcTypeMappings();
             ResultSetMetaData rm = rs.getMetaData();
             log.trace("ResultSet Column Count: " + rm.getColumnCount());
             for (int i = 1; i <= rm.getColumnCount(); i++)
@@ -212,17 +634,12 @@ public class Hive {
         return result;
     }
 
-    private static String replaceParams(String line) {
-        if (substitutor == null) {
-            return line;
-        }
-        return substitutor.replace(line);
-    }
 
+    static final String TIMEOUT = "timeout";
+    static final String STATEMENT_TIMEOUT = "statementTimeout";
 
-    private static Map<Integer, String> jdbcTypeMappings;
-    private static Logger log;
-    private static StrSubstitutor substitutor;
+    private static final Map<Integer, String> jdbcTypeMappings = getJdbcTypeMappings();
+    private static final Logger log = LoggerFactory.getLogger(Hive.class);
 }
 
 
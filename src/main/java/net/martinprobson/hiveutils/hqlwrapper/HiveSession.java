@@ -0,0 +1,150 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A HiveServer2 session: a connection borrowed from a DataSource when it is first needed, and the statements that
+ * changed the state of the session (<code>SET</code>, <code>USE</code>, <code>ADD JAR</code> ...), so the state can be
+ * replayed on a new connection if the connection breaks (see {@link ExecutionContext#reconnect(long)}).
+ * <p>
+ * The {@link SessionState} of the connection, including the state left by the tasks that borrowed it before, is
+ * tracked while it is borrowed, and handed back to the pool with the connection, unless it holds state that can not
+ * be tracked, in which case the connection is discarded.
+ * <p>
+ * Each TaskNode normally has a session of its own, closed when it completes. A session pinned to a TaskQueue (see
+ * {@link StickySessions}) is used by the TaskNodes of the queue one after another, so its state, and the Tez session
+ * behind it, carry over from one file to the next.
+ */
+class HiveSession {
+
+    /**
+     * @param dataSource - DataSource to borrow the connection from.
+     */
+    HiveSession(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    Connection getConnection() throws SQLException {
+        if (conn == null) {
+            conn = dataSource.getConnection();
+            connState = DBSource.takeSessionState(conn);
+        }
+        return conn;
+    }
+
+    /**
+     * Record a statement that succeeded on this session (or was already in effect, see {@link #isApplied(String)}).
+     */
+    void executed(String stmt) {
+        if (RetryPolicy.isSessionStatement(stmt)) {
+            state.add(stmt);
+            replayed(stmt);
+        } else if (RetryPolicy.isTemporaryTable(stmt)) {
+            temporaryTables = true;
+        }
+    }
+
+    /**
+     * Record a statement of the session state replayed on a new connection.
+     */
+    void replayed(String stmt) {
+        if (connState != null) connState.applied(stmt);
+    }
+
+    /**
+     * @return <code>true</code> if the statement is a <code>SET</code> or <code>USE</code> already in effect on the
+     * connection, so need not be executed.
+     */
+    boolean isApplied(String stmt) throws SQLException {
+        getConnection();
+        return connState.isApplied(stmt);
+    }
+
+    /**
+     * @return <code>true</code> if the connection holds settings, or a database, left by an earlier task and not
+     * asked for by this session.
+     */
+    boolean isTainted() throws SQLException {
+        getConnection();
+        return connState.isTainted();
+    }
+
+    /**
+     * @return the statements that undo the state left on the connection by earlier tasks, or <code>null</code> if it
+     * can not be undone (see {@link SessionState#undo(String, boolean)}).
+     */
+    List<String> undoInherited(String database, boolean resettable) throws SQLException {
+        getConnection();
+        return connState.undo(database, resettable);
+    }
+
+    /**
+     * Record a statement returned by undoInherited() that has been executed.
+     */
+    void undone(String stmt) {
+        if (stmt.equals("reset")) connState.reset();
+        else connState.applied(stmt);
+    }
+
+    /**
+     * @return the statements that changed the state of this session, in the order they were executed.
+     */
+    List<String> getState() {
+        return Collections.unmodifiableList(state);
+    }
+
+    boolean hasTemporaryTables() {
+        return temporaryTables;
+    }
+
+    /**
+     * Evict the current connection from the pool, the next getConnection() borrows a new one. The session state is
+     * kept, to be replayed on the new connection.
+     */
+    void invalidate() {
+        if (conn != null) {
+            Connection old = conn;
+            conn = null;
+            connState = null;
+            DBSource.invalidate(old);
+        }
+    }
+
+    /**
+     * Return the connection to the pool, with its SessionState, and forget the session state. A connection whose
+     * state can not be tracked is discarded.
+     */
+    void close() throws SQLException {
+        boolean tracked = !temporaryTables;
+        state.clear();
+        temporaryTables = false;
+        if (conn != null) {
+            Connection c = conn;
+            SessionState s = connState;
+            conn = null;
+            connState = null;
+            if (!tracked || !s.isTracked()) {
+                log.debug("Discarding connection - session state can not be reset");
+                DBSource.invalidate(c);
+                return;
+            }
+            DBSource.putSessionState(c, s);
+            c.close();
+        }
+    }
+
+    private final DataSource dataSource;
+    private final List<String> state = new ArrayList<>();
+    private boolean temporaryTables = false;
+    private Connection conn = null;
+    private SessionState connState = null;
+    private final static Logger log = LoggerFactory.getLogger(HiveSession.class);
+}
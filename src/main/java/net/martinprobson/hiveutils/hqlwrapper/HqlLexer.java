@@ -0,0 +1,170 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a script into HQL statements in a single pass over its characters.
+ * <p>
+ * Statements are terminated by <code>;</code>. Quoted text (<code>'...'</code>, <code>"..."</code> with backslash
+ * escapes, and <code>`...`</code>) is passed through untouched, so a <code>;</code>, <code>--</code> or
+ * <code>/*</code> inside a string literal or quoted identifier does not end the statement or start a comment. Outside
+ * quotes, <code>--</code> line comments and <code>/* ... *&#47;</code> block comments are removed. Statements are
+ * trimmed, empty statements are skipped and, as with the Hive CLI, text after the last <code>;</code> is ignored.
+ * <p>
+ * The lexer does not copy the script: next() only moves over it, recording the offsets of each statement (see
+ * start() and end()), and statement() takes a single substring of the script, only building the statement up when it
+ * contains a comment.
+ * <pre>
+ * HqlLexer lexer = new HqlLexer(hql);
+ * while (lexer.next())
+ *     execute(lexer.statement());
+ * </pre>
+ */
+final class HqlLexer {
+
+    /**
+     * @param hql - script to split.
+     */
+    HqlLexer(CharSequence hql) {
+        this.hql = hql;
+        this.length = hql.length();
+    }
+
+    /**
+     * Split a script into its statements.
+     *
+     * @param hql - script to split.
+     * @return the statements, with comments removed.
+     */
+    static List<String> split(CharSequence hql) {
+        List<String> stmts = new ArrayList<>();
+        HqlLexer lexer = new HqlLexer(hql);
+        while (lexer.next())
+            stmts.add(lexer.statement());
+        return stmts;
+    }
+
+    /**
+     * Move to the next statement.
+     *
+     * @return <code>false</code> if there are no more statements.
+     */
+    boolean next() {
+        int i = pos;
+        int first = -1;
+        int last = -1;
+        boolean comments = false;
+        while (i < length) {
+            char c = hql.charAt(i);
+            if (c == ';') {
+                i++;
+                if (first < 0) continue;
+                pos = i;
+                start = first;
+                end = last;
+                hasComments = comments;
+                return true;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                if (first < 0) first = i;
+                i = skipQuoted(i);
+                last = i;
+            } else if (c == '-' && i + 1 < length && hql.charAt(i + 1) == '-') {
+                i = skipLineComment(i);
+                comments |= first >= 0;
+            } else if (c == '/' && i + 1 < length && hql.charAt(i + 1) == '*') {
+                i = skipBlockComment(i);
+                comments |= first >= 0;
+            } else {
+                if (!Character.isWhitespace(c)) {
+                    if (first < 0) first = i;
+                    last = i + 1;
+                }
+                i++;
+            }
+        }
+        pos = length;
+        start = end = -1;
+        return false;
+    }
+
+    /**
+     * @return offset in the script of the first character of the current statement.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * @return offset in the script after the last character of the current statement (before its <code>;</code>).
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @return the current statement, with comments removed.
+     */
+    String statement() {
+        if (start < 0)
+            throw new IllegalStateException("No current statement");
+        if (!hasComments)
+            return hql.subSequence(start, end).toString();
+        StringBuilder s = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = hql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                int j = skipQuoted(i);
+                s.append(hql, i, j);
+                i = j;
+            } else if (c == '-' && i + 1 < end && hql.charAt(i + 1) == '-') {
+                i = skipLineComment(i);
+            } else if (c == '/' && i + 1 < end && hql.charAt(i + 1) == '*') {
+                i = skipBlockComment(i);
+                s.append(' ');
+            } else {
+                s.append(c);
+                i++;
+            }
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return offset after the closing quote of the quoted text starting at <code>i</code>.
+     */
+    private int skipQuoted(int i) {
+        char quote = hql.charAt(i++);
+        while (i < length) {
+            char c = hql.charAt(i++);
+            if (c == quote) return i;
+            if (c == '\\' && quote != '`') i++;
+        }
+        return length;
+    }
+
+    /**
+     * @return offset of the line end of the line comment starting at <code>i</code>.
+     */
+    private int skipLineComment(int i) {
+        while (i < length && hql.charAt(i) != '\n' && hql.charAt(i) != '\r') i++;
+        return i;
+    }
+
+    /**
+     * @return offset after the end of the block comment starting at <code>i</code>.
+     */
+    private int skipBlockComment(int i) {
+        for (i += 2; i + 1 < length; i++)
+            if (hql.charAt(i) == '*' && hql.charAt(i + 1) == '/') return i + 2;
+        return length;
+    }
+
+    private final CharSequence hql;
+    private final int length;
+    private int pos = 0;
+    private int start = -1;
+    private int end = -1;
+    private boolean hasComments = false;
+}
@@ -0,0 +1,146 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads HQL statements one at a time from a stream, splitting them as {@link HqlLexer} does (quotes, escapes, line
+ * and block comments, empty statements skipped, text after the last <code>;</code> ignored).
+ * <p>
+ * Only the statement being read is held in memory, so a script of any size can be executed in memory bounded by its
+ * largest statement (see {@link TaskNode#isStreamed()}). The statements can be read with next(), or iterated, in
+ * which case an IOException is thrown as an UncheckedIOException.
+ */
+class HqlStatementReader implements Iterator<String>, Closeable {
+
+    /**
+     * @param in - stream of HQL, closed by close().
+     */
+    HqlStatementReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * @return the next statement, with comments removed, or <code>null</code> at the end of the stream.
+     * @throws IOException on error reading the stream.
+     */
+    String read() throws IOException {
+        StringBuilder s = stmt;
+        s.setLength(0);
+        int c;
+        while ((c = nextChar()) != -1) {
+            if (c == ';') {
+                String result = trim(s);
+                if (result != null) return result;
+                s.setLength(0);
+            } else if (c == '\'' || c == '"' || c == '`') {
+                s.append((char) c);
+                copyQuoted((char) c, s);
+            } else if (c == '-' && peek() == '-') {
+                skipLineComment();
+            } else if (c == '/' && peek() == '*') {
+                nextChar();
+                skipBlockComment();
+                s.append(' ');
+            } else {
+                s.append((char) c);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !eof) {
+            try {
+                next = read();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            eof = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void copyQuoted(char quote, StringBuilder s) throws IOException {
+        int c;
+        while ((c = nextChar()) != -1) {
+            s.append((char) c);
+            if (c == quote) return;
+            if (c == '\\' && quote != '`') {
+                if ((c = nextChar()) == -1) return;
+                s.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Skip to the end of the line, leaving the line end to be read.
+     */
+    private void skipLineComment() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && c != '\n' && c != '\r') nextChar();
+    }
+
+    private void skipBlockComment() throws IOException {
+        int c;
+        while ((c = nextChar()) != -1)
+            if (c == '*' && peek() == '/') {
+                nextChar();
+                return;
+            }
+    }
+
+    /**
+     * @return the statement without leading and trailing white space, <code>null</code> if it is empty.
+     */
+    private static String trim(StringBuilder s) {
+        int start = 0, end = s.length();
+        while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+        return start == end ? null : s.substring(start, end);
+    }
+
+    private int nextChar() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buffer[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder stmt = new StringBuilder();
+    private int pos = 0;
+    private int limit = 0;
+    private String next = null;
+    private boolean eof = false;
+}
@@ -0,0 +1,211 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An HQL statement compiled once into literal text and <code>${name}</code> parameter slots, so it can be rendered for
+ * any number of parameter maps (see {@link Backfill}) by concatenation, without scanning the statement again.
+ * <p>
+ * Rendering gives the same result as substituting the parameters with commons-lang <code>StrSubstitutor</code>: -
+ * <ul>
+ * <li><code>${name}</code> is replaced with the value of the parameter, which is itself substituted,</li>
+ * <li><code>${name:-default}</code> is replaced with the default if there is no parameter <code>name</code>,</li>
+ * <li><code>$${name}</code> is an escape, giving a literal <code>${name}</code>,</li>
+ * <li>a variable with no value is left in the statement as it is, for Hive to substitute (e.g.
+ * <code>${hiveconf:run_date}</code>).</li>
+ * </ul>
+ * The variables that neither the parameters nor Hive will resolve can be found before anything is executed, see
+ * {@link #unresolved(List, Map)}.
+ */
+final class HqlTemplate {
+
+    private HqlTemplate(String source, String[] literals, Slot[] slots) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * @param stmt - HQL statement.
+     * @return the compiled statement.
+     */
+    static HqlTemplate compile(String stmt) {
+        List<String> literals = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        boolean escaped = false;
+        int length = stmt.length();
+        int i = 0;
+        while (i < length) {
+            int start = stmt.indexOf(PREFIX, i);
+            if (start < 0) break;
+            literal.append(stmt, i, start);
+            if (start > 0 && stmt.charAt(start - 1) == ESCAPE) {
+                // $${name} - the escape is kept in place of the prefix's $, the rest is literal text.
+                i = start + 1;
+                escaped = true;
+                continue;
+            }
+            int end = stmt.indexOf(SUFFIX, start + PREFIX.length());
+            if (end < 0) {
+                i = start;
+                break;
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            slots.add(new Slot(stmt.substring(start, end + 1), stmt.substring(start + PREFIX.length(), end)));
+            i = end + 1;
+        }
+        if (slots.isEmpty() && !escaped)
+            return new HqlTemplate(stmt, NO_LITERALS, NO_SLOTS);
+        literal.append(stmt, i, length);
+        literals.add(literal.toString());
+        return new HqlTemplate(stmt, literals.toArray(new String[0]), slots.toArray(new Slot[0]));
+    }
+
+    /**
+     * Compile statements as they are read (see {@link HqlStatementReader}).
+     */
+    static Iterator<HqlTemplate> compile(Iterator<String> stmts) {
+        return new Iterator<HqlTemplate>() {
+            @Override
+            public boolean hasNext() {
+                return stmts.hasNext();
+            }
+
+            @Override
+            public HqlTemplate next() {
+                return compile(stmts.next());
+            }
+        };
+    }
+
+    /**
+     * @param params - parameters to substitute, may be <code>null</code>.
+     * @return the statement with the parameters substituted.
+     * @throws IllegalStateException if the value of a parameter refers to itself.
+     */
+    String render(Map<String, String> params) {
+        return params == null ? source : render(params, null);
+    }
+
+    private String render(Map<String, String> params, List<String> prior) {
+        if (slots.length == 0) return literals.length == 0 ? source : literals[0];
+        StringBuilder s = new StringBuilder(source.length() + 16 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            s.append(literals[i]);
+            Slot slot = slots[i];
+            String value = params.get(slot.name);
+            if (value == null) value = slot.defaultValue;
+            if (value == null) {
+                s.append(slot.raw);
+            } else if (value.contains(PREFIX)) {
+                List<String> names = prior == null ? new ArrayList<>() : new ArrayList<>(prior);
+                if (names.contains(slot.name))
+                    throw new IllegalStateException("Infinite loop in property interpolation of " + source + ": "
+                            + String.join("->", names) + "->" + slot.name);
+                names.add(slot.name);
+                s.append(compile(value).render(params, names));
+            } else {
+                s.append(value);
+            }
+        }
+        s.append(literals[slots.length]);
+        return s.toString();
+    }
+
+    /**
+     * @return the statement as it was compiled.
+     */
+    String getSource() {
+        return source;
+    }
+
+    /**
+     * Find the variables in a script that would be sent to Hive unsubstituted, and that Hive would not resolve either.
+     * A variable is resolved if it has a parameter or a default, has a Hive namespace (<code>hiveconf:</code>,
+     * <code>hivevar:</code>, <code>system:</code>, <code>env:</code>), or is set by an earlier <code>SET</code>
+     * statement of the script (<code>set hivevar:name=...</code>).
+     *
+     * @param stmts  - statements of the script, in order.
+     * @param params - parameters of the script, may be <code>null</code>.
+     * @return names of the unresolved variables, empty if there are none.
+     */
+    static Set<String> unresolved(List<HqlTemplate> stmts, Map<String, String> params) {
+        Set<String> unresolved = new LinkedHashSet<>();
+        Set<String> set = new HashSet<>();
+        for (HqlTemplate stmt : stmts) {
+            for (Slot slot : stmt.slots)
+                if (slot.defaultValue == null && (params == null || params.get(slot.name) == null)
+                        && !set.contains(slot.name) && !hasNamespace(slot.name))
+                    unresolved.add(slot.name);
+            String name = setVariable(stmt.source);
+            if (name != null) set.add(name);
+        }
+        return unresolved;
+    }
+
+    private static boolean hasNamespace(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        for (String namespace : NAMESPACES)
+            if (n.startsWith(namespace)) return true;
+        return false;
+    }
+
+    /**
+     * @return the name of the variable set by a <code>SET [hiveconf:|hivevar:]name=value</code> statement, or
+     * <code>null</code>.
+     */
+    private static String setVariable(String stmt) {
+        if (stmt.length() < 4 || !stmt.regionMatches(true, 0, "set", 0, 3) || !Character.isWhitespace(stmt.charAt(3)))
+            return null;
+        int eq = stmt.indexOf('=');
+        if (eq < 0) return null;
+        String name = stmt.substring(4, eq).trim();
+        for (String namespace : SET_NAMESPACES)
+            if (name.regionMatches(true, 0, namespace, 0, namespace.length()))
+                return name.substring(namespace.length());
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * A <code>${name}</code> or <code>${name:-default}</code> variable.
+     */
+    private static final class Slot {
+        Slot(String raw, String variable) {
+            this.raw = raw;
+            int d = variable.indexOf(DEFAULT_DELIMITER);
+            this.name = d < 0 ? variable : variable.substring(0, d);
+            this.defaultValue = d < 0 ? null : variable.substring(d + DEFAULT_DELIMITER.length());
+        }
+
+        final String raw;
+        final String name;
+        final String defaultValue;
+    }
+
+    private static final String PREFIX = "${";
+    private static final String SUFFIX = "}";
+    private static final char ESCAPE = '$';
+    private static final String DEFAULT_DELIMITER = ":-";
+    private static final String[] NAMESPACES = {"hiveconf:", "hivevar:", "system:", "env:"};
+    private static final String[] SET_NAMESPACES = {"hiveconf:", "hivevar:"};
+    private static final String[] NO_LITERALS = {};
+    private static final Slot[] NO_SLOTS = {};
+
+    private final String source;
+    private final String[] literals;
+    private final Slot[] slots;
+}
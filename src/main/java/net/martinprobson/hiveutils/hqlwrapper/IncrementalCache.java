@@ -0,0 +1,226 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Skip HQL files whose inputs have not changed since they last succeeded, in the style of a build system.
+ * <p>
+ * Every single task is given a fingerprint, a SHA-256 digest of: -
+ * <ul>
+ * <li>the HQL text of the file (for a streamed file, see {@link TaskNode#isStreamed()}, a digest of its content),
+ * <li>the parameters substituted into it,
+ * <li>the <code>run_date</code> passed to Hive, and
+ * <li>the fingerprints of the TaskNodes it depends on (see {@link TaskGraph}), a sub-directory's fingerprint being
+ * that of the files within it.
+ * </ul>
+ * The fingerprint of each file that succeeds is stored in a local cache file. On the next incremental run a file is
+ * skipped when its fingerprint matches the cache and none of the TaskNodes it depends on are executed, so after
+ * changing one file only that file and the files downstream of it are executed.
+ * <p>
+ * The cache is keyed by root directory, so one cache file can serve several job configurations. It is rewritten (via a
+ * temporary file and a rename) at the end of each run.
+ */
+class IncrementalCache {
+
+    /**
+     * Load the cache and fingerprint every TaskNode in a graph.
+     *
+     * @param cacheFile - local file holding the cache, it need not exist.
+     * @param root      - root directory of the run.
+     * @param graph     - graph of the run.
+     * @param runDate   - <code>run_date</code> passed to Hive.
+     * @return IncrementalCache.
+     * @throws HqlWrapperException if the file of a streamed TaskNode can not be read to fingerprint it.
+     */
+    static IncrementalCache load(String cacheFile, String root, TaskGraph graph, String runDate) throws HqlWrapperException {
+        IncrementalCache cache = new IncrementalCache(Paths.get(cacheFile), root, graph);
+        synchronized (IncrementalCache.class) {
+            cache.entries.putAll(read(cache.file));
+        }
+        try {
+            cache.fingerprint(runDate);
+        } catch (UncheckedIOException e) {
+            throw new HqlWrapperException(e.getMessage() + " - " + e.getCause().getMessage());
+        }
+        return cache;
+    }
+
+    /**
+     * Mark every single task whose fingerprint matches the cache, and whose dependencies are not executed, as SUCCESS,
+     * so it is skipped when executed.
+     *
+     * @param journal - journal of the run, may be <code>null</code>.
+     * @return number of tasks marked as SUCCESS.
+     */
+    int markUnchanged(RunJournal journal) {
+        Set<TaskNode> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+        int n = 0;
+        for (TaskNode node : order) {
+            boolean changed = node.getTasks().size() == 0
+                    && !fingerprints.get(node).equals(entries.get(key(node)))
+                    && node.getResult() != TaskResult.SUCCESS;
+            for (TaskGraph.Edge e : graph.getDependencies(node))
+                changed |= dirty.contains(e.node);
+            if (changed) {
+                dirty.add(node);
+            } else if (node.getTasks().size() == 0 && node.getResult() != TaskResult.SUCCESS) {
+                log.debug(node.getId() + " - unchanged (" + fingerprints.get(node) + ")");
+                node.setResult(TaskResult.SUCCESS);
+                long now = System.currentTimeMillis();
+                if (journal != null) journal.finished(node, TaskResult.SUCCESS, now, now);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Record the fingerprint of every single task that succeeded, forget those that did not, and write the cache.
+     */
+    void save() {
+        // Several runs may share the cache (see Daemon), so merge this run's files into the cache as it is now.
+        synchronized (IncrementalCache.class) {
+            Map<String, String> current = read(file);
+            for (TaskNode node : order) {
+                if (node.getTasks().size() != 0) continue;
+                if (node.getResult() == TaskResult.SUCCESS)
+                    current.put(key(node), fingerprints.get(node));
+                else
+                    current.remove(key(node));
+            }
+            StringBuilder s = new StringBuilder();
+            for (Map.Entry<String, String> e : new TreeMap<>(current).entrySet())
+                s.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+            try {
+                if (file.toAbsolutePath().getParent() != null)
+                    Files.createDirectories(file.toAbsolutePath().getParent());
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(tmp, s.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.error("Unable to write incremental cache: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @return the entries of a cache file, none if it does not exist or can not be read.
+     */
+    private static Map<String, String> read(Path file) {
+        Map<String, String> entries = new HashMap<>();
+        if (!Files.exists(file)) return entries;
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (f.length == 3) entries.put(f[0] + "\t" + f[1], f[2]);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read incremental cache: " + file + " - every file will be executed", e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * @param node - a TaskNode in the graph.
+     * @return hex fingerprint of the TaskNode.
+     */
+    String getFingerprint(TaskNode node) {
+        return fingerprints.get(node);
+    }
+
+    /**
+     * Fingerprint each TaskNode after the TaskNodes it depends on (a post-order walk of the dependencies, iterative so
+     * that long chains of files can not overflow the stack).
+     */
+    private void fingerprint(String runDate) {
+        Set<TaskNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<TaskNode> path = new ArrayDeque<>();
+        Deque<Iterator<TaskGraph.Edge>> pending = new ArrayDeque<>();
+        for (TaskNode start : graph.getNodes()) {
+            if (!visited.add(start)) continue;
+            path.push(start);
+            pending.push(graph.getDependencies(start).iterator());
+            while (!pending.isEmpty()) {
+                if (pending.peek().hasNext()) {
+                    TaskNode next = pending.peek().next().node;
+                    if (visited.add(next)) {
+                        path.push(next);
+                        pending.push(graph.getDependencies(next).iterator());
+                    }
+                    continue;
+                }
+                pending.pop();
+                TaskNode node = path.pop();
+                fingerprints.put(node, digest(node, runDate));
+                order.add(node);
+            }
+        }
+    }
+
+    private String digest(TaskNode node, String runDate) {
+        MessageDigest md = sha256();
+        if (node.getTasks().size() == 0) {
+            if (node.isStreamed())
+                update(md, "hql-sha256", node.getContentHash());
+            else
+                update(md, "hql", node.getHql());
+            for (Map.Entry<String, String> e : new TreeMap<>(graph.getQueue(node).getParams()).entrySet())
+                update(md, "param", e.getKey() + "=" + e.getValue());
+            update(md, "run_date", runDate);
+        }
+        for (TaskGraph.Edge e : graph.getDependencies(node))
+            update(md, e.hard ? "hard" : "soft", fingerprints.get(e.node));
+        return hex(md.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Add a length prefixed field to the digest, so that no two different sets of fields produce the same input.
+     */
+    private static void update(MessageDigest md, String name, String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        md.update((name + ":" + bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+        md.update(bytes);
+    }
+
+    private String key(TaskNode node) {
+        return root + "\t" + node.getId();
+    }
+
+    private IncrementalCache(Path file, String root, TaskGraph graph) {
+        this.file = file;
+        this.root = root;
+        this.graph = graph;
+    }
+
+    private final Path file;
+    private final String root;
+    private final TaskGraph graph;
+    private final Map<String, String> entries = new HashMap<>();
+    private final Map<TaskNode, String> fingerprints = new IdentityHashMap<>();
+    private final List<TaskNode> order = new ArrayList<>();
+    private final static Logger log = LoggerFactory.getLogger(IncrementalCache.class);
+}
@@ -0,0 +1,239 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compiled job plan: the TaskQueue tree of a root directory, with the HQL, statements, header annotations and
+ * content digest of each file, written to a single local file so later runs need not list the directories or read
+ * and split the HQL files.
+ * <p>
+ * The plan is written by <code>--compile</code> to <code>hql.planFile</code>. When <code>hql.planFile</code> is set
+ * and the plan is current, a run loads its TaskQueue from the plan with one read of that file. The plan records the
+ * modification time of each directory when it was listed, and is current when it was compiled for the same root and
+ * no directory's modification time has changed (one file system call per directory rather than several per file).
+ * Adding, removing or renaming a file changes the modification time of its directory. Otherwise the plan is stale, a
+ * message is logged, and the directories are listed and the files read as usual, see {@link TaskQueueLoader}.
+ * <p>
+ * The plan is written (via a temporary file and a rename) as gzipped binary.
+ */
+final class JobPlan {
+
+    /**
+     * List and read a root directory and write its plan.
+     *
+     * @param root     - root directory.
+     * @param planFile - local file to write the plan to.
+     * @param config   - RunConfig of the run.
+     * @return the TaskQueue written to the plan.
+     * @throws HqlWrapperException if the root directory can not be listed, or its dependency graph is invalid.
+     */
+    static TaskQueue compile(String root, String planFile, RunConfig config) throws HqlWrapperException {
+        // Taken before the listing, so a change made while the plan is compiled makes it stale.
+        long modificationTime;
+        try {
+            modificationTime = FileUtil.getModificationTime(new Path(root));
+        } catch (UncheckedIOException e) {
+            throw new HqlWrapperException(e.getMessage() + " - " + e.getCause().getMessage());
+        }
+        TaskQueue taskQueue = new TaskQueue(root, Collections.emptyMap(), config);
+        taskQueue.setModificationTime(modificationTime);
+        java.nio.file.Path file = Paths.get(planFile);
+        try {
+            if (file.toAbsolutePath().getParent() != null)
+                Files.createDirectories(file.toAbsolutePath().getParent());
+            java.nio.file.Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, root);
+                writeQueue(out, new Path(root), taskQueue);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new HqlWrapperException("Unable to write plan file: " + planFile + " - " + e);
+        } catch (UncheckedIOException e) {
+            throw new HqlWrapperException("Unable to write plan file: " + planFile + " - " + e.getMessage() + " - "
+                    + e.getCause().getMessage());
+        }
+        log.info("Compiled " + root + " to plan file: " + planFile);
+        return taskQueue;
+    }
+
+    /**
+     * Return the TaskQueue of a root directory, loaded from the plan file if <code>hql.planFile</code> is set and the
+     * plan is current, otherwise built by listing the directory.
+     *
+     * @param root   - root directory.
+     * @param params - Map of parameters which will be substituted into the HQL script.
+     * @param config - RunConfig of the run.
+     * @return TaskQueue.
+     * @throws HqlWrapperException if the root directory can not be listed, or its dependency graph is invalid.
+     */
+    static TaskQueue taskQueue(String root, Map<String, String> params, RunConfig config) throws HqlWrapperException {
+        String planFile = config.getPlanFile();
+        if (planFile != null) {
+            TaskQueue taskQueue = load(root, params, planFile, config);
+            if (taskQueue != null) return taskQueue;
+        }
+        return new TaskQueue(root, params, config);
+    }
+
+    /**
+     * @return the TaskQueue held by a plan file, <code>null</code> if there is no plan for the root directory or it
+     * is stale.
+     */
+    static TaskQueue load(String root, Map<String, String> params, String planFile, RunConfig config)
+            throws HqlWrapperException {
+        java.nio.file.Path file = Paths.get(planFile);
+        if (!Files.exists(file)) {
+            log.info("No plan file: " + planFile + " - listing " + root);
+            return null;
+        }
+        TaskQueue taskQueue;
+        Map<Path, Long> directories = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("Plan file: " + planFile + " is not a plan of this version - listing " + root);
+                return null;
+            }
+            String planRoot = readString(in);
+            if (!root.equals(planRoot)) {
+                log.info("Plan file: " + planFile + " is a plan of " + planRoot + " - listing " + root);
+                return null;
+            }
+            taskQueue = new TaskQueue(new Path(root), params, 0, "");
+            readQueue(in, taskQueue, 0, directories, config.getStreamingThreshold());
+        } catch (IOException e) {
+            log.warn("Unable to read plan file: " + planFile + " - listing " + root, e);
+            return null;
+        }
+        for (Map.Entry<Path, Long> directory : directories.entrySet()) {
+            long modificationTime;
+            try {
+                modificationTime = FileUtil.getModificationTime(directory.getKey());
+            } catch (UncheckedIOException e) {
+                log.warn("Unable to check plan file: " + planFile + " is current - listing " + root, e.getCause());
+                return null;
+            }
+            if (modificationTime != directory.getValue()) {
+                log.info("Plan file: " + planFile + " is stale, " + directory.getKey() + " has changed - listing " + root);
+                return null;
+            }
+        }
+        log.info("Loaded " + root + " from plan file: " + planFile + " (" + directories.size() + " directories)");
+        taskQueue.buildGraph(config.isInferParallelism());
+        return taskQueue;
+    }
+
+    private static void writeQueue(DataOutputStream out, Path directory, TaskQueue taskQueue) throws IOException {
+        writeString(out, directory.toString());
+        out.writeLong(taskQueue.getModificationTime());
+        out.writeInt(taskQueue.size());
+        for (TaskNode node : taskQueue) {
+            writeString(out, node.getPath().toString());
+            if (node.getTasks().size() != 0) {
+                out.writeByte(DIRECTORY);
+                writeQueue(out, node.getPath(), node.getTasks());
+                continue;
+            }
+            boolean streamed = node.isStreamed();
+            out.writeByte(streamed ? STREAMED_FILE : FILE);
+            out.writeLong(FileUtil.getLength(node.getPath()));
+            writeString(out, node.getContentHash());
+            Map<String, String> annotations = node.getAnnotations();
+            out.writeInt(annotations.size());
+            for (Map.Entry<String, String> e : annotations.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+            if (!streamed) {
+                writeString(out, node.getHql());
+                List<String> statements = node.getStatements();
+                out.writeInt(statements.size());
+                for (String stmt : statements)
+                    writeString(out, stmt);
+            }
+        }
+    }
+
+    private static void readQueue(DataInputStream in, TaskQueue taskQueue, int level, Map<Path, Long> directories,
+                                  long streamingThreshold) throws IOException {
+        Path directory = new Path(readString(in));
+        taskQueue.setModificationTime(in.readLong());
+        directories.put(directory, taskQueue.getModificationTime());
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            Path path = new Path(readString(in));
+            String id = taskQueue.getId().isEmpty() ? path.getName() : taskQueue.getId() + "/" + path.getName();
+            byte type = in.readByte();
+            TaskNode node;
+            if (type == DIRECTORY) {
+                TaskQueue subTasks = new TaskQueue(path, taskQueue.getParams(), level + 1, id);
+                readQueue(in, subTasks, level + 1, directories, streamingThreshold);
+                node = new TaskNode(path, subTasks);
+            } else {
+                node = new TaskNode(path, in.readLong(), streamingThreshold);
+                String contentHash = readString(in);
+                int a = in.readInt();
+                Map<String, String> annotations = new HashMap<>();
+                for (int j = 0; j < a; j++)
+                    annotations.put(readString(in), readString(in));
+                String hql = null;
+                List<String> statements = null;
+                if (type == FILE) {
+                    hql = readString(in);
+                    int s = in.readInt();
+                    statements = new ArrayList<>(s);
+                    for (int j = 0; j < s; j++)
+                        statements.add(readString(in));
+                }
+                node.setCompiled(hql, statements, annotations, contentHash);
+            }
+            node.setId(id);
+            taskQueue.add(node);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private JobPlan() {
+    }
+
+    private static final int MAGIC = 0x48514c50;
+    private static final int VERSION = 1;
+    private static final byte DIRECTORY = 0;
+    private static final byte FILE = 1;
+    private static final byte STREAMED_FILE = 2;
+    private final static Logger log = LoggerFactory.getLogger(JobPlan.class);
+}
@@ -1,144 +1,262 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.*;
-import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.URL;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.KERBOROS_KEYTAB;
 
 
 /**
- * Get a valid Kerboros ticket based on jdbc.user/jdbc.password and kerboros.principal specified in configuration.
+ * Get a valid Kerboros ticket based on jdbc.user/jdbc.password (or kerboros.keytab) and kerboros.principal specified
+ * in configuration.
  * <p>
+ * The ticket is obtained in process (JAAS <code>Krb5LoginModule</code>, no <code>kinit</code>) the first time auth() is
+ * called with the RunConfig of a run, and handed to Hadoop (<code>UserGroupInformation</code>) so the HDFS client and
+ * Hive JDBC driver use it. A background thread logs in again once {@value #RENEW_FRACTION} of the ticket's lifetime has
+ * passed, swapping the new ticket into the same Subject, so a long running process (see {@link Daemon}) never holds an
+ * expired ticket. auth() itself only compares the clock with the renewal time, so it can be called before every
+ * statement.
  */
 public class Kerboros {
 
-    private static final Kerboros me;
-
-    static {
-        me = new Kerboros();
-    }
-
-
-    class MyCallbackHandler implements CallbackHandler {
-        public void handle(Callback[] callbacks)
-                throws UnsupportedCallbackException {
-
-            for (Callback callback : callbacks) {
-                if (callback instanceof NameCallback) {
-                    NameCallback nc = (NameCallback) callback;
-                    nc.setName(getLoginDomain());
-                } else if (callback instanceof PasswordCallback) {
-                    PasswordCallback pc = (PasswordCallback) callback;
-                    pc.setPassword(getLoginPassword().toCharArray());
-                } else throw new UnsupportedCallbackException
-                        (callback, "Unrecognised callback");
+    /**
+     * Make sure a valid Kerboros ticket is held, logging in with the settings of a RunConfig if need be. Does nothing
+     * if kerboros.principal is not set.
+     *
+     * @param config - RunConfig of the run.
+     * @throws HqlWrapperException if the first login fails.
+     */
+    static void auth(RunConfig config) throws HqlWrapperException {
+        if (System.currentTimeMillis() < renewAt) return;
+        if (config.getKerberosRealm() == null) return;
+        lock.lock();
+        try {
+            if (System.currentTimeMillis() < renewAt) return;
+            if (subject == null) {
+                try {
+                    login(config);
+                } catch (LoginException | IOException e) {
+                    throw new HqlWrapperException("Kerboros login failure for: " + getLoginDomain(config) + " - "
+                            + e.getMessage());
+                }
+                startRenewal();
+            } else {
+                renew();
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    private static String getLoginDomain() {
-        String s = Controller.getInstance().getConf().get(JDBC_USERNAME) + "@" + Controller.getInstance().getConf().get(KERBOROS_PRINCIPAL);
-        log.trace("Kerboros LoginDomain: " + s);
-        return s;
+    /**
+     * Run an action as the Kerboros user, for a Hive JDBC driver that takes its credentials from the calling Subject
+     * (<code>kerberosAuthType=fromSubject</code>).
+     *
+     * @param config - RunConfig of the run.
+     * @param action - action to run.
+     * @return result of the action.
+     * @throws Exception thrown by the action.
+     */
+    static <T> T doAs(RunConfig config, PrivilegedExceptionAction<T> action) throws Exception {
+        auth(config);
+        Subject s;
+        lock.lock();
+        try {
+            s = subject;
+        } finally {
+            lock.unlock();
+        }
+        if (s == null) return action.run();
+        try {
+            return Subject.doAs(s, action);
+        } catch (PrivilegedActionException e) {
+            throw e.getException();
+        }
     }
 
-    private static String getLoginPassword() {
-        return Controller.getInstance().getConf().get(JDBC_PASSWORD);
+    /**
+     * Log in for the first time, and make the Subject Hadoop's login user.
+     */
+    private static void login(RunConfig config) throws LoginException, IOException {
+        Subject fresh = new Subject();
+        newLoginContext(config, fresh).login();
+        subject = fresh;
+        loginConfig = config;
+        Configuration ugiConf = config.getConf();
+        ugiConf.set("hadoop.security.authentication", "kerberos");
+        UserGroupInformation.setConfiguration(ugiConf);
+        UserGroupInformation.loginUserFromSubject(subject);
+        renewAt = renewalTime(getTicket(subject), System.currentTimeMillis());
+        log.info("Kerboros login successful for: " + getLoginDomain(config) + " - renewal due: " + new java.util.Date(renewAt));
     }
 
-    //TODO auth_lib is currently not working correctly if a valid ticket does not exist in cache. Replace with auth_cmd for now.
-    @SuppressWarnings("unused")
-    private static void auth_lib() {
-        System.setProperty("sun.security.krb5.debug", "true");
-        if (System.getProperty("java.security.auth.login.config") == null) {
-            String ConfigFile;
-            ClassLoader cl = Thread.currentThread().getContextClassLoader();
-            URL ConfigURL = cl.getResource("login.conf");
-            assert ConfigURL != null;
-            ConfigFile = ConfigURL.getFile();
-            System.setProperty("java.security.auth.login.config", ConfigFile);
-        }
-        Subject subject = new Subject();
-        LoginContext lc = null;
-        try {
-            lc = new LoginContext("kerboros", subject, me.new MyCallbackHandler());
-        } catch (LoginException e) {
-            e.printStackTrace();
-            log.error("Kerboros LoginException - LoginContext failure");
-            System.exit(2);
-        }
+    /**
+     * Log in again and swap the new credentials into the Subject, so connections being opened while this happens, and
+     * Hadoop's login user, see either the old ticket or the new one. The settings the first login was made with are
+     * used, as renewal may run between (or outside) runs.
+     */
+    static void renew() {
+        lock.lock();
         try {
-            lc.login();
-        } catch (FailedLoginException e) {
-            e.printStackTrace();
-            log.error("Kerboros FailedLoginException - login failure");
-            System.exit(2);
-        } catch (LoginException e) {
-            e.printStackTrace();
-            log.error("Kerboros LoginException - login failure");
-            System.exit(2);
+            if (subject == null) return;
+            RunConfig config = loginConfig;
+            try {
+                Subject fresh = new Subject();
+                newLoginContext(config, fresh).login();
+                Set<Object> credentials = subject.getPrivateCredentials();
+                synchronized (credentials) {
+                    List<Object> old = new ArrayList<>(credentials);
+                    credentials.addAll(fresh.getPrivateCredentials());
+                    credentials.removeAll(old);
+                }
+                subject.getPrincipals().addAll(fresh.getPrincipals());
+                renewAt = renewalTime(getTicket(subject), System.currentTimeMillis());
+                log.info("Kerboros ticket renewed for: " + getLoginDomain(config) + " - next renewal due: " + new java.util.Date(renewAt));
+            } catch (LoginException e) {
+                // Keep the current ticket (it may still be valid) and try again shortly.
+                renewAt = System.currentTimeMillis() + RETRY_MILLIS;
+                log.error("Kerboros ticket renewal failed for: " + getLoginDomain(config) + " - retrying in " + RETRY_MILLIS / 1000 + "s", e);
+            }
+        } finally {
+            lock.unlock();
         }
-        log.trace("Successfully obtained kerboros login context.");
     }
 
-    //TODO Hack to bypass Kerboros auth problems
-    private static void auth_cmd() {
-        String logon = " kinit " + getLoginDomain();
-        log.trace("Attempting Kerboros logon using: " + logon);
-        log.trace("Logon: " + runCmd(logon, getLoginPassword()));
-        log.trace("klist returns: " + runCmd("klist", null));
+    /**
+     * @param ticket - the ticket granting ticket, <code>null</code> if it can not be found.
+     * @param now    - current time.
+     * @return time (epoch milliseconds) at which the ticket should be renewed.
+     */
+    static long renewalTime(KerberosTicket ticket, long now) {
+        if (ticket == null || ticket.getEndTime() == null)
+            return now + DEFAULT_RENEW_MILLIS;
+        long start = ticket.getStartTime() == null ? ticket.getAuthTime().getTime() : ticket.getStartTime().getTime();
+        return renewalTime(start, ticket.getEndTime().getTime(), now);
     }
 
-
-    public static void auth() {
-        if (Controller.getInstance().getConf().get(KERBOROS_PRINCIPAL) != null)
-            auth_cmd();
+    static long renewalTime(long start, long end, long now) {
+        long at = start + (long) ((end - start) * RENEW_FRACTION);
+        return Math.max(at, now + Math.min(RETRY_MILLIS, Math.max(0, end - now) / 2));
     }
 
-    private static String runCmd(String cmd, String input) {
+    private static KerberosTicket getTicket(Subject subject) {
+        for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class))
+            if (ticket.getServer().getName().startsWith("krbtgt/"))
+                return ticket;
+        return null;
+    }
 
-        StringBuilder sb = new StringBuilder();
+    private static void startRenewal() {
+        lock.lock();
         try {
-            Process p = Runtime.getRuntime().exec(cmd);
-            if (input != null) {
-                OutputStream out = p.getOutputStream();
-                String s = input + "\n";
-                out.write(s.getBytes());
-                out.flush();
-            }
-            p.waitFor();
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(p.getInputStream())
-            );
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+            if (renewer != null) return;
+            renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HQL_Kerboros");
+                t.setDaemon(true);
+                return t;
+            });
+            renewer.scheduleWithFixedDelay(() -> {
+                if (System.currentTimeMillis() >= renewAt) renew();
+            }, CHECK_SECONDS, CHECK_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static LoginContext newLoginContext(RunConfig config, Subject subject) throws LoginException {
+        Map<String, String> options = new HashMap<>();
+        String keytab = config.getKerberosKeytab();
+        options.put("principal", getLoginDomain(config));
+        options.put("useTicketCache", "false");
+        options.put("refreshKrb5Config", "true");
+        if (keytab != null) {
+            options.put("useKeyTab", "true");
+            options.put("keyTab", keytab);
+            options.put("storeKey", "true");
+            options.put("doNotPrompt", "true");
+        }
+        AppConfigurationEntry entry = new AppConfigurationEntry("com.sun.security.auth.module.Krb5LoginModule",
+                AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+        javax.security.auth.login.Configuration jaas = new javax.security.auth.login.Configuration() {
+            @Override
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return new AppConfigurationEntry[]{entry};
             }
+        };
+        return new LoginContext("kerboros", subject, new PasswordCallbackHandler(getLoginDomain(config), config.getJdbcPassword()), jaas);
+    }
 
-        } catch (IOException | InterruptedException e1) {
-            e1.printStackTrace();
-            System.exit(2);
+    /**
+     * Supply the principal and jdbc.password to the login module.
+     */
+    private static class PasswordCallbackHandler implements CallbackHandler {
+        PasswordCallbackHandler(String name, String password) {
+            this.name = name;
+            this.password = password;
         }
-        return sb.toString();
+
+        public void handle(Callback[] callbacks) throws UnsupportedCallbackException {
+            for (Callback callback : callbacks) {
+                if (callback instanceof NameCallback) {
+                    ((NameCallback) callback).setName(name);
+                } else if (callback instanceof PasswordCallback) {
+                    if (password == null)
+                        throw new UnsupportedCallbackException(callback, "No password (jdbc.password) or keytab (" + KERBOROS_KEYTAB + ") configured");
+                    ((PasswordCallback) callback).setPassword(password.toCharArray());
+                } else throw new UnsupportedCallbackException
+                        (callback, "Unrecognised callback");
+            }
+        }
+
+        private final String name;
+        private final String password;
+    }
+
+    private static String getLoginDomain(RunConfig config) {
+        String s = config.getJdbcUsername() + "@" + config.getKerberosRealm();
+        log.trace("Kerboros LoginDomain: " + s);
+        return s;
     }
 
     private Kerboros() {
     }
 
+    static final double RENEW_FRACTION = 0.8;
+    private static final long RETRY_MILLIS = 60 * 1000L;
+    private static final long DEFAULT_RENEW_MILLIS = 60 * 60 * 1000L;
+    private static final int CHECK_SECONDS = 30;
+
+    private static volatile long renewAt = 0;
+    private static Subject subject;
+    private static RunConfig loginConfig;
+    private static ScheduledExecutorService renewer;
+    // A lock rather than synchronized, as login and renewal call the KDC, and a virtual thread that blocks inside a
+    // synchronized block holds its carrier thread (see executor.virtualThreads).
+    private static final ReentrantLock lock = new ReentrantLock();
     private final static Logger log = LoggerFactory.getLogger(Kerboros.class);
 
-    public static void main(String[] args) {
-        auth();
+    public static void main(String[] args) throws HqlWrapperException {
+        auth(RunConfig.from(new ControllerConfiguration()));
     }
 }
@@ -0,0 +1,244 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+
+/**
+ * Decides whether a failed HQL statement should be retried, and how long to wait before doing so.
+ * <p>
+ * A failure is <i>transient</i> (worth retrying) if any exception in its chain: -
+ * <ul>
+ * <li>is an <code>SQLTransientException</code> or <code>SQLRecoverableException</code>,
+ * <li>has an SQLState in class 08 (connection exception, e.g. <code>08S01</code> reported by the Hive driver when
+ * the Thrift transport to HiveServer2 fails),
+ * <li>has a vendor error code listed in <code>retry.errorCodes</code> (default 10041, Hive's "locks cannot be
+ * acquired"), or
+ * <li>has a class name or message matching <code>retry.transientPattern</code> (by default Thrift transport, socket,
+ * lock and ZooKeeper errors).
+ * </ul>
+ * Only statements that can safely be run twice are retried (see {@link #isIdempotent(String)}): queries, session
+ * statements, <code>INSERT OVERWRITE</code>, <code>CREATE ... IF NOT EXISTS</code> and the like. An HQL file can opt
+ * in the rest of its statements with a <code>-- @retry: true</code> header annotation, or opt out of retries
+ * altogether with <code>-- @retry: false</code>.
+ * <p>
+ * Attempt <i>n</i> waits for an exponential backoff, <code>retry.initialBackoffMillis * 2^(n-1)</code> capped at
+ * <code>retry.maxBackoffMillis</code>, half of which is random (jitter) so that tasks failing together do not all
+ * retry together.
+ */
+class RetryPolicy {
+
+    static final String RETRY = "retry";
+
+    /**
+     * Build a RetryPolicy from the configuration.
+     *
+     * @param conf - Configuration.
+     * @return RetryPolicy.
+     */
+    static RetryPolicy fromConf(Configuration conf) {
+        Set<Integer> errorCodes = new HashSet<>();
+        for (String code : conf.getTrimmedStrings(RETRY_ERROR_CODES, DEFAULT_RETRY_ERROR_CODES))
+            errorCodes.add(Integer.parseInt(code));
+        return new RetryPolicy(conf.getInt(RETRY_MAX_ATTEMPTS, DEFAULT_RETRY_MAX_ATTEMPTS),
+                conf.getLong(RETRY_INITIAL_BACKOFF_MILLIS, DEFAULT_RETRY_INITIAL_BACKOFF_MILLIS),
+                conf.getLong(RETRY_MAX_BACKOFF_MILLIS, DEFAULT_RETRY_MAX_BACKOFF_MILLIS),
+                errorCodes,
+                Pattern.compile(conf.get(RETRY_TRANSIENT_PATTERN, DEFAULT_RETRY_TRANSIENT_PATTERN), Pattern.CASE_INSENSITIVE),
+                false);
+    }
+
+    /**
+     * Apply the <code>@retry</code> header annotation of a TaskNode.
+     *
+     * @param taskNode - TaskNode.
+     * @return RetryPolicy for the statements of the TaskNode.
+     */
+    RetryPolicy forTask(TaskNode taskNode) {
+        String value = taskNode.getAnnotation(RETRY);
+        if (value == null) return this;
+        if (Boolean.parseBoolean(value.trim()))
+            return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, errorCodes, transientPattern, true);
+        return new RetryPolicy(1, initialBackoff, maxBackoff, errorCodes, transientPattern, false);
+    }
+
+    /**
+     * @param stmt      - HQL statement that failed.
+     * @param e         - the failure.
+     * @param attempt   - number of attempts made so far.
+     * @return <code>true</code> if the statement should be attempted again.
+     */
+    boolean shouldRetry(String stmt, SQLException e, int attempt) {
+        return attempt < maxAttempts && (retryAll || isIdempotent(stmt)) && isTransient(e);
+    }
+
+    /**
+     * @param attempt - number of attempts made so far (1 or more).
+     * @return milliseconds to wait before the next attempt.
+     */
+    long getBackoff(int attempt) {
+        long backoff = initialBackoff << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoff) backoff = maxBackoff;
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param e - the failure.
+     * @return <code>true</code> if the failure is likely to go away if the statement is attempted again.
+     */
+    boolean isTransient(SQLException e) {
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Throwable> pending = new ArrayDeque<>();
+        pending.push(e);
+        while (!pending.isEmpty()) {
+            Throwable t = pending.pop();
+            if (!seen.add(t)) continue;
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+                return true;
+            if (t instanceof SQLException) {
+                SQLException s = (SQLException) t;
+                if (s.getSQLState() != null && s.getSQLState().startsWith("08"))
+                    return true;
+                if (errorCodes.contains(s.getErrorCode()))
+                    return true;
+                if (s.getNextException() != null) pending.push(s.getNextException());
+            }
+            if (transientPattern.matcher(t.getClass().getName()).find()
+                    || (t.getMessage() != null && transientPattern.matcher(t.getMessage()).find()))
+                return true;
+            if (t.getCause() != null) pending.push(t.getCause());
+        }
+        return false;
+    }
+
+    /**
+     * A statement is idempotent if running it a second time, after an attempt that may or may not have taken effect,
+     * leaves the same result.
+     *
+     * @param stmt - HQL statement.
+     * @return <code>true</code> if the statement can safely be retried.
+     */
+    static boolean isIdempotent(String stmt) {
+        List<String> t = TableAnalyzer.tokenize(stmt);
+        if (t.isEmpty()) return true;
+        switch (t.get(0)) {
+            case "set":
+            case "reset":
+            case "use":
+            case "add":
+            case "list":
+            case "show":
+            case "describe":
+            case "desc":
+            case "explain":
+            case "msck":
+            case "analyze":
+            case "truncate":
+                return true;
+            case "select":
+            case "with":
+            case "from":
+            case "insert":
+                // INSERT INTO appends, so a retry after a lost reply could load the rows twice.
+                for (int i = t.indexOf("insert"); i >= 0 && i < t.size(); i++)
+                    if (t.get(i).equals("insert") && !(i + 1 < t.size() && t.get(i + 1).equals("overwrite")))
+                        return false;
+                return true;
+            case "delete":
+                // DELETE FROM (ACID) is DML, like UPDATE and MERGE.
+                return isResource(t);
+            case "load":
+                return t.contains("overwrite");
+            case "create":
+                if (t.size() > 1 && (t.get(1).equals("temporary") || (t.get(1).equals("or") && t.contains("replace"))))
+                    return true;
+                return hasIfExists(t) && !t.contains("insert");
+            case "drop":
+            case "alter":
+                return hasIfExists(t);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the statement contains <code>IF [NOT] EXISTS</code>.
+     */
+    private static boolean hasIfExists(List<String> t) {
+        for (int i = 0; i + 1 < t.size(); i++) {
+            if (!t.get(i).equals("if")) continue;
+            if (t.get(i + 1).equals("exists")) return true;
+            if (t.get(i + 1).equals("not") && i + 2 < t.size() && t.get(i + 2).equals("exists")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if the statement is <code>DELETE JAR|FILE|ARCHIVE</code>, rather than
+     * <code>DELETE FROM</code> a table.
+     */
+    private static boolean isResource(List<String> t) {
+        return t.size() > 1 && t.get(1).matches("jars?|files?|archives?");
+    }
+
+    /**
+     * @param stmt - HQL statement.
+     * @return <code>true</code> if the statement only changes the state of the session (<code>SET</code>,
+     * <code>USE</code>, <code>ADD JAR</code>, <code>CREATE TEMPORARY FUNCTION</code> ...), so must be replayed on a new
+     * connection before the statements that follow it are retried.
+     */
+    static boolean isSessionStatement(String stmt) {
+        List<String> t = TableAnalyzer.tokenize(stmt);
+        if (t.isEmpty()) return false;
+        switch (t.get(0)) {
+            case "set":
+            case "reset":
+            case "use":
+            case "add":
+                return true;
+            case "delete":
+                return isResource(t);
+            case "create":
+                return t.size() > 2 && t.get(1).equals("temporary") && (t.get(2).equals("function") || t.get(2).equals("macro"));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param stmt - HQL statement.
+     * @return <code>true</code> if the statement creates a temporary table, which would be lost with the connection.
+     */
+    static boolean isTemporaryTable(String stmt) {
+        List<String> t = TableAnalyzer.tokenize(stmt);
+        return t.size() > 2 && t.get(0).equals("create") && t.get(1).equals("temporary") && t.get(2).equals("table");
+    }
+
+    private RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, Set<Integer> errorCodes, Pattern transientPattern, boolean retryAll) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = Math.max(0, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.errorCodes = errorCodes;
+        this.transientPattern = transientPattern;
+        this.retryAll = retryAll;
+    }
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Set<Integer> errorCodes;
+    private final Pattern transientPattern;
+    private final boolean retryAll;
+}
@@ -0,0 +1,226 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.commons.dbcp2.ConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * A DataSource that balances connections across several HiveServer2 instances (<code>jdbc.endpoints</code>), each
+ * with a connection pool of its own (see {@link DBSource}).
+ * <p>
+ * Each connection is borrowed from the healthy endpoint with the fewest connections borrowed, so the fewest
+ * statements outstanding, and of those the one that answered its last health checks the fastest. Endpoints that are
+ * equally loaded are used in turn.
+ * <p>
+ * An endpoint is ejected when a connection to it can not be opened, or it fails a health check, and is not used while
+ * there are healthy endpoints. Every <code>jdbc.healthCheckIntervalMillis</code> each endpoint is probed, on a new
+ * connection, with <code>pool.validationQuery</code> (<code>select 1</code> if not set), and an ejected endpoint that
+ * passes is used again. If every endpoint has been ejected they are all tried in turn.
+ */
+class RoutingDataSource implements DataSource {
+
+    /**
+     * @param endpoints           - endpoints to route to.
+     * @param probeQuery          - query executed by the health checks.
+     * @param healthCheckInterval - interval (milliseconds) between health checks, 0 for none.
+     */
+    RoutingDataSource(List<Endpoint> endpoints, String probeQuery, long healthCheckInterval) {
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.probeQuery = probeQuery;
+        if (healthCheckInterval > 0) {
+            healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "HQL_HealthCheck");
+                t.setDaemon(true);
+                return t;
+            });
+            healthCheck.scheduleWithFixedDelay(this::check, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        } else {
+            healthCheck = null;
+        }
+        log.info("Routing connections across " + endpoints.size() + " HiveServer2 endpoints");
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        SQLException failure = null;
+        for (Endpoint endpoint : ranked()) {
+            try {
+                Connection conn = endpoint.dataSource.getConnection();
+                log.trace("Connection borrowed from endpoint: " + endpoint.name);
+                return conn;
+            } catch (SQLException e) {
+                failure = e;
+                // A pool that is exhausted (pool.maxWaitMillis) is busy, not unhealthy.
+                if (!(e.getCause() instanceof NoSuchElementException))
+                    eject(endpoint, e);
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Connections are opened with jdbc.username");
+    }
+
+    /**
+     * Probe every endpoint: eject those that fail, and use again those that pass.
+     */
+    void check() {
+        for (Endpoint endpoint : endpoints) {
+            long start = System.nanoTime();
+            try (Connection conn = endpoint.probe.createConnection(); Statement stmt = conn.createStatement()) {
+                stmt.execute(probeQuery);
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                endpoint.latency = endpoint.latency < 0 ? millis : (3 * endpoint.latency + millis) / 4;
+                if (!endpoint.healthy) {
+                    endpoint.healthy = true;
+                    log.info("HiveServer2 endpoint: " + endpoint.name + " passed health check - back in use");
+                }
+            } catch (SQLException | RuntimeException e) {
+                eject(endpoint, e);
+            }
+        }
+    }
+
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Stop the health checks.
+     */
+    void close() {
+        if (healthCheck != null) healthCheck.shutdownNow();
+    }
+
+    /**
+     * @return the endpoints in the order they should be tried: healthy endpoints, least loaded first, then any that
+     * have been ejected.
+     */
+    private List<Endpoint> ranked() {
+        int n = endpoints.size();
+        int first = Math.floorMod(next.getAndIncrement(), n);
+        List<Endpoint> healthy = new ArrayList<>(n), ejected = new ArrayList<>(n);
+        List<Integer> outstanding = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Endpoint endpoint = endpoints.get((first + i) % n);
+            if (endpoint.healthy) {
+                healthy.add(endpoint);
+                outstanding.add(endpoint.outstanding.getAsInt());
+            } else {
+                ejected.add(endpoint);
+            }
+        }
+        // Selection rather than a sort, as the load of an endpoint can change while it is compared.
+        List<Endpoint> ranked = new ArrayList<>(n);
+        while (!healthy.isEmpty()) {
+            int best = 0;
+            for (int i = 1; i < healthy.size(); i++) {
+                int c = Integer.compare(outstanding.get(i), outstanding.get(best));
+                if (c < 0 || (c == 0 && healthy.get(i).latency < healthy.get(best).latency)) best = i;
+            }
+            ranked.add(healthy.remove(best));
+            outstanding.remove(best);
+        }
+        ranked.addAll(ejected);
+        return ranked;
+    }
+
+    private static void eject(Endpoint endpoint, Exception e) {
+        if (endpoint.healthy) {
+            endpoint.healthy = false;
+            log.warn("HiveServer2 endpoint: " + endpoint.name + " ejected - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLException("Not a wrapper for: " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+
+    /**
+     * A HiveServer2 instance.
+     */
+    static final class Endpoint {
+
+        /**
+         * @param name        - name used when logging (<code>host:port</code>).
+         * @param dataSource  - connection pool of the endpoint.
+         * @param probe       - opens the new connections used by the health checks.
+         * @param outstanding - number of connections borrowed from the pool.
+         */
+        Endpoint(String name, DataSource dataSource, ConnectionFactory probe, IntSupplier outstanding) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.probe = probe;
+            this.outstanding = outstanding;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        private final String name;
+        private final DataSource dataSource;
+        private final ConnectionFactory probe;
+        private final IntSupplier outstanding;
+        private volatile boolean healthy = true;
+        // Moving average of the health check time in milliseconds, -1 until the first check.
+        private volatile long latency = -1;
+    }
+
+    private final List<Endpoint> endpoints;
+    private final String probeQuery;
+    private final ScheduledExecutorService healthCheck;
+    private final AtomicInteger next = new AtomicInteger();
+    private final static Logger log = LoggerFactory.getLogger(RoutingDataSource.class);
+}
@@ -0,0 +1,397 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+
+/**
+ * Immutable, typed snapshot of the configuration of a run.
+ * <p>
+ * Built once, when the Controller starts a run (or the Daemon starts, see {@link Controller#snapshot()}), from the
+ * XML configuration and command line options, and validated there so that a bad value fails the run before anything
+ * is executed. It is then passed to the classes that execute the run ({@link TaskExecutor}, {@link Hive},
+ * {@link DBSource}, {@link FileUtil}, {@link Kerboros}), so the execution path reads plain fields rather than parsing
+ * <code>Configuration</code> values for every task and statement.
+ */
+final class RunConfig {
+
+    /**
+     * Build and validate a RunConfig.
+     *
+     * @param conf - Configuration to take the settings from.
+     * @return RunConfig.
+     * @throws HqlWrapperException if a setting is not valid.
+     */
+    static RunConfig from(Configuration conf) throws HqlWrapperException {
+        try {
+            return new RunConfig(conf);
+        } catch (NumberFormatException e) {
+            throw new HqlWrapperException("Invalid configuration value - " + e.getMessage());
+        }
+    }
+
+    private RunConfig(Configuration conf) throws HqlWrapperException {
+        this.conf = new Configuration(conf);
+        dryRun = conf.getBoolean(DRY_RUN, false);
+        inferParallelism = conf.getBoolean(INFER_PARALLELISM, false);
+        failFast = check(FAILURE_POLICY, conf.getTrimmed(FAILURE_POLICY, FAILURE_POLICY_CONTINUE));
+        incremental = conf.getBoolean(INCREMENTAL, false);
+        incrementalCacheFile = conf.get(INCREMENTAL_CACHE_FILE, DEFAULT_INCREMENTAL_CACHE_FILE);
+        journalDir = conf.get(JOURNAL_DIR);
+        fileSystem = conf.get(HQL_FILESYSTEM, DEFAULT_HQL_FILESYSTEM);
+        monitorInterval = atLeast(MONITOR_INTERVAL, conf.getInt(MONITOR_INTERVAL, 10), 0);
+        maxConcurrentTasks = atLeast(EXECUTOR_MAX_CONCURRENT_TASKS, conf.getInt(EXECUTOR_MAX_CONCURRENT_TASKS, DEFAULT_EXECUTOR_MAX_CONCURRENT_TASKS), 1);
+
+        jdbcDrivers = conf.get(JDBC_DRIVERS);
+        jdbcUrl = conf.get(JDBC_URL);
+        jdbcUsername = conf.get(JDBC_USERNAME);
+        jdbcPassword = conf.get(JDBC_PASSWORD);
+        jdbcEndpoints = conf.getTrimmedStrings(JDBC_ENDPOINTS);
+        if (jdbcEndpoints.length > 0 && (jdbcUrl == null || !jdbcUrl.contains("//")))
+            throw new HqlWrapperException(JDBC_ENDPOINTS + " is set, but " + JDBC_URL + " has no host to replace: " + jdbcUrl);
+        healthCheckIntervalMillis = atLeast(JDBC_HEALTH_CHECK_INTERVAL_MILLIS,
+                conf.getLong(JDBC_HEALTH_CHECK_INTERVAL_MILLIS, DEFAULT_JDBC_HEALTH_CHECK_INTERVAL_MILLIS), 0);
+
+        poolMaxTotal = conf.getInt(POOL_MAX_TOTAL, DEFAULT_POOL_MAX_TOTAL);
+        if (poolMaxTotal == 0)
+            throw new HqlWrapperException(POOL_MAX_TOTAL + " must not be 0");
+        poolMinIdle = atLeast(POOL_MIN_IDLE, conf.getInt(POOL_MIN_IDLE, 0), 0);
+        poolMaxWaitMillis = atLeast(POOL_MAX_WAIT_MILLIS, conf.getLong(POOL_MAX_WAIT_MILLIS, -1L), -1);
+        String validationQuery = conf.get(POOL_VALIDATION_QUERY);
+        poolValidationQuery = validationQuery == null || validationQuery.isEmpty() ? null : validationQuery;
+        poolEvictionIntervalMillis = conf.getLong(POOL_EVICTION_INTERVAL_MILLIS, -1L);
+        poolMinEvictableIdleMillis = conf.getLong(POOL_MIN_EVICTABLE_IDLE_MILLIS, DEFAULT_POOL_MIN_EVICTABLE_IDLE_MILLIS);
+        poolPreWarm = atLeast(POOL_PRE_WARM, conf.getInt(POOL_PRE_WARM, 0), 0);
+        stickySessions = conf.getBoolean(SESSION_STICKY, false);
+        stickyFiles = atLeast(SESSION_STICKY_FILES, conf.getInt(SESSION_STICKY_FILES, 0), 0);
+        // At least one connection is never pinned, so a TaskNode without a pinned session can always get one.
+        int connections = poolMaxTotal > 0 ? poolMaxTotal : maxConcurrentTasks;
+        maxPinned = atLeast(SESSION_MAX_PINNED, conf.getInt(SESSION_MAX_PINNED, connections / 2), 0);
+        if (poolMaxTotal > 0 && maxPinned >= poolMaxTotal)
+            throw new HqlWrapperException(SESSION_MAX_PINNED + " = " + maxPinned + " is invalid, must be less than "
+                    + POOL_MAX_TOTAL + " (" + poolMaxTotal + ")");
+
+        statementTimeoutMillis = atLeast(HQL_STATEMENT_TIMEOUT, conf.getLong(HQL_STATEMENT_TIMEOUT, 0), 0) * 1000;
+        taskTimeoutMillis = atLeast(HQL_TASK_TIMEOUT, conf.getLong(HQL_TASK_TIMEOUT, 0), 0) * 1000;
+        streamingThreshold = atLeast(HQL_STREAMING_THRESHOLD, conf.getLong(HQL_STREAMING_THRESHOLD, DEFAULT_HQL_STREAMING_THRESHOLD), 0);
+        loadThreads = atLeast(HQL_LOAD_THREADS, conf.getInt(HQL_LOAD_THREADS, DEFAULT_HQL_LOAD_THREADS), 1);
+        async = conf.getBoolean(EXECUTOR_ASYNC, false);
+        asyncThreads = atLeast(EXECUTOR_ASYNC_THREADS, conf.getInt(EXECUTOR_ASYNC_THREADS, DEFAULT_EXECUTOR_ASYNC_THREADS), 1);
+        pollIntervalMillis = atLeast(HQL_POLL_INTERVAL_MILLIS, conf.getLong(HQL_POLL_INTERVAL_MILLIS, DEFAULT_HQL_POLL_INTERVAL_MILLIS), 1);
+        virtualThreads = conf.getBoolean(EXECUTOR_VIRTUAL_THREADS, false);
+        if (virtualThreads && async)
+            throw new HqlWrapperException(EXECUTOR_VIRTUAL_THREADS + " and " + EXECUTOR_ASYNC + " can not both be set");
+        // The few async workers must never wait for a connection, as the tasks that would return one need a worker.
+        int pooled = poolMaxTotal * Math.max(1, jdbcEndpoints.length);
+        int needed = maxConcurrentTasks + (stickySessions ? maxPinned : 0);
+        if (async && poolMaxTotal > 0 && needed > pooled)
+            throw new HqlWrapperException(EXECUTOR_ASYNC + " needs a connection for each of " + EXECUTOR_MAX_CONCURRENT_TASKS
+                    + (stickySessions ? " (plus " + SESSION_MAX_PINNED + ")" : "") + " = " + needed + " tasks, but "
+                    + POOL_MAX_TOTAL + " gives " + pooled);
+        String plan = conf.getTrimmed(HQL_PLAN_FILE);
+        planFile = plan == null || plan.isEmpty() ? null : plan;
+        retryPolicy = RetryPolicy.fromConf(conf);
+
+        mailHostname = conf.get(MAIL_HOSTNAME);
+        mailFrom = conf.get(SEND_MAIL_FROM);
+        mailTo = conf.getStrings(SEND_MAIL_TO);
+        mailOnSuccess = conf.getBoolean(SEND_MAIL_ON_SUCCESS, false);
+        mailOnFailure = conf.getBoolean(SEND_MAIL_ON_FAILURE, false);
+
+        String principal = conf.get(KERBOROS_PRINCIPAL);
+        kerberosRealm = principal == null || principal.trim().isEmpty() ? null : principal.trim();
+        String keytab = conf.get(KERBOROS_KEYTAB);
+        kerberosKeytab = keytab == null || keytab.trim().isEmpty() ? null : keytab.trim();
+    }
+
+    private static boolean check(String key, String policy) throws HqlWrapperException {
+        if (!policy.equals(FAILURE_POLICY_CONTINUE) && !policy.equals(FAILURE_POLICY_FAIL_FAST))
+            throw new HqlWrapperException(key + " = " + policy + " is invalid, expected " + FAILURE_POLICY_CONTINUE
+                    + " or " + FAILURE_POLICY_FAIL_FAST);
+        return policy.equals(FAILURE_POLICY_FAIL_FAST);
+    }
+
+    private static int atLeast(String key, int value, int min) throws HqlWrapperException {
+        return (int) atLeast(key, (long) value, min);
+    }
+
+    private static long atLeast(String key, long value, long min) throws HqlWrapperException {
+        if (value < min)
+            throw new HqlWrapperException(key + " = " + value + " is invalid, must be at least " + min);
+        return value;
+    }
+
+    /**
+     * @return copy of the Configuration the snapshot was taken from, for the Hadoop classes that need one.
+     */
+    Configuration getConf() {
+        return new Configuration(conf);
+    }
+
+    boolean isDryRun() {
+        return dryRun;
+    }
+
+    boolean isInferParallelism() {
+        return inferParallelism;
+    }
+
+    boolean isFailFast() {
+        return failFast;
+    }
+
+    boolean isIncremental() {
+        return incremental;
+    }
+
+    String getIncrementalCacheFile() {
+        return incrementalCacheFile;
+    }
+
+    String getJournalDir() {
+        return journalDir;
+    }
+
+    String getFileSystem() {
+        return fileSystem;
+    }
+
+    int getMonitorInterval() {
+        return monitorInterval;
+    }
+
+    int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    String getJdbcDrivers() {
+        return jdbcDrivers;
+    }
+
+    String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    String getJdbcUsername() {
+        return jdbcUsername;
+    }
+
+    String getJdbcPassword() {
+        return jdbcPassword;
+    }
+
+    /**
+     * @return the HiveServer2 endpoints (<code>host:port</code>) to balance tasks across, each with a connection pool
+     * of its own (see {@link RoutingDataSource}), empty to connect to <code>jdbc.url</code> only.
+     */
+    String[] getJdbcEndpoints() {
+        return jdbcEndpoints.clone();
+    }
+
+    /**
+     * @return interval (milliseconds) between health checks of the <code>jdbc.endpoints</code>, 0 for none.
+     */
+    long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    int getPoolMaxTotal() {
+        return poolMaxTotal;
+    }
+
+    int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    long getPoolMaxWaitMillis() {
+        return poolMaxWaitMillis;
+    }
+
+    /**
+     * @return validation query, <code>null</code> if connections are not validated.
+     */
+    String getPoolValidationQuery() {
+        return poolValidationQuery;
+    }
+
+    long getPoolEvictionIntervalMillis() {
+        return poolEvictionIntervalMillis;
+    }
+
+    long getPoolMinEvictableIdleMillis() {
+        return poolMinEvictableIdleMillis;
+    }
+
+    int getPoolPreWarm() {
+        return poolPreWarm;
+    }
+
+    /**
+     * @return <code>true</code> if the TaskNodes of a TaskQueue share a session pinned to the queue (see
+     * {@link StickySessions}).
+     */
+    boolean isStickySessions() {
+        return stickySessions;
+    }
+
+    /**
+     * @return number of files a pinned session executes before it is closed and a new one pinned, 0 for no limit.
+     */
+    int getStickyFiles() {
+        return stickyFiles;
+    }
+
+    /**
+     * @return maximum number of sessions pinned at the same time, across all runs.
+     */
+    int getMaxPinned() {
+        return maxPinned;
+    }
+
+    /**
+     * @return time limit for each statement in milliseconds, 0 for no limit.
+     */
+    long getStatementTimeoutMillis() {
+        return statementTimeoutMillis;
+    }
+
+    /**
+     * @return time limit for each HQL file in milliseconds, 0 for no limit.
+     */
+    long getTaskTimeoutMillis() {
+        return taskTimeoutMillis;
+    }
+
+    /**
+     * @return size (bytes) from which an HQL file is streamed rather than read into memory, 0 if files are never
+     * streamed.
+     */
+    long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * @return number of threads listing directories and reading HQL files while a TaskQueue is built.
+     */
+    int getLoadThreads() {
+        return loadThreads;
+    }
+
+    /**
+     * @return <code>true</code> if statements are executed asynchronously (see {@link AsyncStatement}).
+     */
+    boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return number of worker threads when statements are executed asynchronously.
+     */
+    int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    /**
+     * @return <code>true</code> if tasks execute on virtual threads (see {@link ExecutorPool}).
+     */
+    boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return interval (milliseconds) between polls of the status of a statement executing asynchronously.
+     */
+    long getPollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * @return local file holding the compiled plan of the job configuration (see {@link JobPlan}), <code>null</code>
+     * if plans are not used.
+     */
+    String getPlanFile() {
+        return planFile;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    String getMailHostname() {
+        return mailHostname;
+    }
+
+    String getMailFrom() {
+        return mailFrom;
+    }
+
+    String[] getMailTo() {
+        return mailTo == null ? null : mailTo.clone();
+    }
+
+    boolean isMailOnSuccess() {
+        return mailOnSuccess;
+    }
+
+    boolean isMailOnFailure() {
+        return mailOnFailure;
+    }
+
+    /**
+     * @return Kerboros realm (<code>kerboros.principal</code>), <code>null</code> if Kerboros is not used.
+     */
+    String getKerberosRealm() {
+        return kerberosRealm;
+    }
+
+    /**
+     * @return keytab to log in with, <code>null</code> to log in with the JDBC password.
+     */
+    String getKerberosKeytab() {
+        return kerberosKeytab;
+    }
+
+    private final Configuration conf;
+    private final boolean dryRun;
+    private final boolean inferParallelism;
+    private final boolean failFast;
+    private final boolean incremental;
+    private final String incrementalCacheFile;
+    private final String journalDir;
+    private final String fileSystem;
+    private final int monitorInterval;
+    private final int maxConcurrentTasks;
+    private final String jdbcDrivers;
+    private final String jdbcUrl;
+    private final String jdbcUsername;
+    private final String jdbcPassword;
+    private final String[] jdbcEndpoints;
+    private final long healthCheckIntervalMillis;
+    private final int poolMaxTotal;
+    private final int poolMinIdle;
+    private final long poolMaxWaitMillis;
+    private final String poolValidationQuery;
+    private final long poolEvictionIntervalMillis;
+    private final long poolMinEvictableIdleMillis;
+    private final int poolPreWarm;
+    private final boolean stickySessions;
+    private final int stickyFiles;
+    private final int maxPinned;
+    private final long statementTimeoutMillis;
+    private final long taskTimeoutMillis;
+    private final long streamingThreshold;
+    private final int loadThreads;
+    private final boolean async;
+    private final int asyncThreads;
+    private final boolean virtualThreads;
+    private final long pollIntervalMillis;
+    private final String planFile;
+    private final RetryPolicy retryPolicy;
+    private final String mailHostname;
+    private final String mailFrom;
+    private final String[] mailTo;
+    private final boolean mailOnSuccess;
+    private final boolean mailOnFailure;
+    private final String kerberosRealm;
+    private final String kerberosKeytab;
+}
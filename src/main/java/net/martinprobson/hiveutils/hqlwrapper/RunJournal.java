@@ -0,0 +1,250 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable record of a run, used to resume a failed run without re-executing the tasks that already succeeded.
+ * <p>
+ * The journal is a text file, <code>&lt;journal.dir&gt;/&lt;runId&gt;.journal</code>, written through {@link FileUtil}
+ * so it can live on the local filesystem or in HDFS. It holds the root directory and parameters of the run, followed
+ * by one line each time a TaskNode starts and finishes (with its TaskResult and timings). Lines are only ever
+ * appended and each one is flushed and synced to disk before the run moves on, so the journal survives the JVM being
+ * killed: at worst the last line is incomplete, and it is ignored when the journal is loaded.
+ */
+class RunJournal {
+
+    /**
+     * Start a new journal. If the journal file can not be created the journal is disabled, as it is when it can not
+     * be written (see write()), and the run goes ahead without it.
+     *
+     * @param journalDir - directory holding journal files.
+     * @param root       - root directory of the run.
+     * @param params     - parameters of the run.
+     * @param runDate    - <code>run_date</code> passed to Hive.
+     * @param resumedFrom - id of the run being resumed, or <code>null</code>.
+     * @return the new RunJournal.
+     */
+    static RunJournal create(String journalDir, String root, Map<String, String> params, String runDate, String resumedFrom) {
+        String runId = nextRunId();
+        RunJournal journal = new RunJournal(runId, root, params);
+        journal.runDate = runDate;
+        try {
+            journal.out = FileUtil.create(journalPath(journalDir, runId));
+        } catch (UncheckedIOException e) {
+            log.error("Unable to create run journal: " + runId + " - journal disabled for the run", e.getCause());
+            return journal;
+        }
+        journal.write(HEADER);
+        journal.write("run", runId);
+        journal.write("root", root);
+        journal.write("runDate", runDate);
+        if (resumedFrom != null) journal.write("resumedFrom", resumedFrom);
+        for (Map.Entry<String, String> e : new TreeMap<>(params).entrySet())
+            journal.write("param", e.getKey(), e.getValue());
+        log.info("Run id: " + runId + " journal: " + journalPath(journalDir, runId));
+        return journal;
+    }
+
+    /**
+     * Load the journal of an earlier run.
+     *
+     * @param journalDir - directory holding journal files.
+     * @param runId      - id of the run.
+     * @return the RunJournal, read only.
+     * @throws HqlWrapperException if the journal does not exist.
+     */
+    static RunJournal load(String journalDir, String runId) throws HqlWrapperException {
+        Path path = journalPath(journalDir, runId);
+        if (!FileUtil.exists(path))
+            throw new HqlWrapperException("Journal for run: " + runId + " not found: " + path);
+        RunJournal journal = new RunJournal(runId, null, new HashMap<>());
+        for (String line : FileUtil.readFile(path).split("\n")) {
+            String[] f = line.split("\t", -1);
+            for (int i = 0; i < f.length; i++) f[i] = unescape(f[i]);
+            try {
+                switch (f[0]) {
+                    case "root":
+                        journal.root = f[1];
+                        break;
+                    case "runDate":
+                        journal.runDate = f[1];
+                        break;
+                    case "param":
+                        journal.params.put(f[1], f[2]);
+                        break;
+                    case "end":
+                        journal.results.put(f[1], new Entry(TaskResult.valueOf(f[2]), Long.parseLong(f[3]), Long.parseLong(f[4])));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                log.warn("Ignoring incomplete journal line: " + line);
+            }
+        }
+        if (journal.root == null)
+            throw new HqlWrapperException("Journal for run: " + runId + " is not valid: " + path);
+        return journal;
+    }
+
+    /**
+     * Mark every single task that succeeded in this (loaded) journal as SUCCESS, so it is skipped when executed.
+     * The carried over results are recorded in <code>target</code>, so the new run can itself be resumed.
+     *
+     * @param graph  - graph of the rebuilt TaskQueue.
+     * @param target - journal of the new run, may be <code>null</code>.
+     * @return number of tasks marked as SUCCESS.
+     */
+    int markSucceeded(TaskGraph graph, RunJournal target) {
+        int n = 0;
+        for (TaskNode node : graph.getNodes()) {
+            Entry e = results.get(node.getId());
+            if (node.getTasks().size() != 0 || e == null || e.result != TaskResult.SUCCESS) continue;
+            node.setResult(TaskResult.SUCCESS);
+            if (target != null) target.finished(node, TaskResult.SUCCESS, e.start, e.end);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Record the start of a TaskNode.
+     */
+    void started(TaskNode node) {
+        write("start", node.getId(), Long.toString(System.currentTimeMillis()));
+    }
+
+    /**
+     * Record the result of a TaskNode.
+     */
+    void finished(TaskNode node, TaskResult result, long start, long end) {
+        write("end", node.getId(), result.name(), Long.toString(start), Long.toString(end));
+    }
+
+    /**
+     * Close the journal file.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("Error closing run journal: " + runId, e);
+            }
+            out = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String getRunId() {
+        return runId;
+    }
+
+    String getRoot() {
+        return root;
+    }
+
+    Map<String, String> getParams() {
+        return params;
+    }
+
+    String getRunDate() {
+        return runDate;
+    }
+
+    private void write(String... fields) {
+        StringBuilder line = new StringBuilder();
+        for (String f : fields) {
+            if (line.length() != 0) line.append('\t');
+            line.append(escape(f));
+        }
+        line.append('\n');
+        lock.lock();
+        try {
+            if (out == null) return;
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            out.hflush();
+            out.hsync();
+        } catch (IOException e) {
+            log.error("Error writing run journal: " + runId + " - journal disabled for the rest of the run", e);
+            close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a new run id, unique within this JVM even when several runs start in the same millisecond (see Daemon).
+     */
+    private static synchronized String nextRunId() {
+        lastRunTime = Math.max(System.currentTimeMillis(), lastRunTime + 1);
+        return new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(lastRunTime));
+    }
+
+    private static Path journalPath(String journalDir, String runId) {
+        return new Path(journalDir, runId + ".journal");
+    }
+
+    private static String escape(String s) {
+        return s == null ? "" : s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder r = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                r.append(c == 't' ? '\t' : c == 'n' ? '\n' : c);
+            } else {
+                r.append(c);
+            }
+        }
+        return r.toString();
+    }
+
+    private RunJournal(String runId, String root, Map<String, String> params) {
+        this.runId = runId;
+        this.root = root;
+        this.params = params;
+    }
+
+    private static class Entry {
+        final TaskResult result;
+        final long start;
+        final long end;
+
+        Entry(TaskResult result, long start, long end) {
+            this.result = result;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final String HEADER = "#hqlwrapper journal v1";
+    private static long lastRunTime = 0;
+
+    private final String runId;
+    private String root;
+    private String runDate;
+    private final Map<String, String> params;
+    private final Map<String, Entry> results = new HashMap<>();
+    private FSDataOutputStream out;
+    // A lock rather than synchronized, so tasks on virtual threads do not hold their carrier threads while the journal
+    // is synced to HDFS.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final static Logger log = LoggerFactory.getLogger(RunJournal.class);
+}
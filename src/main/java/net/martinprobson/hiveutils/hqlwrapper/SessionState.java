@@ -0,0 +1,150 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The session state of a HiveServer2 connection: the settings (<code>SET [hiveconf:|hivevar:]name=value</code>) and
+ * database (<code>USE</code>) in effect on it. The state stays with the connection while it is idle in the pool (see
+ * {@link DBSource#takeSessionState}), so the next task to borrow the connection knows what the tasks before it left
+ * behind.
+ * <p>
+ * A <code>SET</code> or <code>USE</code> already in effect on the connection need not be executed again. State left by
+ * an earlier task, that the task now holding the connection has not asked for by the time it executes its first
+ * other statement, would leak into that statement, so it is undone on the connection (see {@link #undo(String, boolean)}),
+ * or, if it can not be undone, the connection is discarded (see {@link ExecutionContext#prepare(String, long)}). A
+ * connection whose state can not be tracked (<code>ADD JAR</code>, temporary functions and macros, <code>RESET</code>
+ * ..., or temporary tables, see {@link HiveSession#close()}) is not returned to the pool at all.
+ */
+final class SessionState {
+
+    /**
+     * @return <code>true</code> if the statement is a <code>SET</code> or <code>USE</code> already in effect.
+     */
+    boolean isApplied(String stmt) {
+        Matcher m = SET.matcher(stmt);
+        if (m.matches()) {
+            String name = name(m.group(1));
+            return name != null && m.group(2).trim().equals(settings.get(name));
+        }
+        m = USE.matcher(stmt);
+        return m.matches() && m.group(1).toLowerCase().equals(database);
+    }
+
+    /**
+     * Record a session statement (see {@link RetryPolicy#isSessionStatement(String)}) that has taken effect on the
+     * connection, or was already in effect.
+     */
+    void applied(String stmt) {
+        Matcher m = SET.matcher(stmt);
+        if (m.matches()) {
+            String name = name(m.group(1));
+            if (name == null) {
+                tracked = false;
+            } else {
+                settings.put(name, m.group(2).trim());
+                inherited.remove(name);
+            }
+            return;
+        }
+        m = USE.matcher(stmt);
+        if (m.matches()) {
+            database = m.group(1).toLowerCase();
+            inheritedDatabase = false;
+        } else if (!DISPLAY.matcher(stmt).matches()) {
+            tracked = false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the connection holds state left by an earlier task that the current task has not
+     * asked for.
+     */
+    boolean isTainted() {
+        return !inherited.isEmpty() || inheritedDatabase;
+    }
+
+    /**
+     * The statements that undo the state left by earlier tasks, that the current task has not asked for, on the same
+     * connection: <code>RESET</code> for settings, which restores every setting (including those of the current task,
+     * see {@link #isReset(String)}) to its value on a new connection, and <code>USE</code> for the database.
+     *
+     * @param database   - database a new connection starts in.
+     * @param resettable - <code>false</code> if the connection was opened with settings of its own (in the JDBC URL),
+     *                   that <code>RESET</code> would lose.
+     * @return the statements, or <code>null</code> if the state can not be undone, as Hive has no way to unset a
+     * <code>hivevar:</code> variable.
+     */
+    List<String> undo(String database, boolean resettable) {
+        List<String> stmts = new ArrayList<>();
+        for (String name : inherited) {
+            if (name.startsWith("hivevar:") || !resettable) return null;
+            if (stmts.isEmpty()) stmts.add("reset");
+        }
+        if (inheritedDatabase) stmts.add("use " + database);
+        return stmts;
+    }
+
+    /**
+     * Record a <code>RESET</code> executed by {@link #undo(String, boolean)}: no settings are in effect on the
+     * connection.
+     */
+    void reset() {
+        settings.keySet().removeIf(name -> !name.startsWith("hivevar:"));
+        inherited.removeIf(name -> !name.startsWith("hivevar:"));
+    }
+
+    /**
+     * @return <code>true</code> if the statement sets a setting that <code>RESET</code> restores, so it must be
+     * executed again after {@link #undo(String, boolean)}.
+     */
+    static boolean isReset(String stmt) {
+        Matcher m = SET.matcher(stmt);
+        if (!m.matches()) return false;
+        String name = name(m.group(1));
+        return name != null && !name.startsWith("hivevar:");
+    }
+
+    /**
+     * @return <code>false</code> if a statement has changed the session in a way that is not tracked, so the
+     * connection can not be handed to another task.
+     */
+    boolean isTracked() {
+        return tracked;
+    }
+
+    /**
+     * The connection is being returned to the pool: all of its state becomes state left by an earlier task.
+     */
+    void handOver() {
+        inherited.clear();
+        inherited.addAll(settings.keySet());
+        inheritedDatabase = database != null;
+    }
+
+    private static String name(String name) {
+        int colon = name.indexOf(':');
+        if (colon < 0) return name;
+        String namespace = name.substring(0, colon).toLowerCase();
+        if (namespace.equals("hiveconf")) return name.substring(colon + 1);
+        if (namespace.equals("hivevar")) return "hivevar:" + name.substring(colon + 1);
+        // system: properties are not session state, and can not be tracked.
+        return null;
+    }
+
+    private static final Pattern SET = Pattern.compile("(?is)\\s*set\\s+([^\\s=]+)\\s*=(.*)");
+    private static final Pattern USE = Pattern.compile("(?is)\\s*use\\s+`?(\\w+)`?\\s*");
+    private static final Pattern DISPLAY = Pattern.compile("(?is)\\s*set(\\s+-v)?(\\s+[^\\s=]+)?\\s*");
+
+    private final Map<String, String> settings = new HashMap<>();
+    private final Set<String> inherited = new HashSet<>();
+    private String database = null;
+    private boolean inheritedDatabase = false;
+    private boolean tracked = true;
+}
@@ -0,0 +1,141 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sessions pinned to the TaskQueues of a run (<code>session.sticky</code>), so the files of a queue execute on one
+ * HiveServer2 session rather than a new session each, reusing its Tez session (and so its application master and
+ * containers) and the state left by the files before them (<code>SET</code>, <code>USE</code>, temporary functions
+ * and tables).
+ * <p>
+ * A queue's session is pinned when its first file starts, and is closed once the queue's last file has finished, or
+ * after <code>session.stickyFiles</code> files (when set), or when a file on it does not succeed, in which case the
+ * next file starts a new session. A file that starts while the queue's session is in use by another file of the
+ * queue (see <code>--InferParallelism</code>) executes on a session of its own.
+ * <p>
+ * Pinned connections are borrowed from the shared pool, and at most <code>session.maxPinned</code> (less than
+ * <code>pool.maxTotal</code>) can be pinned at the same time across all runs, see {@link DBSource#getPinPermits}.
+ * When none are left, files execute on sessions of their own.
+ */
+class StickySessions {
+
+    /**
+     * @param config     - RunConfig of the run.
+     * @param dataSource - DataSource to borrow the pinned connections from.
+     * @param permits    - permits for pinned sessions.
+     */
+    StickySessions(RunConfig config, DataSource dataSource, Semaphore permits) {
+        this.dataSource = dataSource;
+        this.permits = permits;
+        this.maxFiles = config.getStickyFiles();
+    }
+
+    /**
+     * @param queue - TaskQueue of the TaskNode about to execute.
+     * @return the session pinned to the queue, pinning a new one if there is none, or <code>null</code> if it is in
+     * use or no more sessions can be pinned.
+     */
+    synchronized HiveSession acquire(TaskQueue queue) {
+        Pin pin = pins.get(queue);
+        if (pin == null) {
+            if (!permits.tryAcquire()) {
+                log.debug(queue.getLabel() + ": no session pinned - session.maxPinned sessions already pinned");
+                return null;
+            }
+            pin = new Pin(new HiveSession(dataSource));
+            pins.put(queue, pin);
+            log.debug(queue.getLabel() + ": session pinned");
+        } else if (pin.busy) {
+            return null;
+        }
+        pin.busy = true;
+        return pin.session;
+    }
+
+    /**
+     * Return a session acquired for a TaskNode that has finished.
+     *
+     * @param queue   - TaskQueue of the TaskNode.
+     * @param session - the session returned by acquire().
+     * @param ok      - <code>true</code> if the TaskNode succeeded, otherwise the session is closed.
+     */
+    void release(TaskQueue queue, HiveSession session, boolean ok) {
+        Pin pin;
+        synchronized (this) {
+            pin = pins.get(queue);
+            if (pin == null || pin.session != session) return;
+            pin.busy = false;
+            pin.files++;
+            if (ok && (maxFiles == 0 || pin.files < maxFiles)) return;
+            pins.remove(queue);
+        }
+        close(queue, pin);
+    }
+
+    /**
+     * Close the session pinned to a TaskQueue, once all its TaskNodes have finished.
+     */
+    void finished(TaskQueue queue) {
+        Pin pin;
+        synchronized (this) {
+            pin = pins.remove(queue);
+        }
+        if (pin != null) close(queue, pin);
+    }
+
+    /**
+     * Close every pinned session.
+     */
+    void close() {
+        List<Map.Entry<TaskQueue, Pin>> all;
+        synchronized (this) {
+            all = new ArrayList<>(pins.entrySet());
+            pins.clear();
+        }
+        for (Map.Entry<TaskQueue, Pin> e : all)
+            close(e.getKey(), e.getValue());
+    }
+
+    /**
+     * @return number of sessions currently pinned by this run.
+     */
+    synchronized int getPinned() {
+        return pins.size();
+    }
+
+    private void close(TaskQueue queue, Pin pin) {
+        log.debug(queue.getLabel() + ": closing pinned session after " + pin.files + " file(s)");
+        try {
+            pin.session.close();
+        } catch (SQLException e) {
+            log.warn(queue.getLabel() + ": error closing pinned session", e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static final class Pin {
+        Pin(HiveSession session) {
+            this.session = session;
+        }
+
+        final HiveSession session;
+        boolean busy = false;
+        int files = 0;
+    }
+
+    private final DataSource dataSource;
+    private final Semaphore permits;
+    private final int maxFiles;
+    private final Map<TaskQueue, Pin> pins = new IdentityHashMap<>();
+    private final static Logger log = LoggerFactory.getLogger(StickySessions.class);
+}
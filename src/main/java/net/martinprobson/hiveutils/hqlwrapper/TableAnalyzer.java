@@ -0,0 +1,340 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Works out which tables a piece of HQL reads and writes.
+ * <p>
+ * Each statement (see {@link Util#HQLSplit(String)}) is classified from its leading keywords: -
+ * <ul>
+ * <li><code>CREATE TABLE/VIEW</code>, <code>INSERT</code>, <code>LOAD DATA</code>, <code>DROP TABLE/VIEW</code>,
+ * <code>TRUNCATE</code>, <code>ALTER TABLE/VIEW</code>, <code>MSCK</code>, <code>ANALYZE</code>,
+ * <code>DELETE FROM</code>, <code>UPDATE</code> and <code>MERGE INTO</code> write the target table.
+ * <li>Tables named after <code>FROM</code>, <code>JOIN</code>, <code>LIKE</code> and <code>USING</code> (MERGE) are read.
+ * <li><code>SET</code>, <code>RESET</code>, <code>ADD</code>, <code>DELETE JAR/FILE/ARCHIVE</code>, <code>SHOW</code>,
+ * <code>DESCRIBE</code> and <code>EXPLAIN</code> only affect the session and touch no tables, <code>USE</code> sets the
+ * database used to qualify table names that follow it (<code>default</code> until the first <code>USE</code>).
+ * </ul>
+ * Any other statement (e.g. <code>CREATE DATABASE</code>, <code>dfs</code> commands) can not be classified and the
+ * whole piece of HQL is then treated as conflicting with everything.
+ */
+class TableAnalyzer {
+
+    /**
+     * Tables read and written by a piece of HQL.
+     */
+    static class TableAccess {
+        private final Set<String> reads = new TreeSet<>();
+        private final Set<String> writes = new TreeSet<>();
+        private boolean classified = true;
+
+        Set<String> getReads() {
+            return Collections.unmodifiableSet(reads);
+        }
+
+        Set<String> getWrites() {
+            return Collections.unmodifiableSet(writes);
+        }
+
+        /**
+         * @return <code>false</code> if a statement could not be classified.
+         */
+        boolean isClassified() {
+            return classified;
+        }
+
+        /**
+         * Add the tables accessed by <code>other</code> to this TableAccess.
+         */
+        void addAll(TableAccess other) {
+            reads.addAll(other.reads);
+            writes.addAll(other.writes);
+            classified &= other.classified;
+        }
+
+        /**
+         * Two pieces of HQL conflict if either could not be classified, or one writes a table the other reads or writes.
+         *
+         * @param other - TableAccess to compare with.
+         * @return <code>true</code> if the two can not safely run at the same time.
+         */
+        boolean conflictsWith(TableAccess other) {
+            if (!classified || !other.classified) return true;
+            return intersects(writes, other.writes) || intersects(writes, other.reads) || intersects(reads, other.writes);
+        }
+
+        private static boolean intersects(Set<String> a, Set<String> b) {
+            for (String s : a)
+                if (b.contains(s)) return true;
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            if (!classified) return "unclassified";
+            return "reads: " + reads + " writes: " + writes;
+        }
+    }
+
+    /**
+     * Analyze a string containing one or more HQL statements.
+     *
+     * @param hql - String containing HQL.
+     * @return TableAccess for all the statements.
+     */
+    static TableAccess analyze(String hql) {
+        if (hql == null) return new TableAccess();
+        return analyze(Util.HQLSplit(hql).iterator());
+    }
+
+    /**
+     * Analyze a sequence of HQL statements, for example those read by a {@link HqlStatementReader}.
+     *
+     * @param stmts - HQL statements.
+     * @return TableAccess for all the statements.
+     */
+    static TableAccess analyze(Iterator<String> stmts) {
+        TableAccess access = new TableAccess();
+        Set<String> temporary = new HashSet<>();
+        String[] database = new String[1];
+        while (stmts.hasNext()) {
+            String stmt = stmts.next();
+            List<String> tokens = tokenize(stmt);
+            if (tokens.isEmpty()) continue;
+            if (!analyze(tokens, access, temporary, database)) {
+                log.debug("Unable to classify statement: " + stmt.trim());
+                access.classified = false;
+            }
+        }
+        // Temporary tables only exist in this session, they can not conflict with anything else.
+        access.reads.removeAll(temporary);
+        access.writes.removeAll(temporary);
+        return access;
+    }
+
+    private static boolean analyze(List<String> t, TableAccess access, Set<String> temporary, String[] database) {
+        Set<String> writes = new HashSet<>();
+        Set<String> reads = new HashSet<>();
+        int i;
+        switch (t.get(0)) {
+            case "set":
+            case "reset":
+            case "add":
+            case "list":
+            case "show":
+            case "describe":
+            case "desc":
+            case "explain":
+                return true;
+            case "use":
+                if (t.size() < 2) return false;
+                database[0] = t.get(1);
+                return true;
+            case "select":
+            case "with":
+            case "from":
+            case "insert":
+                scanQuery(t, 0, reads, writes);
+                break;
+            case "create":
+                i = skip(t, 1, "temporary", "external", "or", "replace", "materialized", "transactional");
+                boolean temp = t.subList(1, i).contains("temporary");
+                if (at(t, i, "function"))
+                    return temp;
+                if (!at(t, i, "table") && !at(t, i, "view"))
+                    return false;
+                i = skipIfNotExists(t, i + 1);
+                if (!isIdentifier(t, i)) return false;
+                String target = qualify(t.get(i), database[0]);
+                if (temp) temporary.add(target);
+                writes.add(target);
+                scanQuery(t, i + 1, reads, writes);
+                break;
+            case "drop":
+                if (at(t, 1, "temporary") && at(t, 2, "function"))
+                    return true;
+                if (!at(t, 1, "table") && !at(t, 1, "view"))
+                    return false;
+                i = skipIfExists(t, 2);
+                if (!isIdentifier(t, i)) return false;
+                writes.add(t.get(i));
+                break;
+            case "truncate":
+                i = skip(t, 1, "table");
+                if (!isIdentifier(t, i)) return false;
+                writes.add(t.get(i));
+                break;
+            case "alter":
+                if ((!at(t, 1, "table") && !at(t, 1, "view")) || !isIdentifier(t, 2))
+                    return false;
+                writes.add(t.get(2));
+                i = t.indexOf("rename");
+                if (i > 0 && at(t, i + 1, "to") && isIdentifier(t, i + 2))
+                    writes.add(t.get(i + 2));
+                break;
+            case "load":
+                i = t.indexOf("into");
+                if (i < 0 || !at(t, i + 1, "table") || !isIdentifier(t, i + 2))
+                    return false;
+                writes.add(t.get(i + 2));
+                break;
+            case "delete":
+                if (!at(t, 1, "from"))
+                    return t.size() > 1 && t.get(1).matches("jars?|files?|archives?");
+                if (!isIdentifier(t, 2)) return false;
+                writes.add(t.get(2));
+                scanQuery(t, 3, reads, writes);
+                break;
+            case "update":
+                if (!isIdentifier(t, 1)) return false;
+                writes.add(t.get(1));
+                scanQuery(t, 2, reads, writes);
+                break;
+            case "merge":
+                i = t.indexOf("using");
+                if (!at(t, 1, "into") || !isIdentifier(t, 2) || i < 0)
+                    return false;
+                writes.add(t.get(2));
+                if (isIdentifier(t, i + 1)) reads.add(t.get(i + 1));
+                // WHEN NOT MATCHED THEN INSERT VALUES (...) inserts into the target, not a table named by the INSERT
+                scanQuery(t, i + 1, reads, new HashSet<>());
+                break;
+            case "msck":
+            case "analyze":
+                i = t.indexOf("table");
+                if (i < 0 || !isIdentifier(t, i + 1))
+                    return false;
+                writes.add(t.get(i + 1));
+                break;
+            default:
+                return false;
+        }
+        for (String s : reads) access.reads.add(qualify(s, database[0]));
+        for (String s : writes) access.writes.add(qualify(s, database[0]));
+        return true;
+    }
+
+    /**
+     * Scan a query for the tables it reads (after FROM/JOIN/LIKE) and writes (after INSERT).
+     */
+    private static void scanQuery(List<String> t, int start, Set<String> reads, Set<String> writes) {
+        Set<String> cte = new HashSet<>();
+        for (int i = start; i < t.size(); i++) {
+            String tok = t.get(i);
+            if ((tok.equals("with") || tok.equals(",")) && isIdentifier(t, i + 1) && at(t, i + 2, "as") && at(t, i + 3, "("))
+                cte.add(t.get(i + 1));
+            else if (tok.equals("insert")) {
+                int j = skip(t, i + 1, "overwrite", "into", "table");
+                // INSERT OVERWRITE [LOCAL] DIRECTORY writes to the filesystem, not a table
+                if (isIdentifier(t, j) && !at(t, j, "local") && !at(t, j, "directory")) writes.add(t.get(j));
+            } else if (tok.equals("join") || tok.equals("like")) {
+                if (isIdentifier(t, i + 1)) reads.add(t.get(i + 1));
+            } else if (tok.equals("from")) {
+                // FROM a [[AS] x], b [[AS] y] ...
+                int j = i + 1;
+                while (isIdentifier(t, j)) {
+                    reads.add(t.get(j));
+                    j = skip(t, j + 1, "as");
+                    if (isIdentifier(t, j) && !KEYWORDS.contains(t.get(j))) j++;
+                    if (!at(t, j, ",")) break;
+                    j++;
+                }
+            }
+        }
+        reads.removeAll(cte);
+    }
+
+    private static int skipIfNotExists(List<String> t, int i) {
+        return (at(t, i, "if") && at(t, i + 1, "not") && at(t, i + 2, "exists")) ? i + 3 : i;
+    }
+
+    private static int skipIfExists(List<String> t, int i) {
+        return (at(t, i, "if") && at(t, i + 1, "exists")) ? i + 2 : i;
+    }
+
+    private static int skip(List<String> t, int i, String... words) {
+        List<String> w = Arrays.asList(words);
+        while (i < t.size() && w.contains(t.get(i))) i++;
+        return i;
+    }
+
+    private static boolean at(List<String> t, int i, String word) {
+        return i < t.size() && t.get(i).equals(word);
+    }
+
+    private static boolean isIdentifier(List<String> t, int i) {
+        if (i >= t.size()) return false;
+        char c = t.get(i).charAt(0);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static String qualify(String table, String database) {
+        if (table.contains(".")) return table;
+        return (database == null ? DEFAULT_DATABASE : database) + "." + table;
+    }
+
+    /**
+     * Split a statement into lower case tokens: identifiers (with any back-quotes removed), single character symbols
+     * and a single quote character for each string literal.
+     */
+    static List<String> tokenize(String stmt) {
+        List<String> tokens = new ArrayList<>();
+        int n = stmt.length();
+        int i = 0;
+        while (i < n) {
+            char c = stmt.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                i++;
+                while (i < n && stmt.charAt(i) != c) {
+                    if (stmt.charAt(i) == '\\') i++;
+                    i++;
+                }
+                i++;
+                tokens.add("'");
+            } else if (isIdentifierChar(c) || c == '`') {
+                StringBuilder id = new StringBuilder();
+                while (i < n && (isIdentifierChar(stmt.charAt(i)) || stmt.charAt(i) == '`')) {
+                    if (stmt.charAt(i) == '`') {
+                        int end = stmt.indexOf('`', i + 1);
+                        if (end < 0) end = n;
+                        id.append(stmt, i + 1, end);
+                        i = end + 1;
+                    } else if (stmt.charAt(i) == '$' && i + 1 < n && stmt.charAt(i + 1) == '{') {
+                        // ${param} - keep the parameter reference as part of the identifier
+                        int end = stmt.indexOf('}', i);
+                        if (end < 0) end = n - 1;
+                        id.append(stmt, i, end + 1);
+                        i = end + 1;
+                    } else {
+                        id.append(stmt.charAt(i++));
+                    }
+                }
+                tokens.add(id.toString().toLowerCase());
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    private static final String DEFAULT_DATABASE = "default";
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "where", "join", "left", "right", "full", "inner", "outer", "cross", "semi", "on", "group", "order", "sort",
+            "cluster", "distribute", "limit", "having", "union", "insert", "select", "lateral", "tablesample", "window"));
+
+    private TableAnalyzer() {
+    }
+
+    private final static Logger log = LoggerFactory.getLogger(TableAnalyzer.class);
+}
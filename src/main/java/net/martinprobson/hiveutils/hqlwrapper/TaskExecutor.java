@@ -1,120 +1,270 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DRY_RUN;
-import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.MONITOR_INTERVAL;
 
 
 /**
  * Execute a Queue of TaskNodes (see {@link net.martinprobson.hiveutils.hqlwrapper.TaskNode}) potentially in multiple threads.
+ * <p>
+ * Execution is completion driven: every TaskNode in the queue's dependency graph (see {@link TaskGraph}) is given a
+ * CompletableFuture, and each TaskNode is started as soon as the TaskNodes it depends on have finished, rather than on
+ * the next tick of a polling loop.
+ * <p>
+ * Under the <code>fail-fast</code> failure policy (<code>Controller.FailurePolicy</code>) the first task that does
+ * not succeed aborts the run: statements still running in other sub-directories are cancelled on HiveServer2, and
+ * they, and every task not yet started, are marked CANCELLED. Under the default <code>continue</code> policy a failure
+ * only prevents the tasks that depend on the failed task from running.
+ * <p>
+ * With <code>session.sticky</code> set, the tasks of each TaskQueue execute one after another on a session pinned to
+ * the queue (see {@link StickySessions}), rather than each on a new session.
+ * <p>
+ * With <code>executor.async</code> set, a task waits for a task permit (see
+ * {@link ExecutorPool#acquireTask(RunConfig)}) rather than a worker, and its statements execute asynchronously, the
+ * task continuing on a worker as each one completes.
+ * With <code>executor.virtualThreads</code> set, a task also waits for a task permit, then runs on a virtual thread of
+ * its own.
  * @author martinr
  *
  */
 public class TaskExecutor implements Callable<TaskResult> {
-	
+
 	private TaskQueue taskQueue;
-	private List<Future<TaskResult>> subTasks = new ArrayList<>();
-	
+	private TaskGraph graph;
+	private RunJournal journal;
+	private final RunConfig config;
+	private final DataSource dataSource;
+	private final boolean failFast;
+	private final AbortSignal abort = new AbortSignal();
+	private final StickySessions sessions;
+
+	/**
+	 * Construct a new TaskExecutor for a run.
+	 * @param taskQueue The TaskQueue to execute.
+	 * @param journal The RunJournal of this run, or <code>null</code> for no journal.
+	 * @param config The RunConfig of this run.
+	 * @throws HqlWrapperException if the TaskQueue's dependency graph is invalid.
+	 */
+	TaskExecutor(TaskQueue taskQueue, RunJournal journal, RunConfig config) throws HqlWrapperException {
+		this(taskQueue, journal, config, null);
+	}
+
 	/**
-	 * Construct a new TaskExecutor with a new TaskQueue of zero to many TaskNodes (see {@link net.martinprobson.hiveutils.hqlwrapper.TaskQueue})
-	 */	
-	TaskExecutor(TaskQueue taskQueue) {
+	 * Construct a new TaskExecutor for a run that borrows its connections from the given DataSource.
+	 * @param dataSource The DataSource, or <code>null</code> for the shared connection pool (see {@link DBSource}).
+	 */
+	TaskExecutor(TaskQueue taskQueue, RunJournal journal, RunConfig config, DataSource dataSource) throws HqlWrapperException {
 		log.debug("New TaskExecutor class for task queue: " + taskQueue);
 		this.taskQueue = taskQueue;
+		this.graph = taskQueue.getGraph();
+		this.journal = journal;
+		this.config = config;
+		this.dataSource = dataSource;
+		this.failFast = config.isFailFast();
+		this.sessions = config.isStickySessions() && !config.isDryRun()
+				? new StickySessions(config, getDataSource(), DBSource.getPinPermits(config)) : null;
+	}
+
+	private DataSource getDataSource() {
+		return dataSource != null ? dataSource : DBSource.getDataSource(config);
 	}
 
 	/**
-	 * Start execution of a Queue of TaskNodes.
+	 * Start execution of a Queue of TaskNodes and wait for it (and any sub-task queues it starts) to complete.
 	 * @return TaskResult Results of Task execution (see {@link net.martinprobson.hiveutils.hqlwrapper.TaskResult})
-	 */	
+	 */
 	@Override
-	public TaskResult call() {
+	public TaskResult call() throws InterruptedException, ExecutionException {
+		return execute().get();
+	}
+
+	/**
+	 * Start execution of a Queue of TaskNodes without blocking the calling thread.
+	 * <p>
+	 * Single tasks run on the shared worker pool (see {@link ExecutorPool}) as soon as their dependencies have finished.
+	 * A task is only run if all of its hard dependencies succeeded, and is skipped if it has already succeeded (for
+	 * example in the run being resumed, see {@link RunJournal}).
+	 * @return A future that completes once every TaskNode in the queue (including sub-task queues) has finished. The
+	 * result is SUCCESS if every single task at the top level of the queue succeeded, FAILURE otherwise.
+	 */
+	CompletableFuture<TaskResult> execute() {
 		log.info("Starting execution of task queue: " + taskQueue.getLabel());
-		for(TaskNode taskNode : taskQueue) {
+		Map<TaskNode, CompletableFuture<TaskResult>> done = new IdentityHashMap<>();
+		// Number of single tasks of each TaskQueue still to finish, the queue's pinned session is closed at 0.
+		Map<TaskQueue, AtomicInteger> remaining = new IdentityHashMap<>();
+		for (TaskNode taskNode : graph.getNodes()) {
+			done.put(taskNode, new CompletableFuture<>());
+			if (taskNode.getTasks().size() == 0)
+				remaining.computeIfAbsent(graph.getQueue(taskNode), q -> new AtomicInteger()).incrementAndGet();
+		}
+
+		for (TaskNode taskNode : graph.getNodes()) {
+			List<TaskGraph.Edge> deps = graph.getDependencies(taskNode);
+			List<CompletableFuture<TaskResult>> waitFor = new ArrayList<>();
+			for (TaskGraph.Edge e : deps)
+				waitFor.add(done.get(e.node));
+			CompletableFuture<TaskResult> result;
 			if (taskNode.getTasks().size() == 0) {		// What type of node is this?
-				if (subTasks.size() != 0) {				// Have we launched any sub-tasks, if so wait for them to complete (or fail/timeout) before running any more (subsequent) single tasks
-					List<TaskResult> results = monitorSubTasks();
-					boolean ok = true;
-					for (TaskResult r : results) {
-						if (r != TaskResult.SUCCESS) {
-							ok = false;
-							break;
-						}
-					}
-					if (!ok) log.error(taskQueue.getLabel() + ": One or more subtasks failed");
-				}
-				boolean rc;
-				if (Controller.getInstance().getConf().getBoolean(DRY_RUN,false)) {
-					log.info("Dry run - " + taskNode.getLabel() + " - skipping execution setting result to SUCCESS");
-					taskNode.setResult(TaskResult.SUCCESS);					
-					rc = true;
-				} else {
-					log.info("Execute taskNode with label: " + taskNode.getLabel());
-					rc = Hive.ExecuteHqlStmts(taskNode,taskQueue.getParams());
-					log.info("Execute taskNode with label: " + taskNode.getLabel() + " - Complete - Result is: " + taskNode.getResult());
-				}
-				if (!rc) {
-					log.error(taskNode.getLabel() + " failed!");
-					return TaskResult.FAILURE;
-				}
+				Executor executor = ExecutorPool.getExecutor(graph.getQueue(taskNode).getLabel(), config);
+				if ((config.isAsync() || config.isVirtualThreads()) && !config.isDryRun())
+					result = allOf(waitFor)
+							.thenCompose(v -> ExecutorPool.acquireTask(config))
+							.thenComposeAsync(v -> runTask(taskNode, deps, done, config.isAsync() ? executor : null), executor)
+							.whenComplete((r, t) -> ExecutorPool.releaseTask());
+				else
+					result = allOf(waitFor)
+							.thenComposeAsync(v -> runTask(taskNode, deps, done, null), executor);
 			}
-			else {										// this tasknode contains a list of tasks to run, 
-				TaskExecutor task = new TaskExecutor(taskNode.getTasks());
-				ExecutorService executor = ExecutorPool.getExecutor(taskNode.getTasks().getLabel());
-				Future<TaskResult> future = executor.submit(task);	// Start a new TaskExecutor to process the subtasks. 
-				subTasks.add(future);				
+			else {										// this tasknode contains a list of tasks, it is finished when they are
+				result = allOf(waitFor)
+						.thenApply(v -> summarise(waitFor));
 			}
+			CompletableFuture<TaskResult> future = done.get(taskNode);
+			TaskQueue queue = graph.getQueue(taskNode);
+			result.handle(TaskExecutor::toResult).thenAccept(r -> {
+				if (sessions != null && taskNode.getTasks().size() == 0 && remaining.get(queue).decrementAndGet() == 0)
+					sessions.finished(queue);
+				future.complete(r);
+			});
 		}
-		return TaskResult.SUCCESS;
+
+		List<CompletableFuture<TaskResult>> all = new ArrayList<>(done.values());
+		List<CompletableFuture<TaskResult>> top = new ArrayList<>();
+		for (TaskNode taskNode : taskQueue)
+			if (taskNode.getTasks().size() == 0) top.add(done.get(taskNode));
+		return allOf(all).thenApply(v -> {
+			if (sessions != null) sessions.close();
+			return summarise(top) == TaskResult.SUCCESS ? TaskResult.SUCCESS : TaskResult.FAILURE;
+		});
 	}
-	
-	private List<TaskResult> monitorSubTasks() {
-		
-		List<TaskResult> results = new ArrayList<>();
-		int sleepInterval = Controller.getInstance().getConf().getInt(MONITOR_INTERVAL,10) * 1000;
-		
-		while (subTasks.size() != 0) {
-			ExecutorPool.monitor();
-			try {
-				Thread.sleep(sleepInterval);
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
-			}
-			Iterator<Future<TaskResult>> ite = subTasks.iterator();
-			while(ite.hasNext()) {
-				Future<TaskResult> t = ite.next();
-				if (t.isDone()) {
-					try {
-						TaskResult re = t.get();								// this should be get(timeout)?
-						results.add(re);
-					}
-					catch (CancellationException e) {
-						results.add(TaskResult.CANCELLED);
-					}
-					catch (ExecutionException e) {
-						results.add(TaskResult.EXECUTION_EX);
-					}
-					catch (InterruptedException e) {
-						results.add(TaskResult.INTERRUPTED_EX);
-					}
-					finally {
-						ite.remove();
-					}
-				}
+
+	/**
+	 * Run a single task once the tasks it depends on have finished.
+	 * @param taskNode The TaskNode to run.
+	 * @param deps Dependencies of the TaskNode.
+	 * @param done Futures of every TaskNode in the graph.
+	 * @param executor Executor to continue on as its statements complete (executor.async), or null to execute them
+	 *                 on the calling thread.
+	 * @return TaskResult of this task, once it has finished.
+	 */
+	private CompletableFuture<TaskResult> runTask(TaskNode taskNode, List<TaskGraph.Edge> deps,
+												  Map<TaskNode, CompletableFuture<TaskResult>> done, Executor executor) {
+		if (taskNode.getResult() == TaskResult.SUCCESS) {
+			log.info(taskNode.getLabel() + " - already succeeded - skipping execution");
+			return CompletableFuture.completedFuture(TaskResult.SUCCESS);
+		}
+		if (abort.isAborted()) {
+			log.info(taskNode.getLabel() + " not started - run aborted");
+			taskNode.setResult(TaskResult.CANCELLED);
+			return CompletableFuture.completedFuture(TaskResult.CANCELLED);
+		}
+		boolean subTaskFailed = false;
+		for (TaskGraph.Edge e : deps) {
+			TaskResult r = done.get(e.node).join();
+			if (r == TaskResult.SUCCESS) continue;
+			if (e.hard) {
+				log.error(taskNode.getLabel() + " not started - " + e.node.getId() + " result is: " + r);
+				return CompletableFuture.completedFuture(taskNode.getResult());
 			}
+			subTaskFailed = true;
 		}
-		return results;
+		if (subTaskFailed)
+			log.error(graph.getQueue(taskNode).getLabel() + ": One or more subtasks failed");
+		long start = System.currentTimeMillis();
+		if (journal != null) journal.started(taskNode);
+		if (config.isDryRun()) {
+			log.info("Dry run - " + taskNode.getLabel() + " - skipping execution setting result to SUCCESS");
+			taskNode.setResult(TaskResult.SUCCESS);
+			return CompletableFuture.completedFuture(finished(taskNode, true, start));
+		}
+		TaskQueue queue = graph.getQueue(taskNode);
+		HiveSession session = sessions == null ? null : sessions.acquire(queue);
+		log.info("Execute taskNode with label: " + taskNode.getLabel() + (session == null ? "" : " (pinned session)"));
+		ExecutionContext context = session != null
+				? new ExecutionContext(taskNode, queue.getParams(), config, abort, session)
+				: new ExecutionContext(taskNode, queue.getParams(), config, getDataSource(),
+						config.getRetryPolicy().forTask(taskNode), abort);
+		context.setExecutor(executor);
+		CompletableFuture<Boolean> executed;
+		try {
+			executed = Hive.ExecuteHqlStmtsAsync(taskNode, context);
+		} catch (RuntimeException e) {
+			if (session != null) sessions.release(queue, session, false);
+			throw e;
+		}
+		return executed.whenComplete((rc, t) -> {
+			if (session != null) sessions.release(queue, session, rc != null && rc);
+		}).thenApply(rc -> {
+			log.info("Execute taskNode with label: " + taskNode.getLabel() + " - Complete - Result is: " + taskNode.getResult()
+					+ " (" + context.getStatements() + " statement(s), " + context.getRetries() + " retries)");
+			return finished(taskNode, rc, start);
+		});
+	}
+
+	/**
+	 * Record the outcome of a task that has been executed.
+	 * @param taskNode The TaskNode.
+	 * @param rc true if it succeeded.
+	 * @param start Time it started.
+	 * @return TaskResult of this task.
+	 */
+	private TaskResult finished(TaskNode taskNode, boolean rc, long start) {
+		if (journal != null) journal.finished(taskNode, rc ? TaskResult.SUCCESS : taskNode.getResult(), start, System.currentTimeMillis());
+		if (!rc && taskNode.getResult() == TaskResult.CANCELLED) {
+			log.info(taskNode.getLabel() + " cancelled");
+			return TaskResult.CANCELLED;
+		}
+		if (!rc) {
+			log.error(taskNode.getLabel() + " failed!");
+			if (failFast)
+				abort.abort(taskNode.getId() + " result is: " + taskNode.getResult());
+			return taskNode.getResult() == TaskResult.TIMED_OUT ? TaskResult.TIMED_OUT : TaskResult.FAILURE;
+		}
+		return TaskResult.SUCCESS;
+	}
+
+	/**
+	 * @return SUCCESS if every future succeeded, otherwise the first result that was not SUCCESS.
+	 */
+	private static TaskResult summarise(List<CompletableFuture<TaskResult>> futures) {
+		for (CompletableFuture<TaskResult> f : futures) {
+			TaskResult r = f.join();
+			if (r != TaskResult.SUCCESS) return r;
+		}
+		return TaskResult.SUCCESS;
+	}
+
+	/**
+	 * Map the outcome of a future onto a TaskResult, so that futures in the graph always complete normally.
+	 */
+	private static TaskResult toResult(TaskResult result, Throwable t) {
+		if (t == null)
+			return result;
+		Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+		if (cause instanceof CancellationException)
+			return TaskResult.CANCELLED;
+		if (cause instanceof InterruptedException)
+			return TaskResult.INTERRUPTED_EX;
+		log.error("Task execution failed", cause);
+		return TaskResult.EXECUTION_EX;
+	}
+
+	private static CompletableFuture<Void> allOf(List<CompletableFuture<TaskResult>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
 	}
-	
-	
+
+
 	private final static Logger log = LoggerFactory.getLogger(TaskExecutor.class);
 
 
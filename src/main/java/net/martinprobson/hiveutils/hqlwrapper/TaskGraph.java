@@ -0,0 +1,327 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Dependency graph of the TaskNodes in a root TaskQueue.
+ * <p>
+ * By default the graph follows the directory layout (see {@link Controller}): -
+ * <ul>
+ * <li>An HQL file waits for the HQL file before it in the same directory to succeed, and for every sub-directory
+ * launched since then to finish.
+ * <li>A sub-directory is launched as soon as the HQL file before it in the same directory succeeds.
+ * <li>A sub-directory is finished when every TaskNode within it has finished.
+ * </ul>
+ * An HQL file can replace its default dependencies with an explicit list in a header annotation: -
+ * <pre>
+ * -- @dependsOn: 20_S1, 30_S2/40S2
+ * </pre>
+ * Each entry names an HQL file (the <code>.hql</code> extension is optional) or a sub-directory, relative to the
+ * directory holding the annotated file or, failing that, to the root directory. The file will start as soon as every
+ * entry has succeeded, regardless of its position in the directory. A sub-directory succeeds when every HQL file
+ * within it succeeds. Files without the annotation that follow it in the same directory still wait for it, and for
+ * everything before it, as usual.
+ * <p>
+ * When parallelism inference is enabled (<code>Controller.InferParallelism</code>), files without the annotation no
+ * longer wait for everything before them. Instead the tables each file reads and writes are worked out (see
+ * {@link TableAnalyzer}) and a file only waits for the files and sub-directories before it, in the same directory,
+ * that it conflicts with: one writes a table the other reads or writes. A file containing a statement that can not be
+ * classified conflicts with everything, so it runs in sequence as before. Likewise a sub-directory only waits for the
+ * earlier files in its directory that it conflicts with. A failed file then only prevents the files that conflict with
+ * it from running.
+ * <p>
+ * Dependencies are either <i>hard</i>, the dependent TaskNode is only run if the dependency succeeded, or <i>soft</i>,
+ * the dependent TaskNode only waits for the dependency to finish. Implicit dependencies on sub-directories are soft,
+ * so a failure in one sub-directory does not prevent top level or other sub-directory files from running.
+ */
+class TaskGraph {
+
+    static final String DEPENDS_ON = "dependsOn";
+
+    /**
+     * A dependency on a TaskNode.
+     */
+    static class Edge {
+        final TaskNode node;
+        final boolean hard;
+
+        Edge(TaskNode node, boolean hard) {
+            this.node = node;
+            this.hard = hard;
+        }
+
+        @Override
+        public String toString() {
+            return node.getId() + (hard ? "" : " (soft)");
+        }
+    }
+
+    /**
+     * Build the dependency graph for a root TaskQueue.
+     *
+     * @param root - the root TaskQueue.
+     * @throws HqlWrapperException if a <code>dependsOn</code> entry can not be resolved or the graph contains a cycle.
+     */
+    TaskGraph(TaskQueue root) throws HqlWrapperException {
+        this(root, false);
+    }
+
+    /**
+     * Build the dependency graph for a root TaskQueue.
+     *
+     * @param root             - the root TaskQueue.
+     * @param inferParallelism - derive dependencies between files from the tables they read and write.
+     * @throws HqlWrapperException if a <code>dependsOn</code> entry can not be resolved, the graph contains a cycle, or
+     *                             the file of a streamed TaskNode can not be read.
+     */
+    TaskGraph(TaskQueue root, boolean inferParallelism) throws HqlWrapperException {
+        this.root = root;
+        this.inferParallelism = inferParallelism;
+        index(root);
+        try {
+            build(root, Collections.emptyList());
+        } catch (UncheckedIOException e) {
+            throw new HqlWrapperException(e.getMessage() + " - " + e.getCause().getMessage());
+        }
+        checkCycles();
+    }
+
+    /**
+     * Copy a dependency graph onto a copy of its root TaskQueue (see {@link TaskQueue#copy(Map)}), without resolving
+     * annotations or analysing the HQL again.
+     *
+     * @param template - the graph to copy.
+     * @param root     - copy of the template's root TaskQueue.
+     */
+    TaskGraph(TaskGraph template, TaskQueue root) {
+        this.root = root;
+        this.inferParallelism = template.inferParallelism;
+        Map<TaskNode, TaskNode> copies = new IdentityHashMap<>();
+        Map<TaskQueue, TaskQueue> queueCopies = new IdentityHashMap<>();
+        map(template.root, root, copies, queueCopies);
+        for (TaskNode node : template.nodes) {
+            TaskNode copy = copies.get(node);
+            List<Edge> edges = new ArrayList<>();
+            for (Edge e : template.dependencies.get(node))
+                edges.add(new Edge(copies.get(e.node), e.hard));
+            nodes.add(copy);
+            dependencies.put(copy, edges);
+            queues.put(copy, queueCopies.get(template.queues.get(node)));
+            if (template.accesses.containsKey(node))
+                accesses.put(copy, template.accesses.get(node));
+        }
+        for (Map.Entry<String, TaskNode> e : template.byId.entrySet())
+            byId.put(e.getKey(), copies.get(e.getValue()));
+    }
+
+    private static void map(TaskQueue template, TaskQueue copy, Map<TaskNode, TaskNode> copies, Map<TaskQueue, TaskQueue> queueCopies) {
+        queueCopies.put(template, copy);
+        Iterator<TaskNode> it = copy.iterator();
+        for (TaskNode node : template) {
+            TaskNode c = it.next();
+            copies.put(node, c);
+            map(node.getTasks(), c.getTasks(), copies, queueCopies);
+        }
+    }
+
+    /**
+     * @return every TaskNode in the graph, in TaskQueue order (a branch precedes the TaskNodes within it).
+     */
+    List<TaskNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * @param node - a TaskNode in this graph.
+     * @return the dependencies that must finish before the TaskNode can run. For a branch TaskNode these are the
+     * TaskNodes within it.
+     */
+    List<Edge> getDependencies(TaskNode node) {
+        return dependencies.get(node);
+    }
+
+    /**
+     * @param node - a TaskNode in this graph.
+     * @return the TaskQueue that holds the TaskNode.
+     */
+    TaskQueue getQueue(TaskNode node) {
+        return queues.get(node);
+    }
+
+    /**
+     * @return the root TaskQueue of this graph.
+     */
+    TaskQueue getRoot() {
+        return root;
+    }
+
+    private void index(TaskQueue queue) {
+        for (TaskNode node : queue) {
+            byId.put(stripExtension(node.getId()), node);
+            if (node.getTasks().size() != 0) index(node.getTasks());
+        }
+    }
+
+    /**
+     * @param node - a TaskNode in this graph.
+     * @return the tables read and written by the TaskNode (and every TaskNode within it).
+     */
+    TableAnalyzer.TableAccess getAccess(TaskNode node) {
+        TableAnalyzer.TableAccess access = accesses.get(node);
+        if (access == null) {
+            if (node.isStreamed()) {
+                access = analyzeStreamed(node);
+            } else if (node.getTasks().size() == 0) {
+                access = TableAnalyzer.analyze(node.getHql());
+            } else {
+                access = new TableAnalyzer.TableAccess();
+                for (TaskNode child : node.getTasks()) access.addAll(getAccess(child));
+            }
+            accesses.put(node, access);
+        }
+        return access;
+    }
+
+    /**
+     * Analyze the statements of a streamed TaskNode as they are read, rather than reading its file into memory.
+     *
+     * @throws UncheckedIOException if the file can not be read.
+     */
+    private static TableAnalyzer.TableAccess analyzeStreamed(TaskNode node) {
+        try (HqlStatementReader stmts = node.openStatements()) {
+            return TableAnalyzer.analyze(stmts);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading file of: " + node.getLabel(), e);
+        } catch (UncheckedIOException e) {
+            throw new UncheckedIOException("Error reading file of: " + node.getLabel(), e.getCause());
+        }
+    }
+
+    private void build(TaskQueue queue, List<Edge> start) throws HqlWrapperException {
+        List<Edge> previous = start;
+        List<Edge> launched = new ArrayList<>();
+        List<TaskNode> siblings = new ArrayList<>();
+        for (TaskNode node : queue) {
+            nodes.add(node);
+            queues.put(node, queue);
+            if (node.getTasks().size() == 0) {
+                List<Edge> deps = new ArrayList<>();
+                String dependsOn = node.getAnnotation(DEPENDS_ON);
+                if (dependsOn != null) {
+                    for (String ref : dependsOn.split(",")) {
+                        if (ref.trim().isEmpty()) continue;
+                        deps.add(new Edge(resolve(queue, node, ref.trim()), true));
+                    }
+                    log.debug(node.getId() + " - declared dependencies: " + deps);
+                    // Files after this one still wait for everything before it.
+                    previous = new ArrayList<>(previous);
+                    previous.add(new Edge(node, true));
+                } else if (inferParallelism) {
+                    deps.addAll(start);
+                    for (TaskNode sibling : siblings)
+                        if (getAccess(node).conflictsWith(getAccess(sibling)))
+                            deps.add(new Edge(sibling, sibling.getTasks().size() == 0));
+                } else {
+                    deps.addAll(previous);
+                    deps.addAll(launched);
+                    previous = Collections.singletonList(new Edge(node, true));
+                    launched = new ArrayList<>();
+                }
+                dependencies.put(node, deps);
+            } else {
+                List<Edge> children = new ArrayList<>();
+                for (TaskNode child : node.getTasks()) children.add(new Edge(child, false));
+                dependencies.put(node, children);
+                if (inferParallelism) {
+                    List<Edge> branchStart = new ArrayList<>(start);
+                    for (TaskNode sibling : siblings)
+                        if (sibling.getTasks().size() == 0 && getAccess(node).conflictsWith(getAccess(sibling)))
+                            branchStart.add(new Edge(sibling, true));
+                    build(node.getTasks(), branchStart);
+                } else {
+                    build(node.getTasks(), previous);
+                }
+                launched.add(new Edge(node, false));
+            }
+            siblings.add(node);
+        }
+    }
+
+    private TaskNode resolve(TaskQueue queue, TaskNode node, String ref) throws HqlWrapperException {
+        String name = stripExtension(ref.replaceAll("^/+|/+$", ""));
+        TaskNode dep = null;
+        if (!queue.getId().isEmpty())
+            dep = byId.get(queue.getId() + "/" + name);
+        if (dep == null)
+            dep = byId.get(name);
+        if (dep == null)
+            throw new HqlWrapperException(node.getId() + ": " + DEPENDS_ON + " entry '" + ref + "' does not match any file or directory");
+        return dep;
+    }
+
+    private static String stripExtension(String id) {
+        return id.toLowerCase().endsWith(".hql") ? id.substring(0, id.length() - 4) : id;
+    }
+
+    /**
+     * Depth first search of the dependencies, iterative so that long chains of files can not overflow the stack.
+     */
+    private void checkCycles() throws HqlWrapperException {
+        Set<TaskNode> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<TaskNode> onPath = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<TaskNode> path = new ArrayDeque<>();
+        Deque<Iterator<Edge>> pending = new ArrayDeque<>();
+        for (TaskNode start : nodes) {
+            if (!visited.add(start)) continue;
+            onPath.add(start);
+            path.push(start);
+            pending.push(dependencies.get(start).iterator());
+            while (!pending.isEmpty()) {
+                if (!pending.peek().hasNext()) {
+                    pending.pop();
+                    onPath.remove(path.pop());
+                    continue;
+                }
+                TaskNode next = pending.peek().next().node;
+                if (onPath.contains(next)) {
+                    StringBuilder s = new StringBuilder(next.getId());
+                    for (TaskNode n : path) {
+                        s.insert(0, n.getId() + " -> ");
+                        if (n == next) break;
+                    }
+                    throw new HqlWrapperException("Dependency cycle: " + s);
+                }
+                if (visited.add(next)) {
+                    onPath.add(next);
+                    path.push(next);
+                    pending.push(dependencies.get(next).iterator());
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (TaskNode node : nodes) {
+            if (node.getTasks().size() != 0) continue;
+            s.append("\n ").append(node.getId()).append(" <- ").append(dependencies.get(node));
+            if (inferParallelism) s.append(" ").append(getAccess(node));
+        }
+        return s.toString();
+    }
+
+    private final TaskQueue root;
+    private final boolean inferParallelism;
+    private final Map<TaskNode, TableAnalyzer.TableAccess> accesses = new IdentityHashMap<>();
+    private final List<TaskNode> nodes = new ArrayList<>();
+    private final Map<TaskNode, List<Edge>> dependencies = new IdentityHashMap<>();
+    private final Map<TaskNode, TaskQueue> queues = new IdentityHashMap<>();
+    private final Map<String, TaskNode> byId = new HashMap<>();
+    private final static Logger log = LoggerFactory.getLogger(TaskGraph.class);
+}
@@ -4,8 +4,28 @@ import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 /**
  * Class representing a Task.
+ * <p>
+ * A Task built from an HQL file may carry header annotations, comment lines at the top of the file of the form: -
+ * <pre>
+ * -- @name: value
+ * </pre>
+ * For example <code>-- @dependsOn: 20_S1, 30_S2/40S2</code> (see {@link TaskGraph}).
  */
 public class TaskNode {
 
@@ -18,6 +38,7 @@ public class TaskNode {
         this.path = null;
         this.hql = hql;
         this.label = label;
+        this.id = label;
         if (subTasks == null)
             this.subTasks = new TaskQueue();
         else
@@ -43,6 +64,7 @@ public class TaskNode {
         this.path = path;
         this.hql = null;
         this.label = path.getName();
+        this.id = label;
         if (subTasks == null)
             this.subTasks = new TaskQueue();
         else
@@ -57,6 +79,51 @@ public class TaskNode {
         this(path, null);
     }
 
+    /**
+     * @param path               - File containing the HQL to be executed.
+     * @param length             - length of the file in bytes, from the listing of its directory, <code>-1</code> if
+     *                           it is not known.
+     * @param streamingThreshold - size in bytes from which the file is streamed, 0 for never (see
+     *                           {@link #isStreamed()}).
+     */
+    TaskNode(Path path, long length, long streamingThreshold) {
+        this(path, null);
+        this.length = length;
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * Copy a TaskNode, with a result of NOT_STARTED. The copy shares the HQL, statements, templates and annotations of
+     * the original, which are read and parsed now if they have not been already (see {@link TaskQueue#copy(Map)}). The
+     * copy of a streamed TaskNode shares its annotations only.
+     *
+     * @param template - TaskNode to copy.
+     * @param subTasks - copy of the TaskQueue of sub-tasks of the template.
+     */
+    TaskNode(TaskNode template, TaskQueue subTasks) {
+        this.path = template.path;
+        this.label = template.label;
+        this.id = template.id;
+        this.subTasks = subTasks;
+        if (template.isStreamed()) {
+            // Each copy streams the file as it executes, only the header annotations are shared.
+            template.getAnnotation(Hive.TIMEOUT);
+            this.annotations = template.annotations;
+            this.contentHash = template.contentHash;
+            this.streamed = true;
+        } else {
+            this.hql = template.getHql();
+            this.streamed = false;
+            if (template.getTasks().size() == 0) {
+                this.statements = template.getStatements();
+                this.templates = template.getTemplates();
+                this.annotations = template.annotations == null ? parseAnnotations(hql) : template.annotations;
+                template.annotations = this.annotations;
+            }
+        }
+        this.result = TaskResult.NOT_STARTED;
+    }
+
     /**
      * @return String label for this TaskNode.
      */
@@ -65,20 +132,201 @@ public class TaskNode {
     }
 
     /**
-     * @return String hql statement(s) for this TaskNode
+     * @return Path of the HQL file of this TaskNode, <code>null</code> if it was not read from a file.
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return String id of this TaskNode, its path relative to the root TaskQueue (e.g. <code>30_S2/40S2.hql</code>).
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param id Set the id (path relative to the root TaskQueue) of this TaskNode.
+     */
+    void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Return the value of a header annotation.
+     *
+     * @param name - name of the annotation (case insensitive).
+     * @return String value of the annotation or <code>null</code> if this TaskNode does not carry the annotation.
+     * @throws UncheckedIOException if this TaskNode is streamed and the header of its file can not be read. The
+     *                              annotations are first read when its TaskGraph is built, see {@link TaskGraph}.
+     */
+    public String getAnnotation(String name) {
+        if (annotations == null) {
+            if (isStreamed()) {
+                // Only the header of the file is read.
+                try (BufferedReader in = FileUtil.openReader(path)) {
+                    annotations = parseAnnotations(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error reading file: " + path, e);
+                }
+            } else {
+                annotations = parseAnnotations(getHql());
+            }
+        }
+        return annotations.get(name.toLowerCase());
+    }
+
+    /**
+     * @return the header annotations of this TaskNode, keyed by lower case name.
+     */
+    Map<String, String> getAnnotations() {
+        getAnnotation(Hive.TIMEOUT);
+        return Collections.unmodifiableMap(annotations);
+    }
+
+    /**
+     * Parse the header annotations from the leading comment/blank lines of the hql.
+     */
+    static Map<String, String> parseAnnotations(String hql) {
+        if (hql == null) return Collections.emptyMap();
+        try {
+            return parseAnnotations(new BufferedReader(new StringReader(hql)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, String> parseAnnotations(BufferedReader in) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            if (!line.startsWith("--")) break;
+            Matcher m = ANNOTATION.matcher(line);
+            if (m.matches()) {
+                log.trace("Annotation: " + m.group(1) + " = " + m.group(2));
+                result.put(m.group(1).toLowerCase(), m.group(2).trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return String hql statement(s) for this TaskNode. The HQL of a streamed TaskNode is read from its file on
+     * every call, and not kept.
      */
     public String getHql() {
         /* Does this TaskNode represent the parent of a set of sub-tasks or a single HQL file/string? */
         if (getTasks().size() == 0) {
             /* This is a task representing a single HQL file/string. */
+            if (hql == null && prefetched != null) {
+                try {
+                    hql = prefetched.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    log.error("Error reading file: " + path, e.getCause());
+                }
+                prefetched = null;
+            }
             if (hql == null) {
-                if (path != null)
+                if (path != null) {
+                    if (isStreamed())
+                        return FileUtil.readFile(path);
                     hql = FileUtil.readFile(path);
+                }
             }
         }
         return hql;
     }
 
+    /**
+     * @return hex SHA-256 digest of the content of this TaskNode's file, computed a block at a time when first needed
+     * if it was not loaded from a plan (see {@link JobPlan}).
+     * @throws UncheckedIOException if the file can not be read.
+     */
+    String getContentHash() {
+        if (contentHash == null)
+            contentHash = FileUtil.sha256(path);
+        return contentHash;
+    }
+
+    /**
+     * Set what a plan file (see {@link JobPlan}) holds for this TaskNode's file, so the file need not be read.
+     *
+     * @param hql         - the HQL of the file, <code>null</code> if it is streamed.
+     * @param statements  - the statements of the HQL, <code>null</code> if it is streamed.
+     * @param annotations - the header annotations of the file.
+     * @param contentHash - hex SHA-256 digest of the content of the file.
+     */
+    void setCompiled(String hql, List<String> statements, Map<String, String> annotations, String contentHash) {
+        this.hql = hql;
+        this.statements = statements == null ? null : Collections.unmodifiableList(statements);
+        this.annotations = annotations;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Use the HQL of this TaskNode's file being read in the background (see {@link TaskQueueLoader}), rather than
+     * read it when it is first needed.
+     *
+     * @param hql - the HQL of the file, when it has been read.
+     */
+    void prefetch(Future<String> hql) {
+        this.prefetched = hql;
+    }
+
+    /**
+     * Whether the statements of this TaskNode are read from its file one at a time as they are executed (see
+     * {@link HqlStatementReader}), rather than read, split and kept in memory. This is the case for an HQL file of at
+     * least <code>hql.streamingThreshold</code> bytes, as given when the TaskNode was built.
+     *
+     * @return <code>true</code> if this TaskNode is streamed.
+     */
+    boolean isStreamed() {
+        if (streamed == null) {
+            boolean s = false;
+            if (path != null && hql == null && statements == null && getTasks().size() == 0)
+                s = streamingThreshold > 0 && (length >= 0 ? length : FileUtil.getLength(path)) >= streamingThreshold;
+            streamed = s;
+            if (s)
+                log.info(label + ": streaming statements from file");
+        }
+        return streamed;
+    }
+
+    /**
+     * @return reader of the statements of a streamed TaskNode, to be closed by the caller.
+     */
+    HqlStatementReader openStatements() {
+        return new HqlStatementReader(FileUtil.openReader(path));
+    }
+
+    /**
+     * @return the HQL statements of this TaskNode (see {@link Util#HQLSplit(String)}), before parameter substitution.
+     * A streamed TaskNode's statements are not kept, see openStatements().
+     */
+    List<String> getStatements() {
+        if (statements == null)
+            statements = Collections.unmodifiableList(Util.HQLSplit(getHql()));
+        return statements;
+    }
+
+    /**
+     * @return the HQL statements of this TaskNode compiled for parameter substitution (see {@link HqlTemplate}), once
+     * and shared by its copies. A streamed TaskNode's statements are compiled as they are read.
+     */
+    List<HqlTemplate> getTemplates() {
+        if (templates == null) {
+            List<HqlTemplate> t = new ArrayList<>();
+            for (String stmt : getStatements())
+                t.add(HqlTemplate.compile(stmt));
+            templates = Collections.unmodifiableList(t);
+        }
+        return templates;
+    }
+
     /**
      * @return TaskQueue of TaskNodes representing sub-tasks.
      */
@@ -112,9 +360,20 @@ public class TaskNode {
         return s.toString().trim();
     }
 
+    private static final Pattern ANNOTATION = Pattern.compile("^--\\s*@(\\w+)\\s*:?(.*)$");
+
     private Path path;
     private String hql;
     private String label;
+    private String id;
+    private Map<String, String> annotations;
+    private List<String> statements;
+    private List<HqlTemplate> templates;
+    private Boolean streamed;
+    private long length = -1;
+    private long streamingThreshold = 0;
+    private Future<String> prefetched;
+    private String contentHash;
     private TaskQueue subTasks;
     private TaskResult result;
     private final static Logger log = LoggerFactory.getLogger(TaskNode.class);
@@ -1,5 +1,6 @@
 package net.martinprobson.hiveutils.hqlwrapper;
 
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,52 +17,124 @@ public class TaskQueue implements Iterable<TaskNode> {
      * Construct an empty TaskQueue.
      */
     TaskQueue() {
-        this(null, Collections.emptyMap(), 0);
+        log.trace("Level: 0 Building empty TaskQueue");
+        this.label = "Empty";
+        this.id = "";
     }
 
 
-    TaskQueue(String directory) {
-        this(new Path(directory), Collections.emptyMap(), 0);
+    TaskQueue(String directory, Map<String, String> params, RunConfig config) throws HqlWrapperException {
+        this(new Path(directory), params, config);
     }
 
-    TaskQueue(String directory, Map<String, String> params) {
-        this(new Path(directory), params, 0);
+    /**
+     * Construct a new (root) TaskQueue based on contents of directory on file system.
+     * <p>
+     * The directory tree is listed, and the HQL files read, in parallel by up to <code>hql.loadThreads</code>
+     * threads (see {@link TaskQueueLoader}).
+     *
+     * @param directory - points to directory on file system containing tasks configuration.
+     * @param params    - Map of parameters which will be substituted into the HQL script.
+     * @param config    - RunConfig of the run.
+     * @throws HqlWrapperException if the directory tree could not be listed, or the dependency graph is invalid (see
+     *                             {@link TaskGraph}).
+     */
+    private TaskQueue(Path directory, Map<String, String> params, RunConfig config) throws HqlWrapperException {
+        this.level = 0;
+        this.label = directory.getName();
+        this.params = params;
+        this.id = "";
+        TaskQueueLoader loader = new TaskQueueLoader(config.getLoadThreads());
+        try {
+            Map<Path, List<FileStatus>> tree = loader.list(directory);
+            build(tree, directory, loader, config.getStreamingThreshold());
+        } finally {
+            loader.shutdown();
+        }
+        buildGraph(config.isInferParallelism());
     }
 
-
     /**
-     * Construct a new TaskQueue based on contents of directory on file system.
+     * Construct a TaskQueue for a sub-directory of a listed directory tree.
      *
+     * @param tree      - HQL files and sub-directories of each directory (see {@link TaskQueueLoader#list(Path)}).
      * @param directory - points to directory on file system containing tasks configuration.
      * @param params    - Map of parameters which will be substituted into the HQL script.
      * @param level     - The depth of the task queue, 0 - root level.
+     * @param id        - Path of the directory relative to the root directory ("" for the root).
+     * @param loader    - TaskQueueLoader reading the HQL files.
+     * @param streamingThreshold - size in bytes from which an HQL file is streamed (see {@link TaskNode#isStreamed()}).
      */
-    TaskQueue(Path directory, Map<String, String> params, int level) {
-        if (directory == null) {
-            log.trace("Level: " + level + " Building empty TaskQueue");
-            this.label = "Empty";
-
-        } else {
-            log.trace("Level: " + level + " Building task queue from root directory: " + directory + " with params: " + params);
-            this.level = level;
-            this.label = directory.getName();
-            this.params = params;
-            log.trace("Level: " + level + " Building task queue from root directory: " + directory + " with params: " + params);
-            Path[] paths = FileUtil.listFiles(directory, name -> (FileUtil.isDirectory(name) || name.getName().toLowerCase().endsWith(".hql")));
-            assert paths != null;
-            Arrays.sort(paths);
-            for (Path p : paths) {
-                TaskNode taskNode;
-                if (FileUtil.isDirectory(p)) {
-                    taskNode = new TaskNode(p, new TaskQueue(p, params, this.level + 1));
-                } else {
-                    taskNode = new TaskNode(p);
-                }
-                taskQueue.add(taskNode);
+    private TaskQueue(Map<Path, List<FileStatus>> tree, Path directory, Map<String, String> params, int level, String id,
+                      TaskQueueLoader loader, long streamingThreshold) {
+        this(directory, params, level, id);
+        build(tree, directory, loader, streamingThreshold);
+    }
+
+    /**
+     * Construct an empty TaskQueue for a directory, to which its TaskNodes are added (see {@link JobPlan}).
+     *
+     * @param directory - directory on file system containing tasks configuration.
+     * @param params    - Map of parameters which will be substituted into the HQL script.
+     * @param level     - The depth of the task queue, 0 - root level.
+     * @param id        - Path of the directory relative to the root directory ("" for the root).
+     */
+    TaskQueue(Path directory, Map<String, String> params, int level, String id) {
+        this.level = level;
+        this.label = directory.getName();
+        this.params = params;
+        this.id = id;
+    }
+
+    private void build(Map<Path, List<FileStatus>> tree, Path directory, TaskQueueLoader loader, long streamingThreshold) {
+        log.trace("Level: " + level + " Building task queue from root directory: " + directory + " with params: " + params);
+        for (FileStatus entry : tree.get(directory)) {
+            Path p = entry.getPath();
+            TaskNode taskNode;
+            String childId = id.isEmpty() ? p.getName() : id + "/" + p.getName();
+            if (entry.isDirectory()) {
+                TaskQueue subTasks = new TaskQueue(tree, p, params, this.level + 1, childId, loader, streamingThreshold);
+                subTasks.modificationTime = entry.getModificationTime();
+                taskNode = new TaskNode(p, subTasks);
+            } else {
+                taskNode = new TaskNode(p, entry.getLen(), streamingThreshold);
+                loader.prefetch(taskNode);
             }
+            taskNode.setId(childId);
+            taskQueue.add(taskNode);
         }
     }
 
+    /**
+     * Copy a TaskQueue (and the TaskQueues within it), with a result of NOT_STARTED.
+     */
+    private TaskQueue(TaskQueue template, Map<String, String> params) {
+        this.level = template.level;
+        this.label = template.label;
+        this.params = params;
+        this.id = template.id;
+        for (TaskNode node : template)
+            taskQueue.add(new TaskNode(node, new TaskQueue(node.getTasks(), params)));
+    }
+
+    /**
+     * Copy this (root) TaskQueue to run it with different parameters.
+     * <p>
+     * The copy shares the HQL and parsed statements of this TaskQueue's TaskNodes, and its dependency graph is copied
+     * from this TaskQueue's, so the files are only read and analysed once however many copies are run (see
+     * {@link Backfill}).
+     *
+     * @param params - Map of parameters which will be substituted into the HQL script.
+     * @return a copy of this TaskQueue in which every TaskNode is NOT_STARTED.
+     * @throws HqlWrapperException if this TaskQueue's dependency graph is invalid.
+     */
+    TaskQueue copy(Map<String, String> params) throws HqlWrapperException {
+        TaskGraph template = getGraph();
+        TaskQueue copy = new TaskQueue(this, params);
+        copy.graph = new TaskGraph(template, copy);
+        return copy;
+    }
+
     /**
      * Add a TaskNode to a TaskQueue.
      *
@@ -108,10 +181,54 @@ public class TaskQueue implements Iterable<TaskNode> {
         return params;
     }
 
+    /**
+     * @return Path of this TaskQueue's directory relative to the root directory ("" for the root TaskQueue).
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * @return modification time of this TaskQueue's directory when it was listed, <code>-1</code> for the root
+     * TaskQueue or if it is not known.
+     */
+    long getModificationTime() {
+        return modificationTime;
+    }
+
+    void setModificationTime(long modificationTime) {
+        this.modificationTime = modificationTime;
+    }
+
+    /**
+     * Build the dependency graph of this (root) TaskQueue, once its TaskNodes have been added.
+     *
+     * @param inferParallelism - whether dependencies are also inferred from the tables each file reads and writes.
+     * @throws HqlWrapperException if the dependency graph is invalid.
+     */
+    void buildGraph(boolean inferParallelism) throws HqlWrapperException {
+        graph = new TaskGraph(this, inferParallelism);
+    }
+
+    /**
+     * Return the dependency graph of this (root) TaskQueue.
+     *
+     * @return TaskGraph for this TaskQueue.
+     * @throws IllegalStateException if this TaskQueue was built by hand and its graph has not been built.
+     */
+    TaskGraph getGraph() {
+        if (graph == null)
+            throw new IllegalStateException("Dependency graph of: " + label + " has not been built");
+        return graph;
+    }
+
     private Queue<TaskNode> taskQueue = new LinkedList<>();
     private final static Logger log = LoggerFactory.getLogger(TaskQueue.class);
     private Map<String, String> params = Collections.emptyMap();
     private final String label;
+    private final String id;
     private int level;
+    private TaskGraph graph;
+    private long modificationTime = -1;
 
 }
@@ -0,0 +1,119 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists the directory tree of a root TaskQueue and reads its HQL files, using up to <code>hql.loadThreads</code>
+ * threads.
+ * <p>
+ * Each directory is listed with a single <code>listStatus</code> call and the FileStatus it returns is used to tell
+ * HQL files from sub-directories, and for the length of each file (see {@link TaskNode#isStreamed()}), so building a
+ * TaskQueue makes one file system call per directory rather than several per file. Sub-directories are listed in
+ * parallel as they are found.
+ * <p>
+ * Once the tree is listed, the HQL files that are not streamed are read in the background (see
+ * {@link TaskNode#prefetch(Future)}), so their contents are ready, or on their way, when they are first needed, to
+ * build the dependency graph or to execute the TaskNode.
+ */
+final class TaskQueueLoader {
+
+    /**
+     * @param threads - maximum number of directories listed, or files read, at the same time.
+     */
+    TaskQueueLoader(int threads) {
+        AtomicInteger n = new AtomicInteger(1);
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "HQL_Loader-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * List a directory and all the directories beneath it.
+     *
+     * @param root - root directory.
+     * @return the HQL files and sub-directories of each directory of the tree, sorted by name.
+     * @throws HqlWrapperException if a directory could not be listed.
+     */
+    Map<Path, List<FileStatus>> list(Path root) throws HqlWrapperException {
+        Map<Path, List<FileStatus>> tree = new HashMap<>();
+        CompletionService<List<FileStatus>> listings = new ExecutorCompletionService<>(pool);
+        Map<Future<List<FileStatus>>, Path> pending = new HashMap<>();
+        pending.put(listings.submit(() -> list(root, root)), root);
+        while (!pending.isEmpty()) {
+            Future<List<FileStatus>> done;
+            List<FileStatus> entries;
+            try {
+                done = listings.take();
+                entries = done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HqlWrapperException("Interrupted listing directory: " + root);
+            } catch (ExecutionException e) {
+                log.error("Error listing directory", e.getCause());
+                throw new HqlWrapperException("Error listing directory: " + e.getCause());
+            }
+            tree.put(pending.remove(done), entries);
+            for (FileStatus entry : entries) {
+                if (entry.isDirectory()) {
+                    Path dir = entry.getPath();
+                    pending.put(listings.submit(() -> list(root, dir)), dir);
+                }
+            }
+        }
+        log.debug("Listed " + tree.size() + " directories under: " + root);
+        return tree;
+    }
+
+    /**
+     * Start reading the HQL of a TaskNode in the background, unless it is streamed.
+     */
+    void prefetch(TaskNode node) {
+        if (node.getPath() == null || node.isStreamed()) return;
+        Path path = node.getPath();
+        node.prefetch(pool.submit(() -> FileUtil.readFile(path)));
+    }
+
+    /**
+     * Stop the threads once the files being read have been read.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    private static List<FileStatus> list(Path root, Path directory) {
+        FileStatus[] status = FileUtil.listStatus(directory);
+        if (status == null) {
+            if (directory.equals(root)) throw new IllegalArgumentException("Directory not found: " + directory);
+            return Collections.emptyList();
+        }
+        List<FileStatus> entries = new ArrayList<>(status.length);
+        for (FileStatus s : status)
+            if (s.isDirectory() || s.getPath().getName().toLowerCase().endsWith(".hql"))
+                entries.add(s);
+        entries.sort(Comparator.comparing(FileStatus::getPath));
+        log.trace("Listed directory: " + directory + " entries: " + entries.size());
+        return entries;
+    }
+
+    private final ExecutorService pool;
+    private final static Logger log = LoggerFactory.getLogger(TaskQueueLoader.class);
+}
@@ -5,6 +5,6 @@ package net.martinprobson.hiveutils.hqlwrapper;
  */
 enum TaskResult {
 	
-		NOT_STARTED, RUNNING, SUCCESS, FAILURE, CANCELLED, EXECUTION_EX, INTERRUPTED_EX
+		NOT_STARTED, RUNNING, SUCCESS, FAILURE, CANCELLED, EXECUTION_EX, INTERRUPTED_EX, TIMED_OUT
 }
 	
@@ -0,0 +1,182 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class AsyncStatementTest {
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        poller.shutdownNow();
+        ExecutorPool.cleanUp();
+    }
+
+    @Test
+    public void testPolled() throws Exception {
+        FakeHiveStatement driverStmt = new FakeHiveStatement(3, false);
+        AsyncStatement running = AsyncStatement.start(statement(driverStmt), driverStmt, "select * from big_join");
+        assertNotNull(running);
+        assertEquals("select * from big_join", driverStmt.submitted);
+        assertTrue(running.isRunning());
+        running.whenDone(poller, 1).get(5, TimeUnit.SECONDS);
+        assertFalse(running.isRunning());
+        assertTrue(driverStmt.client.polls.get() >= 4);
+    }
+
+    @Test
+    public void testFailed() throws Exception {
+        FakeHiveStatement driverStmt = new FakeHiveStatement(1, true);
+        CompletableFuture<Void> done = AsyncStatement.start(statement(driverStmt), driverStmt, "select 1").whenDone(poller, 1);
+        try {
+            done.get(5, TimeUnit.SECONDS);
+            fail("Expected SQLException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            assertEquals("Error while processing statement: FAILED: Execution Error", e.getCause().getMessage());
+        }
+
+        // A statement HiveServer2 does not accept is not polled.
+        try {
+            AsyncStatement.start(statement(driverStmt), driverStmt, "selec 1");
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("ParseException"));
+        }
+    }
+
+    @Test
+    public void testUnsupported() throws SQLException {
+        Statement stmt = statement(null);
+        assertNull(AsyncStatement.start(stmt, "select 1"));
+        assertNull(AsyncStatement.start(stmt, new Object(), "select 1"));
+    }
+
+    @Test
+    public void testUnsupportedDriver() throws Exception {
+        // Hive JDBC 1.1.0 has no executeAsync(), so each running task blocks a worker and the pool must have one for
+        // each of executor.maxConcurrentTasks, not executor.asyncThreads.
+        assertFalse(AsyncStatement.isSupported());
+        Configuration conf = new Configuration();
+        conf.setBoolean(EXECUTOR_ASYNC, true);
+        conf.setInt(EXECUTOR_ASYNC_THREADS, 2);
+        conf.setInt(EXECUTOR_MAX_CONCURRENT_TASKS, 6);
+        Executor executor = ExecutorPool.getExecutor("async", RunConfig.from(conf));
+        CountDownLatch started = new CountDownLatch(6);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 6; i++)
+            executor.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        try {
+            assertTrue("Blocking tasks did not all start", started.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * @return statement borrowed from the pool, wrapping the driver's statement, which fails once the statement has
+     * completed if <code>driverStmt</code> has failed.
+     */
+    private static Statement statement(FakeHiveStatement driverStmt) {
+        return (Statement) Proxy.newProxyInstance(AsyncStatementTest.class.getClassLoader(), new Class<?>[]{Statement.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getUpdateCount")) {
+                        if (driverStmt.failed)
+                            throw new SQLException("Error while processing statement: FAILED: Execution Error", null, 2);
+                        return -1;
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Stands in for HiveStatement (Hive JDBC 2.2 and later): the statement is reported as running for
+     * <code>polls</code> GetOperationStatus calls.
+     */
+    public static class FakeHiveStatement {
+        private final FakeClient client;
+        private OperationHandle stmtHandle = null;
+        private final boolean failed;
+        private String submitted = null;
+
+        FakeHiveStatement(int polls, boolean failed) {
+            this.client = new FakeClient(polls, failed);
+            this.failed = failed;
+        }
+
+        public void executeAsync(String sql) throws SQLException {
+            if (sql.startsWith("selec "))
+                throw new SQLException("Error while compiling statement: FAILED: ParseException", "42000", 40000);
+            submitted = sql;
+            stmtHandle = new OperationHandle();
+        }
+    }
+
+    public static class OperationHandle {
+    }
+
+    public static class FakeClient {
+        final AtomicInteger polls = new AtomicInteger();
+        private final int running;
+        private final boolean failed;
+
+        FakeClient(int running, boolean failed) {
+            this.running = running;
+            this.failed = failed;
+        }
+
+        public StatusResp GetOperationStatus(StatusReq req) {
+            if (polls.getAndIncrement() < running) return new StatusResp(OperationState.RUNNING_STATE);
+            return new StatusResp(failed ? OperationState.ERROR_STATE : OperationState.FINISHED_STATE);
+        }
+    }
+
+    public static class StatusReq {
+        public StatusReq(OperationHandle handle) {
+        }
+    }
+
+    public static class StatusResp {
+        private final OperationState state;
+
+        StatusResp(OperationState state) {
+            this.state = state;
+        }
+
+        public OperationState getOperationState() {
+            return state;
+        }
+    }
+
+    public enum OperationState {INITIALIZED_STATE, RUNNING_STATE, FINISHED_STATE, ERROR_STATE}
+}
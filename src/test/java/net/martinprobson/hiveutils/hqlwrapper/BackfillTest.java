@@ -0,0 +1,89 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DRY_RUN;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL_FILE_ROOT_DIR;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+
+public class BackfillTest {
+
+    @Test
+    public void testMatrix() throws HqlWrapperException {
+        List<Map<String, String>> matrix = Backfill.matrix(new String[]{"run_date=20170130..20170202", "region=emea, apac"});
+        assertEquals(8, matrix.size());
+        assertEquals("{run_date=20170130, region=emea}", matrix.get(0).toString());
+        assertEquals("{run_date=20170130, region=apac}", matrix.get(1).toString());
+        assertEquals("{run_date=20170202, region=apac}", matrix.get(7).toString());
+        assertEquals(Arrays.asList("20160228", "20160229", "20160301"), Backfill.values("20160228..20160301"));
+        assertEquals(Arrays.asList("0", "1", "2", "10"), Backfill.values("0..2,10"));
+        assertEquals(1, Backfill.matrix(new String[0]).size());
+
+        for (String invalid : new String[]{"run_date", "=1", "n=3..1", "d=20170230..20170301", "d=20170102..20170101", "n=a..b", "n=,"}) {
+            try {
+                Backfill.matrix(new String[]{invalid});
+                fail("Expected invalid spec: " + invalid);
+            } catch (HqlWrapperException e) {
+                // expected
+            }
+        }
+        try {
+            Backfill.matrix(new String[]{"n=1", "n=2"});
+            fail("Expected duplicate parameter");
+        } catch (HqlWrapperException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCopy() throws HqlWrapperException {
+        TaskQueue template = new TaskQueue(new File(getClass().getResource("/dag").getFile()).getAbsolutePath(),
+                Collections.emptyMap(), RunConfig.from(new ControllerConfiguration()));
+        TaskGraph graph = template.getGraph();
+        for (TaskNode node : graph.getNodes()) node.setResult(TaskResult.SUCCESS);
+
+        Map<String, String> params = Collections.singletonMap("region", "emea");
+        TaskQueue copy = template.copy(params);
+        TaskGraph copyGraph = copy.getGraph();
+        assertEquals(graph.toString(), copyGraph.toString());
+        assertEquals(graph.getNodes().size(), copyGraph.getNodes().size());
+        for (int i = 0; i < graph.getNodes().size(); i++) {
+            TaskNode node = graph.getNodes().get(i);
+            TaskNode c = copyGraph.getNodes().get(i);
+            assertNotSame(node, c);
+            assertEquals(node.getId(), c.getId());
+            assertSame(node.getHql(), c.getHql());
+            if (c.getTasks().size() == 0) assertSame(node.getStatements(), c.getStatements());
+            assertEquals(TaskResult.NOT_STARTED, c.getResult());
+            assertSame(params, copyGraph.getQueue(c).getParams());
+            for (TaskGraph.Edge e : copyGraph.getDependencies(c))
+                assertSame(e.node, copyGraph.getNodes().get(graph.getNodes().indexOf(graph.getDependencies(node).get(copyGraph.getDependencies(c).indexOf(e)).node)));
+        }
+    }
+
+    @Test
+    public void testRun() throws HqlWrapperException {
+        Controller controller = new Controller(new ControllerConfiguration());
+        try {
+            controller.getConf().set(HQL_FILE_ROOT_DIR, new File(getClass().getClassLoader().getResource("testconfig").getFile()).getPath());
+            controller.getConf().setBoolean(DRY_RUN, true);
+            Map<Map<String, String>, TaskResult> results = controller.runBackfill(
+                    Backfill.matrix(new String[]{"run_date=20170401..20170403", "region=emea,apac"}));
+            assertEquals(6, results.size());
+            for (TaskResult result : results.values())
+                assertEquals(TaskResult.SUCCESS, result);
+        } finally {
+            controller.reset();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class DBSourceTest {
+
+    private static final FakeDriver driver = new FakeDriver();
+
+    @BeforeClass
+    public static void register() throws SQLException {
+        DriverManager.registerDriver(driver);
+    }
+
+    @AfterClass
+    public static void deregister() throws SQLException {
+        DriverManager.deregisterDriver(driver);
+    }
+
+    @After
+    public void tearDown() {
+        DBSource.close();
+        driver.connections.set(0);
+        driver.executed.clear();
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        RunConfig config = config(new Configuration());
+        DataSource dataSource = DBSource.getDataSource(config);
+        assertSame(dataSource, DBSource.getDataSource(config));
+        assertSame(dataSource, DBSource.getDataSource(config(new Configuration())));
+        assertEquals(1, DBSource.getConnectionPools().size());
+
+        // A connection given back is handed out again, not reopened.
+        for (int i = 0; i < 3; i++)
+            try (Connection conn = dataSource.getConnection()) {
+                conn.createStatement().execute("select " + i);
+            }
+        assertEquals(1, driver.connections.get());
+        assertEquals(1, DBSource.getConnectionPools().get(0).getNumIdle());
+
+        DBSource.close();
+        assertTrue(DBSource.getConnectionPools().isEmpty());
+        assertNotSame(dataSource, DBSource.getDataSource(config));
+    }
+
+    @Test
+    public void testPoolSize() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(POOL_MAX_TOTAL, 4);
+        conf.setInt(POOL_MIN_IDLE, 2);
+        conf.setLong(POOL_MAX_WAIT_MILLIS, 500);
+        conf.set(POOL_VALIDATION_QUERY, "select 'valid'");
+        DBSource.getDataSource(config(conf));
+        GenericObjectPool<PoolableConnection> pool = DBSource.getConnectionPools().get(0);
+        assertEquals(4, pool.getMaxTotal());
+        assertEquals(4, pool.getMaxIdle());
+        assertEquals(2, pool.getMinIdle());
+        assertEquals(500, pool.getMaxWaitMillis());
+        assertTrue(pool.getTestOnBorrow());
+        assertTrue(pool.getTestWhileIdle());
+
+        // Connections are validated with the configured query when borrowed.
+        try (Connection ignored = DBSource.getDataSource(config(conf)).getConnection()) {
+            assertTrue(driver.executed.contains("select 'valid'"));
+        }
+
+        DBSource.close();
+        DBSource.getDataSource(config(new Configuration()));
+        pool = DBSource.getConnectionPools().get(0);
+        assertEquals(DEFAULT_POOL_MAX_TOTAL, pool.getMaxTotal());
+        assertFalse(pool.getTestOnBorrow());
+        assertFalse(pool.getTestWhileIdle());
+    }
+
+    @Test
+    public void testPreWarm() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setInt(POOL_MAX_TOTAL, 3);
+        conf.setInt(POOL_PRE_WARM, 2);
+        assertEquals(2, preWarm(conf));
+        DBSource.close();
+        driver.connections.set(0);
+
+        // Never more than pool.maxTotal.
+        conf.setInt(POOL_PRE_WARM, 10);
+        assertEquals(3, preWarm(conf));
+    }
+
+    /**
+     * Pre-warm the pool, and return the number of idle connections once the connections opened settle.
+     */
+    private static int preWarm(Configuration conf) throws Exception {
+        DBSource.preWarm(config(conf));
+        GenericObjectPool<PoolableConnection> pool = DBSource.getConnectionPools().get(0);
+        int expected = Math.min(conf.getInt(POOL_PRE_WARM, 0), conf.getInt(POOL_MAX_TOTAL, 0));
+        for (int i = 0; i < 100 && pool.getNumIdle() < expected; i++)
+            Thread.sleep(50);
+        Thread.sleep(200);
+        assertEquals(pool.getNumIdle(), driver.connections.get());
+        return pool.getNumIdle();
+    }
+
+    private static RunConfig config(Configuration conf) throws HqlWrapperException {
+        conf.set(JDBC_URL, FakeDriver.URL);
+        return RunConfig.from(conf);
+    }
+
+    /**
+     * JDBC driver for <code>jdbc:fake:</code> URLs, counting the connections opened and recording the statements executed.
+     */
+    private static class FakeDriver implements Driver {
+        static final String URL = "jdbc:fake://localhost:10000/default";
+        final AtomicInteger connections = new AtomicInteger();
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) return null;
+            connections.incrementAndGet();
+            // A single row, as the pool expects from a validation query.
+            ResultSet rs = (ResultSet) Proxy.newProxyInstance(DBSourceTest.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    (proxy, method, args) -> method.getReturnType() == boolean.class ? method.getName().equals("next") : null);
+            Statement stmt = (Statement) Proxy.newProxyInstance(DBSourceTest.class.getClassLoader(), new Class<?>[]{Statement.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().startsWith("execute")) executed.add((String) args[0]);
+                        if (method.getName().equals("executeQuery")) return rs;
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    });
+            return (Connection) Proxy.newProxyInstance(DBSourceTest.class.getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "createStatement":
+                                return stmt;
+                            case "isValid":
+                                return Boolean.TRUE;
+                            case "isClosed":
+                            case "isReadOnly":
+                                return Boolean.FALSE;
+                            case "getAutoCommit":
+                                return Boolean.TRUE;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith("jdbc:fake:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DAEMON_PORT;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DAEMON_TOKEN;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.DRY_RUN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class DaemonTest {
+
+    private Controller controller;
+    private Daemon daemon;
+    private String root;
+
+    @Before
+    public void setUp() throws HqlWrapperException {
+        controller = new Controller(new ControllerConfiguration());
+        controller.getConf().setInt(DAEMON_PORT, 0);
+        controller.getConf().setBoolean(DRY_RUN, true);
+        controller.getConf().set(DAEMON_TOKEN, "secret");
+        root = new File(getClass().getClassLoader().getResource("testconfig").getFile()).getPath();
+        daemon = new Daemon(controller);
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() {
+        daemon.shutdown();
+        daemon.awaitShutdown();
+        controller.reset();
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        assertEquals(TaskResult.SUCCESS, DaemonClient.submit(daemon.getPort(), "secret", root, Collections.emptyMap()));
+        // The worker and connection pools are kept open between jobs.
+        assertEquals(TaskResult.SUCCESS, DaemonClient.submit(daemon.getPort(), "secret", root, Collections.singletonMap("p", "1")));
+        assertTrue(DaemonClient.status(daemon.getPort(), "secret").isEmpty());
+    }
+
+    @Test
+    public void testConcurrentSubmit() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        try {
+            Future<?>[] results = new Future<?>[3];
+            for (int i = 0; i < results.length; i++)
+                results[i] = clients.submit(() -> DaemonClient.submit(daemon.getPort(), "secret", root, Collections.emptyMap()));
+            for (Future<?> result : results)
+                assertEquals(TaskResult.SUCCESS, result.get());
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void testErrors() {
+        try {
+            DaemonClient.submit(daemon.getPort(), "wrong", root, Collections.emptyMap());
+            fail("Expected invalid token");
+        } catch (HqlWrapperException e) {
+            assertEquals("invalid token", e.getMessage());
+        }
+        try {
+            DaemonClient.submit(daemon.getPort(), "secret", root + "_missing", Collections.emptyMap());
+            fail("Expected invalid root");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage().contains("does not exist"));
+        }
+        try {
+            DaemonClient.submit(daemon.getPort(), "secret", root, Collections.singletonMap("p", "a\tb"));
+            fail("Expected invalid parameter");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage().startsWith("Invalid value"));
+        }
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        DaemonClient.shutdown(daemon.getPort(), "secret");
+        try {
+            DaemonClient.submit(daemon.getPort(), "secret", root, Collections.emptyMap());
+            fail("Expected daemon to be shut down");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage().startsWith("Unable to contact daemon"));
+        }
+    }
+}
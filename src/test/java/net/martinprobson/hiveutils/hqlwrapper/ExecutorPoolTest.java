@@ -0,0 +1,138 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ExecutorPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ExecutorPool.cleanUp();
+    }
+
+    @Test
+    public void testMaxConcurrentTasks() throws Exception {
+        // Sub-directories with no file before them all launch at once, the pool must hold them to the limit.
+        for (int i = 0; i < 8; i++) {
+            File dir = folder.newFolder(String.format("%02d_S", i));
+            Files.write(new File(dir, "00_s.hql").toPath(),
+                    ("select '" + i + "';\n").getBytes(StandardCharsets.UTF_8));
+        }
+        RunConfig config = config(3);
+        HiveTest.FakeHive hive = new HiveTest.FakeHive(100);
+        TaskQueue queue = new TaskQueue(folder.getRoot().getAbsolutePath(), Collections.emptyMap(), config);
+        assertEquals(TaskResult.SUCCESS, new TaskExecutor(queue, null, config, hive).call());
+        assertEquals(8, hive.executed.size());
+        assertEquals(3, hive.peak.get());
+    }
+
+    @Test
+    public void testMonitor() throws Exception {
+        RunConfig config = config(3);
+        Executor executor = ExecutorPool.getExecutor("monitor", config);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(3);
+        CountDownLatch finished = new CountDownLatch(10);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 10; i++)
+            executor.execute(() -> {
+                threads.add(Thread.currentThread());
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            });
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        try {
+            assertEquals(3, ExecutorPool.getSize());
+            assertEquals(3, ExecutorPool.getRunning());
+            assertEquals(7, ExecutorPool.getQueueDepth());
+            assertEquals(100, ExecutorPool.getSaturation());
+            // Queued tasks wait in the pool's queue, they do not hold a thread.
+            assertEquals(3, threads.size());
+            ExecutorPool.monitor();
+        } finally {
+            release.countDown();
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(3, threads.size());
+        assertEquals(0, ExecutorPool.getQueueDepth());
+    }
+
+    @Test
+    public void testCleanUp() throws HqlWrapperException {
+        ExecutorPool.getExecutor("cleanUp", config(3));
+        ExecutorPool.cleanUp();
+        assertEquals(0, ExecutorPool.getSize());
+        assertEquals(0, ExecutorPool.getRunning());
+        assertEquals(0, ExecutorPool.getSaturation());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setBoolean(EXECUTOR_VIRTUAL_THREADS, true);
+        conf.setInt(EXECUTOR_MAX_CONCURRENT_TASKS, 3);
+        RunConfig config = RunConfig.from(conf);
+
+        // Run a queue of tasks as TaskExecutor does, each one on a virtual thread once it has a task permit.
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger virtual = new AtomicInteger();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        Executor executor = ExecutorPool.getExecutor("virtual", config);
+        for (int i = 0; i < 20; i++)
+            tasks.add(ExecutorPool.acquireTask(config)
+                    .thenRunAsync(() -> {
+                        if (Thread.currentThread().isVirtual()) virtual.incrementAndGet();
+                        peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                    }, executor)
+                    .whenComplete((v, t) -> ExecutorPool.releaseTask()));
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertEquals(20, virtual.get());
+        assertTrue("Peak concurrency: " + peak.get(), peak.get() <= 3);
+        assertEquals(0, ExecutorPool.getRunning());
+        assertEquals(0, ExecutorPool.getQueueDepth());
+    }
+
+    private static RunConfig config(int maxConcurrentTasks) throws HqlWrapperException {
+        Configuration conf = new Configuration();
+        conf.setInt(EXECUTOR_MAX_CONCURRENT_TASKS, maxConcurrentTasks);
+        conf.setInt(MONITOR_INTERVAL, 0);
+        return RunConfig.from(conf);
+    }
+}
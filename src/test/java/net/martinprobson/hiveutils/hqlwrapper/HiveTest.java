@@ -0,0 +1,381 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL_STREAMING_THRESHOLD;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.RETRY_INITIAL_BACKOFF_MILLIS;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.RETRY_MAX_ATTEMPTS;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.SESSION_STICKY_FILES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class HiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RunConfig config;
+
+    @BeforeClass
+    public static void setUp() throws HqlWrapperException {
+        config = RunConfig.from(new Configuration());
+    }
+
+    @Test
+    public void testStatementTimeout() {
+        FakeHive hive = new FakeHive(10000);
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        long start = System.currentTimeMillis();
+        assertFalse(Hive.ExecHQL(config, hive, "select * from big_join", 200, retry(3), timedOut));
+        assertTrue(timedOut.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        // A statement that timed out is not retried.
+        assertEquals(1, hive.connections.get());
+    }
+
+    @Test
+    public void testNoTimeout() {
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        assertTrue(Hive.ExecHQL(config, new FakeHive(50), "select 1", 5000, retry(1), timedOut));
+        assertFalse(timedOut.get());
+        assertTrue(Hive.ExecHQL(config, new FakeHive(0), "select 1", 0, retry(1), timedOut));
+        assertFalse(timedOut.get());
+    }
+
+    @Test
+    public void testRetryTransient() {
+        FakeHive hive = new FakeHive(0);
+        hive.failures.add(new SQLException("org.apache.thrift.transport.TTransportException", "08S01"));
+        hive.failures.add(new SQLException("Error while processing statement: FAILED: Execution Error", null, 10041));
+        assertTrue(Hive.ExecHQL(config, hive, "insert overwrite table t select 1", 0, retry(3), new AtomicBoolean(false)));
+        assertEquals(3, hive.connections.get());
+    }
+
+    @Test
+    public void testRetryAttemptsExhausted() {
+        FakeHive hive = new FakeHive(0);
+        for (int i = 0; i < 3; i++)
+            hive.failures.add(new SQLException("Connection reset", "08S01"));
+        assertFalse(Hive.ExecHQL(config, hive, "select 1", 0, retry(2), new AtomicBoolean(false)));
+        assertEquals(2, hive.connections.get());
+    }
+
+    @Test
+    public void testNoRetryPermanent() {
+        FakeHive hive = new FakeHive(0);
+        hive.failures.add(new SQLException("Error while compiling statement: FAILED: SemanticException [Error 10001]: Table not found t", "42S02", 10001));
+        assertFalse(Hive.ExecHQL(config, hive, "select * from t", 0, retry(3), new AtomicBoolean(false)));
+        assertEquals(1, hive.connections.get());
+    }
+
+    @Test
+    public void testNoRetryNonIdempotent() {
+        FakeHive hive = new FakeHive(0);
+        hive.failures.add(new SQLException("Connection reset", "08S01"));
+        assertFalse(Hive.ExecHQL(config, hive, "insert into table t select 1", 0, retry(3), new AtomicBoolean(false)));
+        assertEquals(1, hive.connections.get());
+
+        hive = new FakeHive(0);
+        hive.failures.add(new SQLException("Connection reset", "08S01"));
+        RetryPolicy optIn = retry(3).forTask(new TaskNode("-- @retry: true\ninsert into table t select 1;", "optIn"));
+        assertTrue(Hive.ExecHQL(config, hive, "insert into table t select 1", 0, optIn, new AtomicBoolean(false)));
+        assertEquals(2, hive.connections.get());
+    }
+
+    @Test
+    public void testSessionReplayed() {
+        FakeHive hive = new FakeHive(0);
+        hive.failures.add(null);
+        hive.failures.add(null);
+        hive.failures.add(new SQLException("Connection reset", "08S01"));
+        assertTrue(Hive.ExecuteHqlStmts(new TaskNode("set hive.exec.parallel=true;\nuse db1;\nselect 1;", "replay"),
+                Collections.emptyMap(), config, hive, retry(3), new AbortSignal()));
+        assertEquals(Arrays.asList("set hive.exec.parallel=true", "use db1", "select 1",
+                "set hive.exec.parallel=true", "use db1", "select 1"), trim(hive.executed));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        FakeHive hive = new FakeHive(0);
+        hive.failures.add(null);
+        hive.failures.add(new SQLException("Connection reset", "08S01"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            TaskNode taskNode = new TaskNode("set hive.exec.parallel=true;\nselect 1;", "async");
+            ExecutionContext context = new ExecutionContext(taskNode, Collections.emptyMap(),
+                    RunConfig.from(new Configuration()), hive, retry(3), new AbortSignal());
+            context.setExecutor(executor);
+            // The retry continues on the executor once its backoff has elapsed.
+            assertTrue(Hive.ExecuteHqlStmtsAsync(taskNode, context).get(5, TimeUnit.SECONDS));
+            assertEquals(TaskResult.SUCCESS, taskNode.getResult());
+            assertEquals(Arrays.asList("set hive.exec.parallel=true", "select 1", "set hive.exec.parallel=true", "select 1"),
+                    trim(hive.executed));
+            assertEquals(2, context.getStatements());
+            assertEquals(1, context.getRetries());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        FakeHive hive = new FakeHive(10000);
+        AbortSignal abort = new AbortSignal();
+        TaskNode taskNode = new TaskNode("select * from big_join;\nselect 1;", "abort");
+        Thread aborter = new Thread(() -> {
+            try {
+                hive.started.await();
+                abort.abort("test");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        aborter.start();
+        long start = System.currentTimeMillis();
+        assertFalse(Hive.ExecuteHqlStmts(taskNode, Collections.emptyMap(), config, hive, retry(3), abort));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(TaskResult.CANCELLED, taskNode.getResult());
+        // Neither retried nor followed by the next statement.
+        assertEquals(1, hive.executed.size());
+
+        // Once aborted, nothing more is executed.
+        FakeHive after = new FakeHive(0);
+        assertFalse(Hive.ExecuteHqlStmts(taskNode, Collections.emptyMap(), config, after, retry(3), abort));
+        assertEquals(0, after.executed.size());
+        assertEquals(TaskResult.CANCELLED, taskNode.getResult());
+    }
+
+    @Test
+    public void testConcurrentParams() throws Exception {
+        FakeHive hive = new FakeHive(1);
+        RunConfig config = RunConfig.from(new Configuration());
+        List<Thread> threads = new ArrayList<>();
+        List<ExecutionContext> contexts = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            String region = "r" + i;
+            threads.add(new Thread(() -> {
+                TaskNode taskNode = new TaskNode("set hivevar:region=${region};\nselect '${region}';", region);
+                ExecutionContext context = new ExecutionContext(taskNode, Collections.singletonMap("region", region),
+                        config, hive, retry(3), new AbortSignal());
+                contexts.add(context);
+                if (!Hive.ExecuteHqlStmts(taskNode, context)) failed.incrementAndGet();
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        assertEquals(0, failed.get());
+        List<String> selects = new ArrayList<>();
+        for (String stmt : trim(hive.executed))
+            if (stmt.startsWith("select")) selects.add(stmt);
+        Collections.sort(selects);
+        assertEquals(Arrays.asList("select 'r0'", "select 'r1'", "select 'r2'", "select 'r3'", "select 'r4'",
+                "select 'r5'", "select 'r6'", "select 'r7'"), selects);
+        int statements = 0, retries = 0;
+        for (ExecutionContext context : contexts) {
+            statements += context.getStatements();
+            retries += context.getRetries();
+        }
+        assertEquals(16, statements);
+        assertEquals(0, retries);
+    }
+
+    @Test
+    public void testStreamed() throws Exception {
+        File file = folder.newFile("big.hql");
+        Files.write(file.toPath(), "-- @timeout: 60\nset hivevar:n=1;\nselect '${region}';\n".getBytes(StandardCharsets.UTF_8));
+        Configuration conf = new Configuration();
+        conf.setLong(HQL_STREAMING_THRESHOLD, 1);
+        long threshold = RunConfig.from(conf).getStreamingThreshold();
+        TaskNode taskNode = new TaskNode(new org.apache.hadoop.fs.Path(file.getAbsolutePath()), -1, threshold);
+        assertTrue(taskNode.isStreamed());
+        assertEquals("60", taskNode.getAnnotation(Hive.TIMEOUT));
+        FakeHive hive = new FakeHive(0);
+        assertTrue(Hive.ExecuteHqlStmts(taskNode, Collections.singletonMap("region", "emea"), config, hive, retry(1), new AbortSignal()));
+        assertEquals(Arrays.asList("set hivevar:n=1", "select 'emea'"), hive.executed);
+        assertEquals(TaskResult.SUCCESS, taskNode.getResult());
+
+        assertFalse(new TaskNode(new org.apache.hadoop.fs.Path(file.getAbsolutePath()), -1, 0).isStreamed());
+    }
+
+    @Test
+    public void testStickySessions() throws Exception {
+        FakeHive hive = new FakeHive(0);
+        Configuration conf = new Configuration();
+        conf.setInt(SESSION_STICKY_FILES, 2);
+        RunConfig config = RunConfig.from(conf);
+        Semaphore permits = new Semaphore(1);
+        StickySessions sessions = new StickySessions(config, hive, permits);
+        TaskQueue queue = new TaskQueue(new org.apache.hadoop.fs.Path("/q1"), Collections.emptyMap(), 0, "q1");
+        TaskQueue other = new TaskQueue(new org.apache.hadoop.fs.Path("/q2"), Collections.emptyMap(), 0, "q2");
+
+        HiveSession session = sessions.acquire(queue);
+        assertNotNull(session);
+        // In use by a file of the queue, and no permit left for another queue.
+        assertNull(sessions.acquire(queue));
+        assertNull(sessions.acquire(other));
+        TaskNode first = new TaskNode("use db1;\nset hivevar:n=1;\nselect 1;", "first");
+        assertTrue(Hive.ExecuteHqlStmts(first, new ExecutionContext(first, null, config, new AbortSignal(), session)));
+        sessions.release(queue, session, true);
+
+        // The next file of the queue executes on the same session, with the state left by the first.
+        assertSame(session, sessions.acquire(queue));
+        assertEquals(Arrays.asList("use db1", "set hivevar:n=1"), trim(session.getState()));
+        TaskNode second = new TaskNode("use db1;\nselect 2;", "second");
+        assertTrue(Hive.ExecuteHqlStmts(second, new ExecutionContext(second, null, config, new AbortSignal(), session)));
+        assertEquals(1, hive.connections.get());
+        // The USE already in effect is not executed again.
+        assertEquals(Arrays.asList("use db1", "set hivevar:n=1", "select 1", "select 2"), trim(hive.executed));
+        // session.stickyFiles reached, the session is closed and its permit returned.
+        sessions.release(queue, session, true);
+        assertEquals(0, sessions.getPinned());
+        assertEquals(1, permits.availablePermits());
+        assertTrue(session.getState().isEmpty());
+
+        // A file that fails discards the session.
+        session = sessions.acquire(other);
+        assertNotNull(session);
+        sessions.release(other, session, false);
+        assertEquals(0, sessions.getPinned());
+        assertEquals(1, permits.availablePermits());
+
+        session = sessions.acquire(queue);
+        sessions.release(queue, session, true);
+        sessions.finished(queue);
+        assertEquals(0, sessions.getPinned());
+        assertEquals(1, permits.availablePermits());
+    }
+
+    private static List<String> trim(List<String> stmts) {
+        List<String> result = new ArrayList<>();
+        for (String s : stmts) result.add(s.trim());
+        return result;
+    }
+
+    private static RetryPolicy retry(int maxAttempts) {
+        Configuration conf = new Configuration();
+        conf.setInt(RETRY_MAX_ATTEMPTS, maxAttempts);
+        conf.setLong(RETRY_INITIAL_BACKOFF_MILLIS, 1);
+        return RetryPolicy.fromConf(conf);
+    }
+
+    /**
+     * A DataSource whose statements take <code>duration</code> milliseconds to execute, unless they are cancelled, and
+     * fail with the next exception in <code>failures</code> (if any). <code>started</code> is counted down when the first
+     * statement starts to execute.
+     */
+    static class FakeHive implements DataSource {
+        final List<SQLException> failures = Collections.synchronizedList(new ArrayList<>());
+        final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger connections = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        // Statements executing now, and the most that have executed at the same time.
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        private final long duration;
+
+        FakeHive(long duration) {
+            this.duration = duration;
+        }
+
+        @Override
+        public Connection getConnection() {
+            connections.incrementAndGet();
+            CountDownLatch cancelled = new CountDownLatch(1);
+            Statement stmt = (Statement) Proxy.newProxyInstance(HiveTest.class.getClassLoader(), new Class<?>[]{Statement.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "execute":
+                                executed.add((String) args[0]);
+                                started.countDown();
+                                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                                try {
+                                    if (cancelled.await(duration, TimeUnit.MILLISECONDS))
+                                        throw new SQLException("Query was cancelled");
+                                } finally {
+                                    running.decrementAndGet();
+                                }
+                                SQLException failure = failures.isEmpty() ? null : failures.remove(0);
+                                if (failure != null) throw failure;
+                                return false;
+                            case "cancel":
+                                cancelled.countDown();
+                                return null;
+                            case "setQueryTimeout":
+                                throw new SQLException("Method not supported");
+                            default:
+                                return null;
+                        }
+                    });
+            return (Connection) Proxy.newProxyInstance(HiveTest.class.getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> method.getName().equals("createStatement") ? stmt : null);
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) {
+            return getConnection();
+        }
+
+        @Override
+        public java.io.PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(java.io.PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() {
+            return null;
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) {
+            return null;
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
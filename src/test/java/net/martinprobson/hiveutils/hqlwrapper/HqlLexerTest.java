@@ -0,0 +1,57 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class HqlLexerTest {
+
+    @Test
+    public void testComments() {
+        String hql = "-- header\n" +
+                "set hive.exec.parallel=true; -- trailing\n" +
+                "select a, -- first column\n" +
+                "       b /* second\n column */ from t;\r\n" +
+                "/* only a comment */;\n" +
+                "select 1 -- ignored;\n" +
+                ";";
+        assertEquals(Arrays.asList("set hive.exec.parallel=true",
+                "select a, \n       b   from t",
+                "select 1"), HqlLexer.split(hql));
+    }
+
+    @Test
+    public void testQuotes() {
+        String hql = "select 'a;b', \"c -- d\", '/* e */' from t;" +
+                "select 'it\\'s;', \"say \\\"hi;\\\"\" from t;" +
+                "select `odd;name` from t;";
+        assertEquals(Arrays.asList("select 'a;b', \"c -- d\", '/* e */' from t",
+                "select 'it\\'s;', \"say \\\"hi;\\\"\" from t",
+                "select `odd;name` from t"), HqlLexer.split(hql));
+    }
+
+    @Test
+    public void testUnterminated() {
+        assertEquals(Collections.singletonList("select 1"), HqlLexer.split("select 1;\n select 2"));
+        assertEquals(Collections.emptyList(), HqlLexer.split("select 'a;"));
+        assertEquals(Collections.emptyList(), HqlLexer.split(" ;;\n/* open"));
+    }
+
+    @Test
+    public void testOffsets() {
+        String hql = "  use db1 ;\nselect 1;";
+        HqlLexer lexer = new HqlLexer(hql);
+        assertTrue(lexer.next());
+        assertEquals("use db1", hql.substring(lexer.start(), lexer.end()));
+        assertTrue(lexer.next());
+        assertEquals("select 1", hql.substring(lexer.start(), lexer.end()));
+        assertEquals("select 1", lexer.statement());
+        assertFalse(lexer.next());
+    }
+}
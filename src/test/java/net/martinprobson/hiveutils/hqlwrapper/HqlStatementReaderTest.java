@@ -0,0 +1,60 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+
+public class HqlStatementReaderTest {
+
+    @Test
+    public void testSameAsLexer() throws IOException {
+        String[] scripts = {
+                "-- header\nset a=1; -- trailing\nselect a, -- col\n b /* block\n */ from t;\r\n/* only */;\nselect 1 -- x;\n;",
+                "select 'a;b', \"c -- d\", '/* e */' from t;select 'it\\'s;', \"q \\\"x;\\\"\" from t;select `o;n` from t;",
+                "select 1;\n select 2",
+                " ;;\n/* open",
+                "select 'unterminated;",
+                "a;b;-",
+                "a-b;c/d;e/;"};
+        for (String script : scripts)
+            assertEquals(script, HqlLexer.split(script), readAll(script));
+    }
+
+    @Test
+    public void testLargeScript() throws IOException {
+        // Statements and comments spanning the reader's buffer boundaries.
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            s.append("insert into t values (").append(i).append(", 'x;-- ").append(i).append("'); -- row ").append(i)
+                    .append("\n/* ").append(i).append(" */");
+        assertEquals(HqlLexer.split(s), readAll(s.toString()));
+        assertEquals(5000, readAll(s.toString()).size());
+    }
+
+    @Test
+    public void testIterator() throws IOException {
+        try (HqlStatementReader reader = new HqlStatementReader(new StringReader("use db1;select 1;"))) {
+            assertEquals("use db1", reader.next());
+            assertEquals("select 1", reader.next());
+            assertFalse(reader.hasNext());
+            assertNull(reader.read());
+        }
+    }
+
+    private static List<String> readAll(String script) throws IOException {
+        List<String> stmts = new ArrayList<>();
+        try (HqlStatementReader reader = new HqlStatementReader(new StringReader(script))) {
+            String stmt;
+            while ((stmt = reader.read()) != null) stmts.add(stmt);
+        }
+        return stmts;
+    }
+}
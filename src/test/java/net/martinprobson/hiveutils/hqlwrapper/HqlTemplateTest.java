@@ -0,0 +1,68 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.commons.lang3.text.StrSubstitutor;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class HqlTemplateTest {
+
+    @Test
+    public void testSameAsStrSubstitutor() {
+        Map<String, String> params = new HashMap<>();
+        params.put("region", "emea");
+        params.put("table", "sales_${region}");
+        params.put("hiveconf:run_date", "20180101");
+        params.put("empty", "");
+        String[] stmts = {
+                "select * from ${table} where region = '${region}'",
+                "select '${missing}', '${missing:-x}', '${region:-x}', '${empty}'",
+                "select '$${region}', '$$${region}', '$$', '$', '${', '}' from t",
+                "insert into t partition (d=${hiveconf:run_date}) select ${region}${region}",
+                "select '${a${region}}', '${unterminated",
+                "select '$${x}' from t",
+                "select '$${x}', '${unterminated",
+                "select ${hivevar:n}, ${missing:-${region}}",
+                "select 1"};
+        for (String stmt : stmts)
+            assertEquals(stmt, new StrSubstitutor(params).replace(stmt), HqlTemplate.compile(stmt).render(params));
+    }
+
+    @Test
+    public void testNoParams() {
+        String stmt = "select '${region}'";
+        assertSame(stmt, HqlTemplate.compile(stmt).render(null));
+        assertEquals(stmt, HqlTemplate.compile(stmt).render(Collections.emptyMap()));
+        String plain = "select 1";
+        assertSame(plain, HqlTemplate.compile(plain).render(Collections.singletonMap("region", "emea")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCycle() {
+        Map<String, String> params = new HashMap<>();
+        params.put("a", "${b}");
+        params.put("b", "x${a}");
+        HqlTemplate.compile("select ${a}").render(params);
+    }
+
+    @Test
+    public void testUnresolved() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("missing", "later")), HqlTemplate.unresolved(Arrays.asList(
+                HqlTemplate.compile("select ${later}, ${missing}, ${region}, ${d:-1}, ${hiveconf:run_date}, ${env:HOME}"),
+                HqlTemplate.compile("set hivevar:n=1"),
+                HqlTemplate.compile("SET x = 2"),
+                HqlTemplate.compile("select ${n}, ${x}, ${missing}"),
+                HqlTemplate.compile("set later=1")), Collections.singletonMap("region", "emea")));
+        assertTrue(HqlTemplate.unresolved(Collections.singletonList(HqlTemplate.compile("select '$${name}'")),
+                null).isEmpty());
+    }
+}
@@ -0,0 +1,114 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class IncrementalCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String root;
+    private String cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Path source = Paths.get(new File(getClass().getResource("/dag").getFile()).getAbsolutePath());
+        Path target = folder.newFolder("dag").toPath();
+        try (Stream<Path> files = Files.walk(source)) {
+            Iterator<Path> it = files.iterator();
+            while (it.hasNext()) {
+                Path p = it.next();
+                Path t = target.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p))
+                    Files.createDirectories(t);
+                else
+                    Files.copy(p, t);
+            }
+        }
+        root = target.toString();
+        cacheFile = new File(folder.getRoot(), "cache/incremental.cache").getAbsolutePath();
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        assertEquals(0, run("20170401"));
+        assertEquals(5, run("20170401"));
+    }
+
+    @Test
+    public void testChangedFileAndDownstream() throws Exception {
+        run("20170401");
+        Files.write(Paths.get(root, "10_A", "10_a.hql"), "\nselect 1;".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        TaskGraph graph = graph();
+        IncrementalCache cache = IncrementalCache.load(cacheFile, root, graph, "20170401");
+        // 30_c depends on 10_A and 40_d on 30_c, so only 00_init and 20_B/10_b are skipped.
+        assertEquals(2, cache.markUnchanged(null));
+        assertEquals(TaskResult.SUCCESS, node(graph, "00_init.hql").getResult());
+        assertEquals(TaskResult.SUCCESS, node(graph, "20_B/10_b.hql").getResult());
+        assertEquals(TaskResult.NOT_STARTED, node(graph, "10_A/10_a.hql").getResult());
+        assertEquals(TaskResult.NOT_STARTED, node(graph, "30_c.hql").getResult());
+        assertEquals(TaskResult.NOT_STARTED, node(graph, "40_d.hql").getResult());
+    }
+
+    @Test
+    public void testFailedFileExecutedAgain() throws Exception {
+        TaskGraph graph = graph();
+        IncrementalCache cache = IncrementalCache.load(cacheFile, root, graph, "20170401");
+        for (TaskNode node : graph.getNodes())
+            if (node.getTasks().size() == 0 && !node.getId().equals("40_d.hql")) node.setResult(TaskResult.SUCCESS);
+        cache.save();
+        assertEquals(4, run("20170401"));
+    }
+
+    @Test
+    public void testRunDate() throws Exception {
+        run("20170401");
+        assertEquals(0, run("20170402"));
+        TaskGraph graph = graph();
+        assertNotEquals(IncrementalCache.load(cacheFile, root, graph, "20170401").getFingerprint(node(graph, "00_init.hql")),
+                IncrementalCache.load(cacheFile, root, graph, "20170402").getFingerprint(node(graph, "00_init.hql")));
+    }
+
+    /**
+     * Simulate a run in which every file that is not skipped succeeds.
+     *
+     * @return number of files skipped.
+     */
+    private int run(String runDate) throws HqlWrapperException {
+        TaskGraph graph = graph();
+        IncrementalCache cache = IncrementalCache.load(cacheFile, root, graph, runDate);
+        int skipped = cache.markUnchanged(null);
+        for (TaskNode node : graph.getNodes())
+            if (node.getTasks().size() == 0) node.setResult(TaskResult.SUCCESS);
+        cache.save();
+        return skipped;
+    }
+
+    private TaskGraph graph() throws HqlWrapperException {
+        return new TaskQueue(root, Collections.emptyMap(), RunConfig.from(new ControllerConfiguration())).getGraph();
+    }
+
+    private static TaskNode node(TaskGraph g, String id) {
+        for (TaskNode node : g.getNodes())
+            if (node.getId().equals(id)) return node;
+        throw new AssertionError("No TaskNode with id: " + id);
+    }
+}
@@ -0,0 +1,118 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL_STREAMING_THRESHOLD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class JobPlanTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String root;
+    private String planFile;
+    private ControllerConfiguration conf;
+
+    @Before
+    public void setUp() throws IOException {
+        Path source = Paths.get(new File(getClass().getResource("/root").getFile()).getAbsolutePath());
+        Path target = folder.newFolder("root").toPath();
+        try (Stream<Path> files = Files.walk(source)) {
+            Iterator<Path> it = files.iterator();
+            while (it.hasNext()) {
+                Path p = it.next();
+                Path t = target.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p))
+                    Files.createDirectories(t);
+                else
+                    Files.copy(p, t);
+            }
+        }
+        root = target.toString();
+        planFile = new File(folder.getRoot(), "plan/root.plan").getAbsolutePath();
+        conf = new ControllerConfiguration();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        TaskQueue compiled = JobPlan.compile(root, planFile, config());
+        TaskQueue loaded = JobPlan.load(root, Collections.singletonMap("p", "v"), planFile, config());
+        assertNotNull(loaded);
+        assertEquals(compiled.toString().replace("Params: {}", ""), loaded.toString().replace("Params: {p=v}", ""));
+        assertEquals(Collections.singletonMap("p", "v"), loaded.getParams());
+        List<TaskNode> expected = leaves(compiled), actual = leaves(loaded);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getHql(), actual.get(i).getHql());
+            assertEquals(expected.get(i).getStatements(), actual.get(i).getStatements());
+            assertEquals(expected.get(i).getAnnotations(), actual.get(i).getAnnotations());
+            assertEquals(FileUtil.sha256(expected.get(i).getPath()), actual.get(i).getContentHash());
+        }
+        assertNull(JobPlan.load(root + "/30_S2", Collections.emptyMap(), planFile, config()));
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        JobPlan.compile(root, planFile, config());
+        File dir = new File(root, "30_S2");
+        Files.write(new File(dir, "50S2.hql").toPath(), "select 1;".getBytes(StandardCharsets.UTF_8));
+        assertTrue(dir.setLastModified(dir.lastModified() + 10000));
+        assertNull(JobPlan.load(root, Collections.emptyMap(), planFile, config()));
+        JobPlan.compile(root, planFile, config());
+        TaskQueue loaded = JobPlan.load(root, Collections.emptyMap(), planFile, config());
+        assertNotNull(loaded);
+        assertTrue(loaded.toString().contains("50S2.hql"));
+    }
+
+    @Test
+    public void testStreamed() throws Exception {
+        conf.setLong(HQL_STREAMING_THRESHOLD, 1);
+        JobPlan.compile(root, planFile, config());
+        TaskQueue loaded = JobPlan.load(root, Collections.emptyMap(), planFile, config());
+        assertNotNull(loaded);
+        for (TaskNode node : leaves(loaded)) {
+            assertTrue(node.isStreamed());
+            assertEquals(FileUtil.sha256(node.getPath()), node.getContentHash());
+        }
+        conf.setLong(HQL_STREAMING_THRESHOLD, 0);
+        for (TaskNode node : leaves(JobPlan.load(root, Collections.emptyMap(), planFile, config())))
+            assertFalse(node.isStreamed());
+    }
+
+    private RunConfig config() throws HqlWrapperException {
+        return RunConfig.from(conf);
+    }
+
+    private static List<TaskNode> leaves(TaskQueue taskQueue) {
+        List<TaskNode> leaves = new ArrayList<>();
+        for (TaskNode node : taskQueue) {
+            if (node.getTasks().size() == 0)
+                leaves.add(node);
+            else
+                leaves.addAll(leaves(node.getTasks()));
+        }
+        return leaves;
+    }
+}
@@ -0,0 +1,27 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class KerborosTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    public void testRenewalTime() {
+        // A ten hour ticket is renewed after eight hours.
+        assertEquals(8 * HOUR, Kerboros.renewalTime(0, 10 * HOUR, HOUR));
+        // A ticket past its renewal time is renewed shortly, before it expires.
+        assertEquals(9 * HOUR + 60 * 1000L, Kerboros.renewalTime(0, 10 * HOUR, 9 * HOUR));
+        assertEquals(10 * HOUR - 10 * 1000L, Kerboros.renewalTime(0, 10 * HOUR, 10 * HOUR - 20 * 1000L));
+        assertEquals(11 * HOUR, Kerboros.renewalTime(0, 10 * HOUR, 11 * HOUR));
+    }
+
+    @Test
+    public void testNoPrincipal() throws HqlWrapperException {
+        // The test configuration has a blank kerboros.principal, so no login is attempted.
+        Kerboros.auth(RunConfig.from(new ControllerConfiguration()));
+    }
+}
@@ -0,0 +1,86 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.RETRY_INITIAL_BACKOFF_MILLIS;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.RETRY_MAX_BACKOFF_MILLIS;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testIdempotent() {
+        assertTrue(RetryPolicy.isIdempotent("set hive.exec.parallel=true"));
+        assertTrue(RetryPolicy.isIdempotent("select count(*) from emps"));
+        assertTrue(RetryPolicy.isIdempotent("insert overwrite table emps_copy select * from emps"));
+        assertTrue(RetryPolicy.isIdempotent("from emps insert overwrite table a select * insert overwrite table b select *"));
+        assertTrue(RetryPolicy.isIdempotent("create table if not exists emps (id int)"));
+        assertTrue(RetryPolicy.isIdempotent("drop table if exists emps"));
+        assertTrue(RetryPolicy.isIdempotent("alter table emps add if not exists partition (dt='20170401')"));
+        assertTrue(RetryPolicy.isIdempotent("load data inpath '/tmp/emps' overwrite into table emps"));
+        assertTrue(RetryPolicy.isIdempotent("delete jar /tmp/udfs.jar"));
+
+        assertFalse(RetryPolicy.isIdempotent("insert into table emps select * from new_emps"));
+        assertFalse(RetryPolicy.isIdempotent("from emps insert overwrite table a select * insert into table b select *"));
+        assertFalse(RetryPolicy.isIdempotent("load data inpath '/tmp/emps' into table emps"));
+        assertFalse(RetryPolicy.isIdempotent("create table emps as select * from new_emps"));
+        assertFalse(RetryPolicy.isIdempotent("alter table emps rename to old_emps"));
+        assertFalse(RetryPolicy.isIdempotent("dfs -rm -r /tmp/emps"));
+        assertFalse(RetryPolicy.isIdempotent("delete from emps where dt = '20170401'"));
+        assertFalse(RetryPolicy.isIdempotent("update emps set salary = salary * 2 where id = 1"));
+        assertFalse(RetryPolicy.isIdempotent("merge into emps using new_emps n on emps.id = n.id when matched then delete"));
+    }
+
+    @Test
+    public void testSessionStatement() {
+        assertTrue(RetryPolicy.isSessionStatement("set hive.exec.parallel=true"));
+        assertTrue(RetryPolicy.isSessionStatement("use db1"));
+        assertTrue(RetryPolicy.isSessionStatement("add jar /tmp/udfs.jar"));
+        assertTrue(RetryPolicy.isSessionStatement("delete jar /tmp/udfs.jar"));
+        assertTrue(RetryPolicy.isSessionStatement("delete files /tmp/a.txt /tmp/b.txt"));
+        assertTrue(RetryPolicy.isSessionStatement("create temporary function f as 'com.example.F'"));
+
+        assertFalse(RetryPolicy.isSessionStatement("delete from emps where dt = '20170401'"));
+        assertFalse(RetryPolicy.isSessionStatement("update emps set salary = salary * 2 where id = 1"));
+        assertFalse(RetryPolicy.isSessionStatement("merge into emps using new_emps n on emps.id = n.id when matched then delete"));
+        assertFalse(RetryPolicy.isSessionStatement("create temporary table t (id int)"));
+    }
+
+    @Test
+    public void testTransient() {
+        RetryPolicy retry = RetryPolicy.fromConf(new Configuration());
+        assertTrue(retry.isTransient(new SQLException("org.apache.thrift.transport.TTransportException", "08S01")));
+        assertTrue(retry.isTransient(new SQLTransientConnectionException("HS2 restarting")));
+        assertTrue(retry.isTransient(new SQLException("Error while processing statement", null, 10041)));
+        assertTrue(retry.isTransient(new SQLException("Error while processing statement", "HY000",
+                new IOException("org.apache.zookeeper.KeeperException$ConnectionLossException"))));
+        SQLException chained = new SQLException("outer", "HY000");
+        chained.setNextException(new SQLException("java.net.SocketException: Connection reset"));
+        assertTrue(retry.isTransient(chained));
+
+        assertFalse(retry.isTransient(new SQLException("Error while compiling statement: FAILED: ParseException", "42000", 40000)));
+    }
+
+    @Test
+    public void testBackoff() {
+        Configuration conf = new Configuration();
+        conf.setLong(RETRY_INITIAL_BACKOFF_MILLIS, 100);
+        conf.setLong(RETRY_MAX_BACKOFF_MILLIS, 1000);
+        RetryPolicy retry = RetryPolicy.fromConf(conf);
+        for (int i = 0; i < 100; i++) {
+            long b1 = retry.getBackoff(1);
+            assertTrue(b1 >= 50 && b1 <= 100);
+            long b3 = retry.getBackoff(3);
+            assertTrue(b3 >= 200 && b3 <= 400);
+            long b10 = retry.getBackoff(10);
+            assertTrue(b10 >= 500 && b10 <= 1000);
+        }
+    }
+}
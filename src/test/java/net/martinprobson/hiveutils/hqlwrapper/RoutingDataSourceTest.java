@@ -0,0 +1,159 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RoutingDataSourceTest {
+
+    @Test
+    public void testLeastLoaded() throws SQLException {
+        List<StandIn> hs2 = Arrays.asList(new StandIn("a"), new StandIn("b"), new StandIn("c"));
+        RoutingDataSource router = router(hs2);
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            connections.add(router.getConnection());
+        for (StandIn s : hs2)
+            assertEquals(2, s.open.get());
+        // Connections closed on b leave it the least loaded.
+        for (Connection conn : connections)
+            if (conn.toString().equals("b")) conn.close();
+        assertEquals("b", router.getConnection().toString());
+        assertEquals("b", router.getConnection().toString());
+        assertEquals(2, hs2.get(1).open.get());
+        router.close();
+    }
+
+    @Test
+    public void testEjection() throws SQLException {
+        List<StandIn> hs2 = Arrays.asList(new StandIn("a"), new StandIn("b"));
+        RoutingDataSource router = router(hs2);
+        hs2.get(0).down = true;
+        for (int i = 0; i < 4; i++)
+            assertEquals("b", router.getConnection().toString());
+        assertFalse(router.getEndpoints().get(0).isHealthy());
+
+        // Not used again until it passes a health check.
+        hs2.get(0).down = false;
+        assertEquals("b", router.getConnection().toString());
+        router.check();
+        assertTrue(router.getEndpoints().get(0).isHealthy());
+        assertEquals("a", router.getConnection().toString());
+
+        // A health check ejects an endpoint before a task finds it down.
+        hs2.get(1).down = true;
+        router.check();
+        assertFalse(router.getEndpoints().get(1).isHealthy());
+        assertEquals("a", router.getConnection().toString());
+
+        // With every endpoint ejected, each is still tried.
+        hs2.get(0).down = true;
+        router.check();
+        hs2.get(1).down = false;
+        assertEquals("b", router.getConnection().toString());
+        hs2.get(1).down = true;
+        try {
+            router.getConnection();
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            // expected
+        }
+        router.close();
+    }
+
+    @Test
+    public void testExhausted() throws SQLException {
+        List<StandIn> hs2 = Arrays.asList(new StandIn("a"), new StandIn("b"));
+        hs2.get(0).exhausted = true;
+        RoutingDataSource router = router(hs2);
+        assertEquals("b", router.getConnection().toString());
+        assertEquals("b", router.getConnection().toString());
+        // A pool that is exhausted is not ejected.
+        assertTrue(router.getEndpoints().get(0).isHealthy());
+        router.close();
+    }
+
+    @Test
+    public void testWithEndpoint() {
+        assertEquals("jdbc:hive2://hs2b:10000/sales;principal=hive/_HOST@EXAMPLE.COM",
+                DBConnection.withEndpoint("jdbc:hive2://hs2a:10000/sales;principal=hive/_HOST@EXAMPLE.COM", "hs2b:10000"));
+        assertEquals("jdbc:hive2://hs2b:10001", DBConnection.withEndpoint("jdbc:hive2://hs2a:10000", "hs2b:10001"));
+        assertEquals("jdbc:hive2://hs2c:10000/;transportMode=http",
+                DBConnection.withEndpoint("jdbc:hive2://hs2a:10000,hs2b:10000/;transportMode=http", "hs2c:10000"));
+    }
+
+    private static RoutingDataSource router(List<StandIn> hs2) {
+        List<RoutingDataSource.Endpoint> endpoints = new ArrayList<>();
+        for (StandIn s : hs2)
+            endpoints.add(new RoutingDataSource.Endpoint(s.name, s.dataSource(), s::connect, s.open::get));
+        return new RoutingDataSource(endpoints, "select 1", 0);
+    }
+
+    /**
+     * Stands in for a HiveServer2 instance and its connection pool, counting the connections open on it.
+     */
+    private static class StandIn {
+        final String name;
+        final AtomicInteger open = new AtomicInteger();
+        volatile boolean down = false;
+        volatile boolean exhausted = false;
+
+        StandIn(String name) {
+            this.name = name;
+        }
+
+        Connection connect() throws SQLException {
+            if (down) throw new SQLException("Could not open client transport with JDBC Uri: " + name);
+            open.incrementAndGet();
+            Statement stmt = (Statement) Proxy.newProxyInstance(RoutingDataSourceTest.class.getClassLoader(),
+                    new Class<?>[]{Statement.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("execute")) {
+                            if (down) throw new SQLException("Connection reset");
+                            return true;
+                        }
+                        return null;
+                    });
+            AtomicInteger closed = new AtomicInteger();
+            return (Connection) Proxy.newProxyInstance(RoutingDataSourceTest.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "createStatement":
+                                return stmt;
+                            case "close":
+                                if (closed.getAndIncrement() == 0) open.decrementAndGet();
+                                return null;
+                            case "toString":
+                                return name;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        DataSource dataSource() {
+            return (DataSource) Proxy.newProxyInstance(RoutingDataSourceTest.class.getClassLoader(),
+                    new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("getConnection")) return null;
+                        if (exhausted)
+                            throw new SQLException("Cannot get a connection, pool error Timeout waiting for idle object",
+                                    new NoSuchElementException("Timeout waiting for idle object"));
+                        return connect();
+                    });
+        }
+    }
+}
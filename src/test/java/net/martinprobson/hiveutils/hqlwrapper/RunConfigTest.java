@@ -0,0 +1,98 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RunConfigTest {
+
+    @Test
+    public void testDefaults() throws HqlWrapperException {
+        RunConfig config = RunConfig.from(new Configuration());
+        assertFalse(config.isDryRun());
+        assertFalse(config.isFailFast());
+        assertEquals(DEFAULT_EXECUTOR_MAX_CONCURRENT_TASKS, config.getMaxConcurrentTasks());
+        assertEquals(DEFAULT_HQL_FILESYSTEM, config.getFileSystem());
+        assertEquals(0, config.getStatementTimeoutMillis());
+        assertNull(config.getPoolValidationQuery());
+        assertNull(config.getKerberosRealm());
+    }
+
+    @Test
+    public void testSnapshot() throws HqlWrapperException {
+        Configuration conf = new Configuration();
+        conf.set(FAILURE_POLICY, FAILURE_POLICY_FAIL_FAST);
+        conf.setInt(HQL_STATEMENT_TIMEOUT, 30);
+        conf.set(KERBOROS_PRINCIPAL, " EXAMPLE.COM ");
+        conf.setStrings(SEND_MAIL_TO, "a@example.com", "b@example.com");
+        RunConfig config = RunConfig.from(conf);
+        conf.setInt(HQL_STATEMENT_TIMEOUT, 60);
+
+        assertTrue(config.isFailFast());
+        assertEquals(30 * 1000L, config.getStatementTimeoutMillis());
+        assertEquals("EXAMPLE.COM", config.getKerberosRealm());
+        assertNotSame(config.getMailTo(), config.getMailTo());
+        assertEquals("b@example.com", config.getMailTo()[1]);
+        assertEquals(30, config.getConf().getInt(HQL_STATEMENT_TIMEOUT, 0));
+    }
+
+    @Test
+    public void testInvalid() {
+        String[][] invalid = {{FAILURE_POLICY, "sometimes"}, {EXECUTOR_MAX_CONCURRENT_TASKS, "0"},
+                {MONITOR_INTERVAL, "-1"}, {POOL_MAX_TOTAL, "0"}, {HQL_TASK_TIMEOUT, "ten"},
+                {SESSION_MAX_PINNED, String.valueOf(DEFAULT_POOL_MAX_TOTAL)}, {JDBC_ENDPOINTS, "hs2a:10000,hs2b:10000"}};
+        for (String[] setting : invalid) {
+            Configuration conf = new Configuration();
+            conf.set(setting[0], setting[1]);
+            try {
+                RunConfig.from(conf);
+                fail("Expected invalid setting: " + setting[0] + " = " + setting[1]);
+            } catch (HqlWrapperException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testAsync() throws HqlWrapperException {
+        Configuration conf = new Configuration();
+        conf.setBoolean(EXECUTOR_ASYNC, true);
+        RunConfig config = RunConfig.from(conf);
+        assertTrue(config.isAsync());
+        assertEquals(DEFAULT_EXECUTOR_ASYNC_THREADS, config.getAsyncThreads());
+        assertEquals(DEFAULT_HQL_POLL_INTERVAL_MILLIS, config.getPollIntervalMillis());
+
+        // Every running task must be able to borrow a connection without blocking a thread.
+        conf.setInt(EXECUTOR_MAX_CONCURRENT_TASKS, DEFAULT_POOL_MAX_TOTAL + 1);
+        try {
+            RunConfig.from(conf);
+            fail("Expected invalid setting: " + EXECUTOR_MAX_CONCURRENT_TASKS);
+        } catch (HqlWrapperException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws HqlWrapperException {
+        Configuration conf = new Configuration();
+        conf.setBoolean(EXECUTOR_VIRTUAL_THREADS, true);
+        RunConfig config = RunConfig.from(conf);
+        assertTrue(config.isVirtualThreads());
+
+        conf.setBoolean(EXECUTOR_ASYNC, true);
+        try {
+            RunConfig.from(conf);
+            fail("Expected invalid setting: " + EXECUTOR_ASYNC);
+        } catch (HqlWrapperException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RunJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String dir = folder.getRoot().getAbsolutePath();
+        Map<String, String> params = new HashMap<>();
+        params.put("table", "emps");
+        params.put("where", "a\tb\\c\nd");
+        RunJournal journal = RunJournal.create(dir, "/jobs/root", params, "20170401", null);
+        journal.close();
+
+        RunJournal loaded = RunJournal.load(dir, journal.getRunId());
+        assertEquals("/jobs/root", loaded.getRoot());
+        assertEquals("20170401", loaded.getRunDate());
+        assertEquals(params, loaded.getParams());
+    }
+
+    @Test
+    public void testCreateFailure() throws Exception {
+        // journal.dir is a file, so the journal can not be created: it is disabled rather than ending the JVM.
+        String dir = folder.newFile("journal").getAbsolutePath();
+        RunConfig config = RunConfig.from(new ControllerConfiguration());
+        TaskGraph graph = new TaskQueue(getResource("/dag"), Collections.emptyMap(), config).getGraph();
+        RunJournal journal = RunJournal.create(dir, getResource("/dag"), Collections.emptyMap(), "20170401", null);
+        journal.finished(node(graph, "00_init.hql"), TaskResult.SUCCESS, 1L, 2L);
+        journal.close();
+        try {
+            RunJournal.load(dir, journal.getRunId());
+            fail("Expected missing journal");
+        } catch (HqlWrapperException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        String dir = folder.getRoot().getAbsolutePath();
+        RunConfig config = RunConfig.from(new ControllerConfiguration());
+        TaskGraph graph = new TaskQueue(getResource("/dag"), Collections.emptyMap(), config).getGraph();
+        RunJournal journal = RunJournal.create(dir, getResource("/dag"), Collections.emptyMap(), "20170401", null);
+        journal.finished(node(graph, "00_init.hql"), TaskResult.SUCCESS, 1L, 2L);
+        journal.finished(node(graph, "10_A/10_a.hql"), TaskResult.FAILURE, 2L, 3L);
+        journal.finished(node(graph, "20_B/10_b.hql"), TaskResult.FAILURE, 2L, 3L);
+        journal.finished(node(graph, "20_B/10_b.hql"), TaskResult.SUCCESS, 4L, 5L);
+        journal.close();
+        // A JVM killed part way through writing a line leaves it incomplete.
+        try (FileWriter w = new FileWriter(new File(dir, journal.getRunId() + ".journal"), true)) {
+            w.write("end\t40_d.hql\tSUCC");
+        }
+
+        RunJournal loaded = RunJournal.load(dir, journal.getRunId());
+        graph = new TaskQueue(loaded.getRoot(), loaded.getParams(), config).getGraph();
+        assertEquals(2, loaded.markSucceeded(graph, null));
+        assertEquals(TaskResult.SUCCESS, node(graph, "00_init.hql").getResult());
+        assertEquals(TaskResult.NOT_STARTED, node(graph, "10_A/10_a.hql").getResult());
+        assertEquals(TaskResult.SUCCESS, node(graph, "20_B/10_b.hql").getResult());
+        assertEquals(TaskResult.NOT_STARTED, node(graph, "40_d.hql").getResult());
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        try {
+            RunJournal.load(folder.getRoot().getAbsolutePath(), "fred");
+            fail("Expected HqlWrapperException");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("fred"));
+        }
+    }
+
+    private static TaskNode node(TaskGraph g, String id) {
+        for (TaskNode node : g.getNodes())
+            if (node.getId().equals(id)) return node;
+        fail("No TaskNode with id: " + id);
+        return null;
+    }
+
+    private static String getResource(String name) {
+        return new File(RunJournalTest.class.getResource(name).getFile()).getAbsolutePath();
+    }
+}
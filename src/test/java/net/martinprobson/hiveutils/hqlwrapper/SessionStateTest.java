@@ -0,0 +1,108 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SessionStateTest {
+
+    @Test
+    public void testApplied() {
+        SessionState state = new SessionState();
+        assertFalse(state.isApplied("set hive.auto.convert.join=false"));
+        state.applied("set hive.auto.convert.join=false");
+        state.applied("set hivevar:region=emea");
+        state.applied("USE `Sales`");
+        assertTrue(state.isApplied("set hiveconf:hive.auto.convert.join = false"));
+        assertTrue(state.isApplied("set hivevar:region=emea"));
+        assertFalse(state.isApplied("set region=emea"));
+        assertFalse(state.isApplied("set hive.auto.convert.join=true"));
+        assertTrue(state.isApplied("use sales"));
+        assertFalse(state.isApplied("use default"));
+        assertFalse(state.isApplied("select 1"));
+        assertFalse(state.isTainted());
+        assertTrue(state.isTracked());
+    }
+
+    @Test
+    public void testHandOver() {
+        SessionState state = new SessionState();
+        state.applied("set hive.auto.convert.join=false");
+        state.applied("set mapred.job.queue.name=etl");
+        state.applied("use sales");
+        state.handOver();
+        assertTrue(state.isTainted());
+        // Asked for again by the next task, or overridden.
+        assertTrue(state.isApplied("set hive.auto.convert.join=false"));
+        state.applied("set hive.auto.convert.join=false");
+        state.applied("set mapred.job.queue.name=adhoc");
+        assertTrue(state.isTainted());
+        state.applied("use finance");
+        assertFalse(state.isTainted());
+
+        state.handOver();
+        state.applied("set hive.auto.convert.join=false");
+        state.applied("set mapred.job.queue.name=adhoc");
+        // The database left by the earlier task was not asked for.
+        assertTrue(state.isTainted());
+    }
+
+    @Test
+    public void testUndo() {
+        SessionState state = new SessionState();
+        state.applied("set hive.auto.convert.join=false");
+        state.applied("set mapred.job.queue.name=etl");
+        state.applied("use sales");
+        state.handOver();
+        assertEquals(Collections.emptyList(), new SessionState().undo("default", true));
+        // This task asks for one of the settings, the other and the database leak unless reset.
+        state.applied("set mapred.job.queue.name=adhoc");
+        assertEquals(Arrays.asList("reset", "use default"), state.undo("default", true));
+        assertNull(state.undo("default", false));
+        state.reset();
+        state.applied("use default");
+        assertFalse(state.isTainted());
+        // RESET also restored this task's own setting, which must be applied again.
+        assertFalse(state.isApplied("set mapred.job.queue.name=adhoc"));
+        assertTrue(SessionState.isReset("set mapred.job.queue.name=adhoc"));
+        assertTrue(SessionState.isReset("set hiveconf:mapred.job.queue.name=adhoc"));
+        assertFalse(SessionState.isReset("set hivevar:region=emea"));
+        assertFalse(SessionState.isReset("use sales"));
+
+        // A hivevar: variable can not be unset, the connection must be discarded.
+        state.applied("set hivevar:region=emea");
+        state.handOver();
+        assertNull(state.undo("default", true));
+    }
+
+    @Test
+    public void testDatabase() {
+        assertEquals("sales", DBConnection.database("jdbc:hive2://hs2a:10000/sales;principal=hive/_HOST@EXAMPLE.COM"));
+        assertEquals("sales", DBConnection.database("jdbc:hive2://hs2a:10000,hs2b:10000/sales?hive.exec.parallel=true"));
+        assertEquals("default", DBConnection.database("jdbc:hive2://hs2a:10000/;transportMode=http"));
+        assertEquals("default", DBConnection.database("jdbc:hive2://hs2a:10000"));
+    }
+
+    @Test
+    public void testUntracked() {
+        String[] untracked = {"add jar /tmp/udf.jar", "create temporary function f as 'com.example.F'", "reset",
+                "set system:user.name=hive", "delete jar /tmp/udf.jar"};
+        for (String stmt : untracked) {
+            SessionState state = new SessionState();
+            state.applied(stmt);
+            assertFalse(stmt, state.isTracked());
+        }
+        SessionState state = new SessionState();
+        state.applied("set");
+        state.applied("set -v");
+        state.applied("set hive.execution.engine");
+        assertTrue(state.isTracked());
+    }
+}
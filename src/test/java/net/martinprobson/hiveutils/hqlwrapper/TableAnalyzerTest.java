@@ -0,0 +1,115 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TableAnalyzerTest {
+
+    @Test
+    public void testCreateAndLoad() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("CREATE TABLE employees (emp_no INT, first_name STRING)\n" +
+                "  ROW FORMAT DELIMITED FIELDS TERMINATED BY ',';\n" +
+                "LOAD DATA LOCAL INPATH '${EMP_DATA}' OVERWRITE INTO TABLE employees;\n" +
+                "SELECT COUNT(*) FROM employees;\n");
+        assertTrue(a.isClassified());
+        assertEquals(set("default.employees"), a.getWrites());
+        assertEquals(set("default.employees"), a.getReads());
+    }
+
+    @Test
+    public void testCreateAsSelect() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("set hive.auto.convert.join=false;\n" +
+                "create table test_results as SELECT a.emp_no,b.dept_no FROM employees a JOIN dept_emp b ON a.emp_no = b.emp_no;\n");
+        assertTrue(a.isClassified());
+        assertEquals(set("default.test_results"), a.getWrites());
+        assertEquals(set("default.employees", "default.dept_emp"), a.getReads());
+    }
+
+    @Test
+    public void testInsertDirectory() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("INSERT OVERWRITE LOCAL DIRECTORY '${OUTPUT_DIR}' SELECT * FROM test_results;");
+        assertEquals(Collections.emptySet(), a.getWrites());
+        assertEquals(set("default.test_results"), a.getReads());
+    }
+
+    @Test
+    public void testMultiInsertAndCte() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("with x as (select * from src1), y as (select * from x, src2 s) " +
+                "from y insert overwrite table t1 select * insert into table db.t2 partition (dt='1') select *;");
+        assertEquals(set("default.t1", "db.t2"), a.getWrites());
+        assertEquals(set("default.src1", "default.src2"), a.getReads());
+    }
+
+    @Test
+    public void testUseQualifiesNames() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("use sales; drop table if exists `tmp`; insert into table t select * from other.s;");
+        assertEquals(set("sales.tmp", "sales.t"), a.getWrites());
+        assertEquals(set("other.s"), a.getReads());
+    }
+
+    @Test
+    public void testTemporaryTablesIgnored() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("create temporary table tmp as select * from a; insert overwrite table b select * from tmp;");
+        assertEquals(set("default.b"), a.getWrites());
+        assertEquals(set("default.a"), a.getReads());
+    }
+
+    @Test
+    public void testDefaultDatabase() {
+        TableAnalyzer.TableAccess insert = TableAnalyzer.analyze("insert into t select * from s;");
+        assertTrue(insert.conflictsWith(TableAnalyzer.analyze("select * from default.t;")));
+        assertFalse(insert.conflictsWith(TableAnalyzer.analyze("select * from other.t;")));
+    }
+
+    @Test
+    public void testAcidDml() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("delete from emps where dept_no in (select dept_no from closed);");
+        assertTrue(a.isClassified());
+        assertEquals(set("default.emps"), a.getWrites());
+        assertEquals(set("default.closed"), a.getReads());
+        assertTrue(a.conflictsWith(TableAnalyzer.analyze("select * from emps;")));
+
+        a = TableAnalyzer.analyze("use hr; update emps set salary = salary * 2 where emp_no in (select emp_no from promoted);");
+        assertEquals(set("hr.emps"), a.getWrites());
+        assertEquals(set("hr.promoted"), a.getReads());
+
+        a = TableAnalyzer.analyze("merge into emps t using new_emps s on t.emp_no = s.emp_no " +
+                "when matched then update set salary = s.salary when not matched then insert values (s.emp_no, s.salary);");
+        assertEquals(set("default.emps"), a.getWrites());
+        assertEquals(set("default.new_emps"), a.getReads());
+
+        a = TableAnalyzer.analyze("delete jar /tmp/udfs.jar;");
+        assertTrue(a.isClassified());
+        assertEquals(Collections.emptySet(), a.getWrites());
+    }
+
+    @Test
+    public void testUnclassified() {
+        TableAnalyzer.TableAccess a = TableAnalyzer.analyze("create database if not exists x; select * from a;");
+        assertFalse(a.isClassified());
+        assertTrue(a.conflictsWith(TableAnalyzer.analyze("select * from b;")));
+    }
+
+    @Test
+    public void testConflicts() {
+        TableAnalyzer.TableAccess writeA = TableAnalyzer.analyze("insert overwrite table a select * from s;");
+        TableAnalyzer.TableAccess writeB = TableAnalyzer.analyze("insert overwrite table b select * from s;");
+        TableAnalyzer.TableAccess readA = TableAnalyzer.analyze("select * from a;");
+        assertFalse(writeA.conflictsWith(writeB));
+        assertTrue(writeA.conflictsWith(readA));
+        assertTrue(readA.conflictsWith(writeA));
+        assertFalse(readA.conflictsWith(readA));
+    }
+
+    private static Set<String> set(String... s) {
+        return new HashSet<>(Arrays.asList(s));
+    }
+}
@@ -0,0 +1,96 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.MONITOR_INTERVAL;
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.RETRY_MAX_ATTEMPTS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TaskExecutorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ExecutorPool.cleanUp();
+    }
+
+    @Test
+    public void testStartsOnCompletion() throws Exception {
+        // Each task starts as its predecessor completes, not on the next monitor.interval tick.
+        hql("00_a.hql", "select 'a'");
+        hql("10_b.hql", "select 'b'");
+        hql("20_c.hql", "select 'c'");
+        HiveTest.FakeHive hive = new HiveTest.FakeHive(100);
+        long start = System.currentTimeMillis();
+        assertEquals(TaskResult.SUCCESS, run(hive));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(Arrays.asList("select 'a'", "select 'b'", "select 'c'"), hive.executed);
+    }
+
+    @Test
+    public void testWaitsForSubDirectories() throws Exception {
+        hql("00_a.hql", "select 'a'");
+        hql("10_S/10_s1.hql", "select 's1'");
+        hql("10_S/20_s2.hql", "select 's2'");
+        hql("10_S/30_s3.hql", "select 's3'");
+        hql("20_b.hql", "select 'b'");
+        HiveTest.FakeHive hive = new HiveTest.FakeHive(100);
+        assertEquals(TaskResult.SUCCESS, run(hive));
+        assertEquals(Arrays.asList("select 'a'", "select 's1'", "select 's2'", "select 's3'", "select 'b'"), hive.executed);
+    }
+
+    @Test
+    public void testHardDependencyFailed() throws Exception {
+        hql("00_a.hql", "select 'a'");
+        hql("10_S/10_s.hql", "select 's'");
+        hql("20_b.hql", "select 'b'");
+        HiveTest.FakeHive hive = new HiveTest.FakeHive(0);
+        hive.failures.add(new SQLException("Error while compiling statement: FAILED: ParseException", "42000", 40000));
+        TaskQueue queue = queue();
+        assertEquals(TaskResult.FAILURE, new TaskExecutor(queue, null, config(), hive).call());
+        assertEquals(Collections.singletonList("select 'a'"), hive.executed);
+        List<TaskNode> nodes = queue.getGraph().getNodes();
+        for (TaskNode node : nodes) {
+            if (node.getId().equals("00_a.hql")) assertEquals(TaskResult.FAILURE, node.getResult());
+            else assertEquals(node.getId(), TaskResult.NOT_STARTED, node.getResult());
+        }
+    }
+
+    private TaskResult run(HiveTest.FakeHive hive) throws Exception {
+        return new TaskExecutor(queue(), null, config(), hive).call();
+    }
+
+    private TaskQueue queue() throws HqlWrapperException {
+        return new TaskQueue(folder.getRoot().getAbsolutePath(), Collections.emptyMap(), config());
+    }
+
+    private static RunConfig config() throws HqlWrapperException {
+        Configuration conf = new Configuration();
+        conf.setInt(MONITOR_INTERVAL, 60);
+        conf.setInt(RETRY_MAX_ATTEMPTS, 1);
+        return RunConfig.from(conf);
+    }
+
+    private void hql(String name, String hql) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), (hql + ";\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
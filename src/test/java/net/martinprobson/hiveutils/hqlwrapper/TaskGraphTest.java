@@ -0,0 +1,130 @@
+package net.martinprobson.hiveutils.hqlwrapper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class TaskGraphTest {
+
+    private static TaskGraph graph = null;
+    private static RunConfig config = null;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        config = RunConfig.from(new ControllerConfiguration());
+        graph = new TaskQueue(getResource("/dag"), Collections.emptyMap(), config).getGraph();
+    }
+
+    @Test
+    public void testDefaultDependencies() {
+        assertEquals(Collections.emptyList(), deps("00_init.hql"));
+        assertEquals(Collections.singletonList("00_init.hql"), deps("10_A/10_a.hql"));
+        assertEquals(Collections.singletonList("00_init.hql"), deps("20_B/10_b.hql"));
+    }
+
+    @Test
+    public void testDeclaredDependencies() {
+        assertEquals(Collections.singletonList("10_A"), deps("30_c.hql"));
+    }
+
+    @Test
+    public void testDependenciesAfterDeclared() {
+        assertEquals(Arrays.asList("00_init.hql", "30_c.hql", "10_A (soft)", "20_B (soft)"), deps("40_d.hql"));
+    }
+
+    @Test
+    public void testBranchDependencies() {
+        assertEquals(Collections.singletonList("10_A/10_a.hql (soft)"), deps("10_A"));
+    }
+
+    @Test
+    public void testDefaultTreeUnchanged() throws Exception {
+        TaskGraph g = new TaskQueue(getResource("/root"), Collections.emptyMap(), config).getGraph();
+        assertEquals(Collections.singletonList("00_init1.hql"), deps(g, "10_init2.hql"));
+        assertEquals(Arrays.asList("10_init2.hql", "20_S1 (soft)", "30_S2 (soft)"), deps(g, "90_Fin1.hql"));
+        assertEquals(Collections.singletonList("10_init2.hql"), deps(g, "30_S2/10S2.hql"));
+        assertEquals(Collections.singletonList("30_S2/10S2.hql"), deps(g, "30_S2/20_S1/10S1.hql"));
+    }
+
+    @Test
+    public void testInferredDependencies() throws Exception {
+        TaskGraph g = new TaskGraph(new TaskQueue(getResource("/root2"), Collections.emptyMap(), config), true);
+        assertEquals(Collections.emptyList(), deps(g, "00_create_table_emps.hql"));
+        assertEquals(Collections.emptyList(), deps(g, "10_create_table_dept_emps.hql"));
+        assertEquals(Arrays.asList("00_create_table_emps.hql", "10_create_table_dept_emps.hql"), deps(g, "20_join.hql"));
+        assertEquals(Collections.singletonList("20_join.hql"), deps(g, "30_dump.hql"));
+    }
+
+    @Test
+    public void testInferredUnclassified() throws Exception {
+        // CREATE DATABASE can not be classified, so everything after it must wait for it.
+        TaskGraph g = new TaskGraph(new TaskQueue(getResource("/infer"), Collections.emptyMap(), config), true);
+        assertEquals(Collections.singletonList("00_db.hql"), deps(g, "10_a.hql"));
+        assertEquals(Collections.singletonList("00_db.hql"), deps(g, "20_b.hql"));
+        assertEquals(Arrays.asList("00_db.hql", "10_a.hql"), deps(g, "30_c.hql"));
+    }
+
+    @Test
+    public void testCycle() {
+        try {
+            new TaskQueue(getResource("/dag_cycle"), Collections.emptyMap(), config);
+            fail("Expected HqlWrapperException");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Dependency cycle"));
+        }
+    }
+
+    @Test
+    public void testUnresolved() {
+        try {
+            new TaskQueue(getResource("/dag_missing"), Collections.emptyMap(), config);
+            fail("Expected HqlWrapperException");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not_there"));
+        }
+    }
+
+    @Test
+    public void testStreamedUnreadable() {
+        // The header of a streamed file is read when the graph is built, a file that can not be read fails the job.
+        File missing = new File(getResource("/dag"), "99_missing.hql");
+        TaskQueue queue = new TaskQueue(new org.apache.hadoop.fs.Path(missing.getParent()), Collections.emptyMap(), 0, "");
+        queue.add(new TaskNode(new org.apache.hadoop.fs.Path(missing.getPath()), 100, 1));
+        try {
+            queue.buildGraph(false);
+            fail("Expected HqlWrapperException");
+        } catch (HqlWrapperException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("99_missing.hql"));
+        }
+    }
+
+    private static List<String> deps(String id) {
+        return deps(graph, id);
+    }
+
+    private static List<String> deps(TaskGraph g, String id) {
+        for (TaskNode node : g.getNodes()) {
+            if (node.getId().equals(id)) {
+                List<String> result = new ArrayList<>();
+                for (TaskGraph.Edge e : g.getDependencies(node)) result.add(e.toString());
+                return result;
+            }
+        }
+        fail("No TaskNode with id: " + id);
+        return null;
+    }
+
+    private static String getResource(String name) {
+        return new File(TaskGraphTest.class.getResource(name).getFile()).getAbsolutePath();
+    }
+}
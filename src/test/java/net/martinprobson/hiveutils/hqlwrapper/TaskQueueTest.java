@@ -13,6 +13,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
+import static net.martinprobson.hiveutils.hqlwrapper.ControllerConfiguration.HQL_LOAD_THREADS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -28,7 +29,7 @@ public class TaskQueueTest {
         Map<String,String> p = new HashMap<>();
         p.put("TEST_PARAM1","TEST_VAL1");
         p.put("TEST_PARAM2","TEST_VAL2");
-        tq = new TaskQueue(f.getAbsolutePath(),p);
+        tq = new TaskQueue(f.getAbsolutePath(),p, RunConfig.from(new ControllerConfiguration()));
         expResult = readFile(new File(TaskQueue.class.getResource("/TaskQueueTest_expected").getFile()),
                                                                    Charset.defaultCharset());
     }
@@ -74,6 +75,21 @@ public class TaskQueueTest {
         assertEquals(expResult.trim(), tq.toString().trim());
     }
 
+    @Test
+    public void testLoadThreads() throws Exception {
+        File f = new File(TaskQueue.class.getResource("/root").getFile());
+        ControllerConfiguration conf = new ControllerConfiguration();
+        conf.setInt(HQL_LOAD_THREADS, 1);
+        TaskQueue serial = new TaskQueue(f.getAbsolutePath(), tq.getParams(), RunConfig.from(conf));
+        assertEquals(expResult.trim(), serial.toString().trim());
+        conf.setInt(HQL_LOAD_THREADS, 16);
+        TaskQueue parallel = new TaskQueue(f.getAbsolutePath(), tq.getParams(), RunConfig.from(conf));
+        assertEquals(expResult.trim(), parallel.toString().trim());
+        for (TaskNode node : parallel)
+            if (node.getTasks().size() == 0)
+                assertEquals(FileUtil.readFile(node.getPath()), node.getHql());
+    }
+
     @Test
     public void testGetLabel() {
         assertEquals(tq.getLabel(), "root");
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
@@ -24,6 +25,36 @@ public class UtilTest {
 		assertTrue(stmts.equals(Util.HQLSplit(testString)));
 	}
 
+	@Test
+	public void testHQLSplitComments() {
+		String hql = "-- header; not a statement\n" +
+				"use db1; -- trailing; comment\n" +
+				"select a, /* a; block\n comment */ b from t;\n" +
+				"-- only a comment;\n" +
+				"/* another */;\n";
+		assertEquals(Arrays.asList("use db1", "select a,   b from t"), Util.HQLSplit(hql));
+	}
+
+	@Test
+	public void testHQLSplitQuoted() {
+		String hql = "select 'a;b' from t;\n" +
+				"select \"-- not a comment;\" from t;\n" +
+				"select '/* not; a comment */', `odd;name` from t;";
+		assertEquals(Arrays.asList("select 'a;b' from t",
+				"select \"-- not a comment;\" from t",
+				"select '/* not; a comment */', `odd;name` from t"), Util.HQLSplit(hql));
+	}
+
+	@Test
+	public void testHQLSplitEscapes() {
+		String hql = "select 'it\\'s; here' from t;\n" +
+				"select \"say \\\"hi;\\\"\", '\\\\' from t;\n" +
+				"select 'c:\\\\dir\\\\';";
+		assertEquals(Arrays.asList("select 'it\\'s; here' from t",
+				"select \"say \\\"hi;\\\"\", '\\\\' from t",
+				"select 'c:\\\\dir\\\\'"), Util.HQLSplit(hql));
+	}
+
 
 	@Test
 	public void testGetCurrentTimeStamp() {